@@ -0,0 +1,209 @@
+/*
+ * Dog 2.0 - Hue Driver Benchmarks
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.benchmark;
+
+import it.polito.elite.dog.core.library.model.DeviceDescriptor;
+import it.polito.elite.dog.core.library.model.DeviceDescriptorFactory;
+import it.polito.elite.dog.drivers.hue.network.info.HueInfo;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Provides the stand-ins for the OSGi services and the Dog objects needed to
+ * run the driver code outside of an OSGi framework: services are replaced by
+ * dynamic proxies answering default values, device descriptors are generated
+ * from the device templates shipped with the gateway bundle.
+ * 
+ * @author bonino
+ * 
+ */
+public final class BenchmarkStubs
+{
+	/**
+	 * The system property holding the location of the device templates
+	 */
+	public static final String TEMPLATES = "hue.benchmark.templates";
+
+	// the default device templates location, relative to this project
+	private static final String DEFAULT_TEMPLATES = "../it.polito.elite.dog.drivers.hue.gateway/deviceTemplates/";
+
+	// the device descriptor factory, created on first use
+	private static DeviceDescriptorFactory descriptorFactory;
+
+	private BenchmarkStubs()
+	{
+		// static utility class
+	}
+
+	/**
+	 * Creates a stub of the given service interface, all methods do nothing
+	 * and answer the default value of their return type.
+	 * 
+	 * @param type
+	 *            The interface to stub.
+	 * @return the stub
+	 */
+	public static <T> T stub(Class<T> type)
+	{
+		return BenchmarkStubs.stub(type, new DefaultAnswer());
+	}
+
+	/**
+	 * Creates a stub of the given interface, answering with the given handler
+	 * 
+	 * @param type
+	 *            The interface to stub.
+	 * @param answer
+	 *            The handler answering method calls.
+	 * @return the stub
+	 */
+	public static <T> T stub(Class<T> type, DefaultAnswer answer)
+	{
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+				new Class<?>[] { type }, answer));
+	}
+
+	/**
+	 * Creates a stub of a {@link ServiceReference} exposing the given
+	 * properties
+	 * 
+	 * @param properties
+	 *            The service properties.
+	 * @return the stub
+	 */
+	@SuppressWarnings("rawtypes")
+	public static ServiceReference serviceReference(
+			final Map<String, Object> properties)
+	{
+		return BenchmarkStubs.stub(ServiceReference.class, new DefaultAnswer()
+		{
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args)
+					throws Throwable
+			{
+				// answer property lookups from the given map
+				if (method.getName().equals("getProperty"))
+					return properties.get(args[0]);
+				else if (method.getName().equals("getPropertyKeys"))
+					return properties.keySet().toArray(
+							new String[properties.size()]);
+				else
+					return super.invoke(proxy, method, args);
+			}
+		});
+	}
+
+	/**
+	 * Builds the descriptor of a Hue device, from the device templates
+	 * 
+	 * @param deviceClass
+	 *            The device class, e.g., ColorDimmableLight.
+	 * @param name
+	 *            The device name.
+	 * @param gateway
+	 *            The name of the gateway device.
+	 * @param localId
+	 *            The light local id.
+	 * @return the device descriptor
+	 * @throws Exception
+	 *             if the templates cannot be read
+	 */
+	public static synchronized DeviceDescriptor descriptor(String deviceClass,
+			String name, String gateway, String localId) throws Exception
+	{
+		// create the factory on first use
+		if (descriptorFactory == null)
+			descriptorFactory = new DeviceDescriptorFactory(new File(
+					System.getProperty(TEMPLATES, DEFAULT_TEMPLATES)).toURI()
+					.toURL());
+
+		// fill the descriptor definition, as done during device discovery
+		HashMap<String, Object> descriptorDefinitionData = new HashMap<String, Object>();
+		descriptorDefinitionData.put(DeviceDescriptorFactory.NAME, name);
+		descriptorDefinitionData.put(DeviceDescriptorFactory.DESCRIPTION,
+				"Benchmark device of type " + deviceClass);
+		descriptorDefinitionData.put(DeviceDescriptorFactory.GATEWAY, gateway);
+		descriptorDefinitionData.put(DeviceDescriptorFactory.LOCATION, "");
+		descriptorDefinitionData.put(HueInfo.LOCAL_ID, localId);
+
+		return descriptorFactory.getDescriptor(descriptorDefinitionData,
+				deviceClass);
+	}
+
+	/**
+	 * Answers any method call with the default value of the method return
+	 * type, i.e., null, false or zero. Can be extended to answer specific
+	 * methods.
+	 * 
+	 * @author bonino
+	 * 
+	 */
+	public static class DefaultAnswer implements InvocationHandler
+	{
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable
+		{
+			// the answer
+			Object answer = null;
+
+			// identity semantics for the Object methods
+			if (method.getName().equals("equals") && (args != null)
+					&& (args.length == 1))
+				answer = (proxy == args[0]);
+			else if (method.getName().equals("hashCode")
+					&& ((args == null) || (args.length == 0)))
+				answer = System.identityHashCode(proxy);
+			else if (method.getName().equals("toString")
+					&& ((args == null) || (args.length == 0)))
+				answer = "stub of " + method.getDeclaringClass().getSimpleName();
+			else
+			{
+				// the default value of the return type
+				Class<?> type = method.getReturnType();
+
+				if (type == Boolean.TYPE)
+					answer = Boolean.FALSE;
+				else if (type == Character.TYPE)
+					answer = Character.valueOf((char) 0);
+				else if (type == Byte.TYPE)
+					answer = Byte.valueOf((byte) 0);
+				else if (type == Short.TYPE)
+					answer = Short.valueOf((short) 0);
+				else if (type == Integer.TYPE)
+					answer = Integer.valueOf(0);
+				else if (type == Long.TYPE)
+					answer = Long.valueOf(0);
+				else if (type == Float.TYPE)
+					answer = Float.valueOf(0);
+				else if (type == Double.TYPE)
+					answer = Double.valueOf(0);
+			}
+
+			return answer;
+		}
+	}
+}
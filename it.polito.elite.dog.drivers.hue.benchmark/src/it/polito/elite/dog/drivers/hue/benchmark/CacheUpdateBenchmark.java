@@ -0,0 +1,100 @@
+/*
+ * Dog 2.0 - Hue Driver Benchmarks
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.benchmark;
+
+import it.polito.elite.dog.drivers.hue.gateway.HueGatewayDriverInstance;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.philips.lighting.model.PHBridge;
+
+/**
+ * Measures {@link HueGatewayDriverInstance#onCacheUpdated(int, PHBridge)},
+ * i.e., the dispatching of a heartbeat cache update to the attached lights,
+ * for different numbers of lights and different shares of lights changing
+ * between two subsequent updates.
+ * 
+ * @author bonino
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CacheUpdateBenchmark
+{
+	// the number of lights on the bridge
+	@Param({ "1", "10", "100", "500" })
+	public int lights;
+
+	// the percentage of lights changing at each update
+	@Param({ "0", "10", "100" })
+	public int changedPercent;
+
+	// the wired gateway and lights
+	private HueBenchmarkFixture fixture;
+
+	// the bridge on which updates are dispatched
+	private PHBridge bridge;
+
+	// the number of lights changing at each update
+	private int changedLights;
+
+	// the brightness set on changing lights
+	private int brightness;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		this.fixture = new HueBenchmarkFixture(this.lights);
+		this.bridge = this.fixture.getBridge().getBridge();
+		this.changedLights = (this.lights * this.changedPercent) / 100;
+		this.brightness = 254;
+	}
+
+	@Benchmark
+	public void onCacheUpdated()
+	{
+		// change the brightness of the changing lights, if any
+		if (this.changedLights > 0)
+		{
+			this.brightness = (this.brightness == 254) ? 127 : 254;
+			this.fixture.getBridge().setBrightness(this.changedLights,
+					this.brightness);
+		}
+
+		// dispatch the update
+		this.fixture.getGateway().onCacheUpdated(0, this.bridge);
+	}
+}
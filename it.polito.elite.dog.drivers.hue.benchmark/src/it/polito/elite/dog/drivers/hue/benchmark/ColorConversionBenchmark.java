@@ -0,0 +1,94 @@
+/*
+ * Dog 2.0 - Hue Driver Benchmarks
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.benchmark;
+
+import it.polito.elite.dog.core.library.model.color.HSBColor;
+import it.polito.elite.dog.core.library.model.color.RGBColor;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the HSB to RGB (notification path) and RGB to HSB (setColorRGB
+ * command path) color conversions, over a set of colors spanning the Hue
+ * ranges.
+ * 
+ * @author bonino
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ColorConversionBenchmark
+{
+	// the number of converted colors, a power of 2
+	private static final int COLORS = 256;
+
+	// the colors to convert
+	private HSBColor[] hsbColors;
+	private RGBColor[] rgbColors;
+
+	// the index of the next color to convert
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		this.hsbColors = new HSBColor[COLORS];
+		this.rgbColors = new RGBColor[COLORS];
+
+		for (int i = 0; i < COLORS; i++)
+		{
+			// spread hue, saturation and brightness over the Hue ranges
+			this.hsbColors[i] = new HSBColor((i * 257) % 65536,
+					(i * 37) % 255, 1 + ((i * 73) % 254));
+			this.rgbColors[i] = new RGBColor(i, (i * 37) % 256,
+					(i * 73) % 256);
+		}
+	}
+
+	@Benchmark
+	public void hsbToRgb(Blackhole blackhole)
+	{
+		this.next = (this.next + 1) & (COLORS - 1);
+		blackhole.consume(this.hsbColors[this.next].toRGBColor());
+	}
+
+	@Benchmark
+	public void rgbToHsb(Blackhole blackhole)
+	{
+		this.next = (this.next + 1) & (COLORS - 1);
+		blackhole.consume(this.rgbColors[this.next].toHSB());
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ * Dog 2.0 - Hue Driver Benchmarks
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.benchmark;
+
+import it.polito.elite.dog.core.library.model.devicecategory.ColorDimmableLight;
+import it.polito.elite.dog.drivers.hue.colordimmablelight.HueColorDimmableLightDriver;
+import it.polito.elite.dog.drivers.hue.device.HueDeviceDriver;
+import it.polito.elite.dog.drivers.hue.gateway.HueGatewayDriver;
+import it.polito.elite.dog.drivers.hue.gateway.HueGatewayDriverInstance;
+import it.polito.elite.dog.drivers.hue.network.interfaces.HueNetwork;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Measures the startup attachment of the Hue lights defined in Dog, i.e.,
+ * {@link HueDeviceDriver#attach(ServiceReference)} called for every light by
+ * a given number of device manager threads, for lights spread over a given
+ * number of bridges. The tasks scheduled while attaching (e.g., the gateway
+ * attachment settle timeout) run on a single-thread scheduler, as the one of
+ * the network driver.
+ * 
+ * To compare attachment strategies, run the benchmark on both revisions,
+ * with the Dog core library on the class path and the device templates of
+ * the gateway bundle available (see {@link BenchmarkStubs#TEMPLATES}).
+ * 
+ * @author bonino
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class DeviceAttachBenchmark
+{
+	// the number of lights to attach
+	@Param({ "300" })
+	public int lights;
+
+	// the number of bridges holding the lights
+	@Param({ "1", "4" })
+	public int bridges;
+
+	// the number of threads attaching the lights
+	@Param({ "1", "4" })
+	public int threads;
+
+	// the threads attaching the lights
+	private ExecutorService attachThreads;
+
+	// the scheduler of the driver tasks
+	private ScheduledExecutorService taskScheduler;
+
+	// the device driver, created for every attachment round
+	private HueColorDimmableLightDriver driver;
+
+	// the references to the light devices, created for every attachment round
+	@SuppressWarnings("rawtypes")
+	private List<ServiceReference> references;
+
+	@Setup(Level.Trial)
+	public void startThreads()
+	{
+		this.attachThreads = Executors.newFixedThreadPool(this.threads);
+		this.taskScheduler = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	@TearDown(Level.Trial)
+	public void stopThreads()
+	{
+		this.attachThreads.shutdownNow();
+		this.taskScheduler.shutdownNow();
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Setup(Level.Invocation)
+	public void setUp() throws Exception
+	{
+		// the stubbed network driver, scheduling tasks as the actual one
+		HueNetwork network = BenchmarkStubs.stub(HueNetwork.class,
+				new BenchmarkStubs.DefaultAnswer()
+				{
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable
+					{
+						if (method.getName().equals("schedule"))
+							return taskScheduler.schedule((Runnable) args[0],
+									(Long) args[1], (TimeUnit) args[2]);
+						else
+							return super.invoke(proxy, method, args);
+					}
+				});
+
+		// the gateways, indexed by bridge device id
+		final Map<String, HueGatewayDriverInstance> gateways = new HashMap<String, HueGatewayDriverInstance>();
+		for (int i = 0; i < this.bridges; i++)
+		{
+			String bridgeDevice = HueBenchmarkFixture.BRIDGE_DEVICE + "_" + i;
+			gateways.put(bridgeDevice, new HueGatewayDriverInstance(network,
+					null, new SyntheticHueBridge(bridgeDevice,
+							BenchmarkStubs.descriptor(ColorDimmableLight.class
+									.getSimpleName(), bridgeDevice,
+									bridgeDevice, "0")), "192.168.1." + i,
+					Integer.MAX_VALUE, 0, BenchmarkStubs
+							.stub(BundleContext.class)));
+		}
+
+		// the light devices, spread over the bridges, and their references
+		final Map<ServiceReference, SyntheticColorDimmableLight> devices = new IdentityHashMap<ServiceReference, SyntheticColorDimmableLight>();
+		this.references = new ArrayList<ServiceReference>(this.lights);
+		for (int i = 0; i < this.lights; i++)
+		{
+			String bridgeDevice = HueBenchmarkFixture.BRIDGE_DEVICE + "_"
+					+ (i % this.bridges);
+			String localId = String.valueOf((i / this.bridges) + 1);
+			String deviceId = bridgeDevice + "_"
+					+ ColorDimmableLight.class.getSimpleName() + "_" + localId;
+
+			ServiceReference reference = BenchmarkStubs
+					.serviceReference(new HashMap<String, Object>());
+			devices.put(reference, new SyntheticColorDimmableLight(deviceId,
+					BenchmarkStubs.descriptor(
+							ColorDimmableLight.class.getSimpleName(),
+							deviceId, bridgeDevice, localId)));
+			this.references.add(reference);
+		}
+
+		// the driver, resolving references to the light devices
+		this.driver = new HueColorDimmableLightDriver();
+		this.driver.activate(BenchmarkStubs.stub(BundleContext.class,
+				new BenchmarkStubs.DefaultAnswer()
+				{
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable
+					{
+						if (method.getName().equals("getService"))
+							return devices.get(args[0]);
+						else
+							return super.invoke(proxy, method, args);
+					}
+				}));
+		this.driver.addedNetworkDriver(network);
+		this.driver.addedGatewayDriver(new HueGatewayDriver()
+		{
+			@Override
+			public boolean isGatewayAvailable(String gatewayId)
+			{
+				return gateways.containsKey(gatewayId);
+			}
+
+			@Override
+			public HueGatewayDriverInstance getSpecificGateway(
+					String gatewayId)
+			{
+				return gateways.get(gatewayId);
+			}
+		});
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Benchmark
+	public int attachAll() throws Exception
+	{
+		// attach the lights, as the device manager threads do
+		List<Callable<String>> attachments = new ArrayList<Callable<String>>(
+				this.references.size());
+		for (final ServiceReference reference : this.references)
+		{
+			attachments.add(new Callable<String>()
+			{
+				@Override
+				public String call() throws Exception
+				{
+					return driver.attach(reference);
+				}
+			});
+		}
+
+		// wait for all the attachments
+		int attached = 0;
+		for (Future<String> attachment : this.attachThreads
+				.invokeAll(attachments))
+		{
+			attachment.get();
+			attached++;
+		}
+
+		return attached;
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Dog 2.0 - Hue Driver Benchmarks
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.benchmark;
+
+import it.polito.elite.dog.core.library.model.DeviceCostants;
+import it.polito.elite.dog.core.library.model.devicecategory.ColorDimmableLight;
+import it.polito.elite.dog.core.library.model.devicecategory.OnOffLight;
+import it.polito.elite.dog.drivers.hue.colordimmablelight.HueColorDimmableLightDriver;
+import it.polito.elite.dog.drivers.hue.device.HueDeviceDriver;
+import it.polito.elite.dog.drivers.hue.gateway.HueGatewayDriver;
+import it.polito.elite.dog.drivers.hue.network.info.HueInfo;
+import it.polito.elite.dog.drivers.hue.network.interfaces.HueNetwork;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Measures {@link HueDeviceDriver#match(ServiceReference)}, as called by the
+ * OSGi device manager for every registered device, for a device handled by the
+ * driver and for a device of a different category.
+ * 
+ * @author bonino
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DeviceMatchBenchmark
+{
+	// the device driver
+	private HueColorDimmableLightDriver driver;
+
+	// the reference to a device handled by the driver
+	@SuppressWarnings("rawtypes")
+	private ServiceReference matchingDevice;
+
+	// the reference to a device of a different category
+	@SuppressWarnings("rawtypes")
+	private ServiceReference foreignDevice;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		// the driver, wired to stubbed services and to a gateway driver
+		// handling the benchmark bridge only
+		this.driver = new HueColorDimmableLightDriver();
+		this.driver.activate(BenchmarkStubs.stub(BundleContext.class));
+		this.driver.addedNetworkDriver(BenchmarkStubs.stub(HueNetwork.class));
+		this.driver.addedGatewayDriver(new HueGatewayDriver()
+		{
+			@Override
+			public boolean isGatewayAvailable(String gatewayId)
+			{
+				return HueBenchmarkFixture.BRIDGE_DEVICE.equals(gatewayId);
+			}
+		});
+
+		// the device references
+		this.matchingDevice = BenchmarkStubs.serviceReference(this
+				.deviceProperties(ColorDimmableLight.class.getName()));
+		this.foreignDevice = BenchmarkStubs.serviceReference(this
+				.deviceProperties(OnOffLight.class.getName()));
+	}
+
+	@Benchmark
+	public int matchingDevice() throws Exception
+	{
+		return this.driver.match(this.matchingDevice);
+	}
+
+	@Benchmark
+	public int foreignDevice() throws Exception
+	{
+		return this.driver.match(this.foreignDevice);
+	}
+
+	/**
+	 * Provides the service properties of a Hue device of the given category
+	 * 
+	 * @param deviceCategory
+	 *            The device category.
+	 * @return the service properties
+	 */
+	private HashMap<String, Object> deviceProperties(String deviceCategory)
+	{
+		HashMap<String, Object> properties = new HashMap<String, Object>();
+		properties.put(DeviceCostants.DEVICE_CATEGORY, deviceCategory);
+		properties.put(DeviceCostants.MANUFACTURER, HueInfo.MANUFACTURER);
+		properties.put(DeviceCostants.GATEWAY,
+				HueBenchmarkFixture.BRIDGE_DEVICE);
+		return properties;
+	}
+}
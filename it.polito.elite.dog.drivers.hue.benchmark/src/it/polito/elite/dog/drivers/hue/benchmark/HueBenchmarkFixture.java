@@ -0,0 +1,160 @@
+/*
+ * Dog 2.0 - Hue Driver Benchmarks
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.benchmark;
+
+import it.polito.elite.dog.core.library.model.devicecategory.ColorDimmableLight;
+import it.polito.elite.dog.drivers.hue.colordimmablelight.HueColorDimmableLightDriverInstance;
+import it.polito.elite.dog.drivers.hue.gateway.HueGatewayDriverInstance;
+import it.polito.elite.dog.drivers.hue.network.interfaces.HueNetwork;
+
+import org.osgi.framework.BundleContext;
+
+/**
+ * Wires a gateway driver instance and one color dimmable light driver
+ * instance per light of a {@link SyntheticBridge}, as it happens in Dog once
+ * all the lights have been discovered and attached. The gateway is connected
+ * and has already dispatched the initial state of every light.
+ * 
+ * @author bonino
+ * 
+ */
+public class HueBenchmarkFixture
+{
+	/**
+	 * The IP address of the synthetic bridge
+	 */
+	public static final String BRIDGE_IP = "192.168.1.2";
+
+	/**
+	 * The id of the bridge device
+	 */
+	public static final String BRIDGE_DEVICE = "HueBridge";
+
+	// the stubbed bundle context
+	private BundleContext context;
+
+	// the stubbed network driver
+	private HueNetwork network;
+
+	// the synthetic bridge
+	private SyntheticBridge bridge;
+
+	// the gateway driver instance
+	private HueGatewayDriverInstance gateway;
+
+	// the light driver instances, in local id order
+	private HueColorDimmableLightDriverInstance[] lights;
+
+	/**
+	 * Creates a connected gateway with the given number of attached lights
+	 * 
+	 * @param lightCount
+	 *            The number of lights.
+	 * @throws Exception
+	 *             if device descriptors cannot be created
+	 */
+	public HueBenchmarkFixture(int lightCount) throws Exception
+	{
+		// stub the OSGi services
+		this.context = BenchmarkStubs.stub(BundleContext.class);
+		this.network = BenchmarkStubs.stub(HueNetwork.class);
+
+		// create the bridge
+		this.bridge = new SyntheticBridge(lightCount);
+
+		// create the gateway, the bridge device only needs a well formed
+		// descriptor, therefore the light template is reused; device discovery
+		// is never enabled
+		SyntheticHueBridge bridgeDevice = new SyntheticHueBridge(BRIDGE_DEVICE,
+				BenchmarkStubs.descriptor(
+						ColorDimmableLight.class.getSimpleName(),
+						BRIDGE_DEVICE, BRIDGE_DEVICE, "0"));
+		this.gateway = new HueGatewayDriverInstance(this.network, null,
+				bridgeDevice, BRIDGE_IP, Integer.MAX_VALUE, 0, this.context);
+
+		// create and attach the lights
+		this.lights = new HueColorDimmableLightDriverInstance[lightCount];
+		for (int i = 0; i < lightCount; i++)
+		{
+			// the light local id
+			String localId = String.valueOf(i + 1);
+
+			// the light device
+			String deviceId = ColorDimmableLight.class.getSimpleName() + "_"
+					+ localId;
+			SyntheticColorDimmableLight lightDevice = new SyntheticColorDimmableLight(
+					deviceId, BenchmarkStubs.descriptor(
+							ColorDimmableLight.class.getSimpleName(),
+							deviceId, BRIDGE_DEVICE, localId));
+
+			// the light driver instance
+			this.lights[i] = new HueColorDimmableLightDriverInstance(
+					this.network, lightDevice, localId, this.gateway, 5,
+					this.context);
+			lightDevice.setDriver(this.lights[i]);
+
+			// mark the light as known
+			this.gateway.addDevice(localId, this.lights[i]);
+		}
+
+		// connect the bridge and dispatch the initial state
+		this.gateway.onBridgeConnected(this.bridge.getBridge());
+		this.gateway.onCacheUpdated(0, this.bridge.getBridge());
+	}
+
+	/**
+	 * @return the stubbed bundle context
+	 */
+	public BundleContext getContext()
+	{
+		return this.context;
+	}
+
+	/**
+	 * @return the stubbed network driver
+	 */
+	public HueNetwork getNetwork()
+	{
+		return this.network;
+	}
+
+	/**
+	 * @return the synthetic bridge
+	 */
+	public SyntheticBridge getBridge()
+	{
+		return this.bridge;
+	}
+
+	/**
+	 * @return the gateway driver instance
+	 */
+	public HueGatewayDriverInstance getGateway()
+	{
+		return this.gateway;
+	}
+
+	/**
+	 * @return the light driver instances, in local id order
+	 */
+	public HueColorDimmableLightDriverInstance[] getLights()
+	{
+		return this.lights;
+	}
+}
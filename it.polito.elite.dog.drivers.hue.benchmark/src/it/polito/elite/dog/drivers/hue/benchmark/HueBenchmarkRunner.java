@@ -0,0 +1,59 @@
+/*
+ * Dog 2.0 - Hue Driver Benchmarks
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the Hue driver benchmarks with the GC profiler enabled, reporting
+ * throughput, latency percentiles (sample time mode) and allocation rate.
+ * 
+ * <pre>
+ * HueBenchmarkRunner [benchmark regexp] [comma separated light counts]
+ * </pre>
+ * 
+ * e.g., <code>HueBenchmarkRunner CacheUpdate 1,50,500</code>
+ * 
+ * @author bonino
+ * 
+ */
+public class HueBenchmarkRunner
+{
+	public static void main(String[] args) throws RunnerException
+	{
+		// the benchmarks to run, all by default
+		String include = (args.length > 0) ? args[0]
+				: HueBenchmarkRunner.class.getPackage().getName() + ".*";
+
+		// build the run options
+		ChainedOptionsBuilder options = new OptionsBuilder().include(include)
+				.addProfiler(GCProfiler.class);
+
+		// override the light counts, if needed
+		if (args.length > 1)
+			options.param("lights", args[1].split(","));
+
+		// run
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Dog 2.0 - Hue Driver Benchmarks
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.benchmark;
+
+/**
+ * Reports the heap retained by each attached lamp, i.e., the heap used by a
+ * connected gateway with the given number of lights, having dispatched the
+ * initial light states, divided by the number of lights. The report only
+ * depends on {@link HueBenchmarkFixture}, so that it can be run unchanged on
+ * the revisions to compare; each run measures a single light count, as the
+ * driver keeps process-wide data about the attached lights.
+ * 
+ * <pre>
+ * LightFootprintReport [light count]
+ * </pre>
+ * 
+ * e.g., <code>LightFootprintReport 5000</code>
+ * 
+ * @author bonino
+ * 
+ */
+public class LightFootprintReport
+{
+	public static void main(String[] args) throws Exception
+	{
+		// the light count, 1000 by default
+		int lightCount = (args.length > 0) ? Integer.parseInt(args[0].trim())
+				: 1000;
+
+		// measure the heap before and after wiring the lights
+		long before = LightFootprintReport.usedHeap();
+		HueBenchmarkFixture fixture = new HueBenchmarkFixture(lightCount);
+		long after = LightFootprintReport.usedHeap();
+
+		// the fixture is still referenced here, thus retained while measuring
+		System.out.println(String.format("%d lights: %d bytes per lamp",
+				fixture.getLights().length, (after - before) / lightCount));
+	}
+
+	/**
+	 * Provides the heap in use, after collecting the garbage
+	 */
+	private static long usedHeap() throws InterruptedException
+	{
+		Runtime runtime = Runtime.getRuntime();
+
+		// collect until the used heap settles
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++)
+		{
+			System.gc();
+			Thread.sleep(100);
+			used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+		}
+
+		return used;
+	}
+}
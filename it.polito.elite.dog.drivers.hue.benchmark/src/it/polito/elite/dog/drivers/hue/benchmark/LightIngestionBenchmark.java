@@ -0,0 +1,102 @@
+/*
+ * Dog 2.0 - Hue Driver Benchmarks
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.benchmark;
+
+import it.polito.elite.dog.drivers.hue.colordimmablelight.HueColorDimmableLightDriverInstance;
+import it.polito.elite.dog.drivers.hue.network.info.HueLightFingerprint;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.philips.lighting.model.PHLightState;
+
+/**
+ * Measures
+ * {@link HueColorDimmableLightDriverInstance#newMessageFromHouse(PHLightState, int)}
+ * when the received state matches the current one (steady state, not
+ * allocating: gc.alloc.rate.norm is close to 0 B/op, which is the figure to
+ * check after changing the ingestion path) and when the brightness changes
+ * at every call.
+ * 
+ * @author bonino
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class LightIngestionBenchmark
+{
+	// the light driver instance
+	private HueColorDimmableLightDriverInstance light;
+
+	// the current light state
+	private PHLightState currentState;
+
+	// the current light state, with a different brightness
+	private PHLightState dimmedState;
+
+	// true if the dimmed state was the last one received
+	private boolean dimmed;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		// a single attached light
+		HueBenchmarkFixture fixture = new HueBenchmarkFixture(1);
+		this.light = fixture.getLights()[0];
+
+		// the state already dispatched to the light
+		this.currentState = fixture.getBridge().getBridge().getResourceCache()
+				.getLights().get("1").getLastKnownLightState();
+
+		// the same state, dimmed
+		this.dimmedState = new PHLightState(this.currentState);
+		this.dimmedState.setBrightness(127);
+	}
+
+	@Benchmark
+	public void steadyState()
+	{
+		this.light.newMessageFromHouse(this.currentState,
+				HueLightFingerprint.ALL);
+	}
+
+	@Benchmark
+	public void brightnessChange()
+	{
+		// alternate the dimmed and the current state
+		this.dimmed = !this.dimmed;
+		this.light.newMessageFromHouse(this.dimmed ? this.dimmedState
+				: this.currentState, HueLightFingerprint.BRIGHTNESS);
+	}
+}
@@ -0,0 +1,295 @@
+/*
+ * Dog 2.0 - Hue Driver Benchmarks
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.benchmark;
+
+import it.polito.elite.dog.drivers.hue.network.HueCommandFuture;
+import it.polito.elite.dog.drivers.hue.network.HueNetworkDriver;
+import it.polito.elite.dog.drivers.hue.network.info.HueDeviceIdentifier;
+import it.polito.elite.dog.drivers.hue.network.interfaces.HueConnectionListener;
+import it.polito.elite.dog.drivers.hue.simulator.HueBridgeSimulator;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.BundleContext;
+
+import com.philips.lighting.hue.listener.PHLightListener;
+import com.philips.lighting.model.PHBridge;
+import com.philips.lighting.model.PHBridgeResource;
+import com.philips.lighting.model.PHHueError;
+import com.philips.lighting.model.PHLight;
+import com.philips.lighting.model.PHLightState;
+
+/**
+ * Measures the round trip of a light command, from the SDK to the bridge and
+ * back, through the network driver connected to a {@link HueBridgeSimulator}
+ * running on the loopback interface, either directly through the SDK or
+ * through the network driver command queue. Rate limits are disabled, to
+ * measure the driver and SDK overhead rather than the bridge budget.
+ * 
+ * @author bonino
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SimulatedBridgeBenchmark
+{
+	// the time to wait for connection and responses, in seconds
+	private static final long TIMEOUT_SECONDS = 30;
+
+	// the command rate configured on the network driver, high enough not to
+	// throttle the benchmarks
+	private static final String MAX_COMMANDS_PER_SECOND = "1000";
+
+	// the number of lights on the bridge
+	@Param({ "1", "10", "100" })
+	public int lights;
+
+	// the bridge response latency, in milliseconds
+	@Param({ "0", "20" })
+	public long latencyMillis;
+
+	// the bridge simulator
+	private HueBridgeSimulator simulator;
+
+	// the network driver
+	private HueNetworkDriver network;
+
+	// the connected bridge
+	private PHBridge bridge;
+
+	// the simulated lights, as seen by the network driver
+	private HueDeviceIdentifier[] devices;
+
+	// the next light to command
+	private int nextLight;
+
+	// the next on/off value to send
+	private boolean on;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		// start the simulator, without rate limits
+		this.simulator = new HueBridgeSimulator(this.lights);
+		this.simulator.setLatency(this.latencyMillis, this.latencyMillis / 10);
+		this.simulator.setRateLimits(0, 0);
+		this.simulator.start();
+
+		// start the network driver
+		this.network = new HueNetworkDriver();
+		this.network.activate(BenchmarkStubs.stub(BundleContext.class));
+
+		Hashtable<String, Object> configuration = new Hashtable<String, Object>();
+		configuration.put(HueNetworkDriver.MAX_COMMANDS_PER_SECOND,
+				MAX_COMMANDS_PER_SECOND);
+		this.network.updated(configuration);
+
+		// connect to the simulator
+		final CountDownLatch connected = new CountDownLatch(1);
+		this.network.connectToBridge(this.simulator.getBridgeIp(),
+				new HueConnectionListener()
+				{
+					@Override
+					public void onBridgeConnected(PHBridge bridge)
+					{
+						connected.countDown();
+					}
+
+					@Override
+					public void onBridgeDisconnected()
+					{
+						// intentionally left empty
+					}
+
+					@Override
+					public void onCacheUpdated(int flag, PHBridge bridge)
+					{
+						// intentionally left empty
+					}
+
+					@Override
+					public void onAuthenticationRequired()
+					{
+						// intentionally left empty
+					}
+				});
+
+		if (!connected.await(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+			throw new IllegalStateException("Unable to connect to the simulator");
+
+		this.bridge = this.network.getBridge(this.simulator.getBridgeIp());
+
+		// identify the simulated lights
+		this.devices = new HueDeviceIdentifier[this.lights];
+		for (int i = 0; i < this.lights; i++)
+			this.devices[i] = new HueDeviceIdentifier(String.valueOf(i + 1),
+					this.simulator.getBridgeIp());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		this.network.deactivate();
+		this.simulator.stop();
+	}
+
+	@Benchmark
+	public boolean lightCommandRoundTrip() throws InterruptedException
+	{
+		// toggle the next light
+		this.nextLight = (this.nextLight % this.lights) + 1;
+		this.on = !this.on;
+
+		PHLightState lightState = new PHLightState();
+		lightState.setOn(this.on);
+
+		// send the command and wait for the bridge response
+		RoundTripListener listener = new RoundTripListener();
+		this.bridge.updateLightState(String.valueOf(this.nextLight),
+				lightState, listener);
+
+		return listener.await();
+	}
+
+	@Benchmark
+	public boolean queuedCommandRoundTrip() throws Exception
+	{
+		// toggle the next light
+		this.nextLight = (this.nextLight % this.lights) + 1;
+		this.on = !this.on;
+
+		PHLightState lightState = new PHLightState();
+		lightState.setOn(this.on);
+
+		// submit the command and wait for the bridge acknowledgment
+		return this.network.submitLightState(this.devices[this.nextLight - 1],
+				lightState).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+	}
+
+	@Benchmark
+	public int pipelinedCommands() throws Exception
+	{
+		this.on = !this.on;
+
+		// submit one command per light, without waiting
+		List<HueCommandFuture> commands = new ArrayList<HueCommandFuture>(
+				this.lights);
+		for (HueDeviceIdentifier device : this.devices)
+		{
+			PHLightState lightState = new PHLightState();
+			lightState.setOn(this.on);
+			commands.add(this.network.submitLightState(device, lightState));
+		}
+
+		// wait for all the acknowledgments
+		int acknowledged = 0;
+		for (HueCommandFuture command : commands)
+			if (command.get(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+				acknowledged++;
+
+		return acknowledged;
+	}
+
+	/**
+	 * Waits for the bridge response to a single light command
+	 * 
+	 * @author bonino
+	 * 
+	 */
+	private static class RoundTripListener extends PHLightListener
+	{
+		// released on response
+		private CountDownLatch response = new CountDownLatch(1);
+
+		// true if the bridge accepted the command
+		private volatile boolean success;
+
+		/**
+		 * Waits for the bridge response
+		 * 
+		 * @return true if the bridge accepted the command
+		 * @throws InterruptedException
+		 *             if interrupted while waiting
+		 */
+		public boolean await() throws InterruptedException
+		{
+			return this.response.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+					&& this.success;
+		}
+
+		@Override
+		public void onSuccess()
+		{
+			// the SDK reports light updates through onStateUpdate
+		}
+
+		@Override
+		public void onError(int code, String message)
+		{
+			this.response.countDown();
+		}
+
+		@Override
+		public void onStateUpdate(Hashtable<String, String> successes,
+				List<PHHueError> errors)
+		{
+			this.success = (errors == null) || (errors.isEmpty());
+			this.response.countDown();
+		}
+
+		@Override
+		public void onReceivingLightDetails(PHLight light)
+		{
+			// intentionally left empty
+		}
+
+		@Override
+		public void onReceivingLights(List<PHBridgeResource> lights)
+		{
+			// intentionally left empty
+		}
+
+		@Override
+		public void onSearchComplete()
+		{
+			// intentionally left empty
+		}
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Dog 2.0 - Hue Driver Benchmarks
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.benchmark;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+import com.philips.lighting.model.PHBridge;
+import com.philips.lighting.model.PHBridgeConfiguration;
+import com.philips.lighting.model.PHBridgeResourcesCache;
+import com.philips.lighting.model.PHGroup;
+import com.philips.lighting.model.PHLight;
+import com.philips.lighting.model.PHLightState;
+import com.philips.lighting.model.PHScene;
+import com.philips.lighting.model.PHSchedule;
+
+/**
+ * A synthetic Hue bridge holding a configurable number of extended color
+ * lights in its resources cache, all lights are on, reachable and have
+ * distinct colors. Light local ids go from "1" to the number of lights, as on
+ * a real bridge.
+ * 
+ * @author bonino
+ * 
+ */
+public class SyntheticBridge implements PHBridgeResourcesCache
+{
+	// the cached lights, indexed by local id
+	private Hashtable<String, PHLight> lights;
+
+	// the cached light states, in local id order
+	private PHLightState[] lightStates;
+
+	// the bridge answering with this cache
+	private PHBridge bridge;
+
+	/**
+	 * Creates a synthetic bridge with the given number of lights
+	 * 
+	 * @param lightCount
+	 *            The number of lights.
+	 */
+	public SyntheticBridge(int lightCount)
+	{
+		// create the lights
+		this.lights = new Hashtable<String, PHLight>();
+		this.lightStates = new PHLightState[lightCount];
+
+		for (int i = 0; i < lightCount; i++)
+		{
+			// the light local id
+			String localId = String.valueOf(i + 1);
+
+			// create the light
+			PHLight light = new PHLight("Light " + localId, localId,
+					"66013452", "LCT001");
+			light.setReachable(true);
+
+			// create its state
+			PHLightState lightState = new PHLightState();
+			lightState.setOn(true);
+			lightState.setBrightness(254);
+			lightState.setHue((i * 997) % 65536);
+			lightState.setSaturation(200);
+			lightState.setCt(300);
+			lightState.setX(0.4f);
+			lightState.setY(0.4f);
+			light.setLastKnownLightState(lightState);
+
+			// store the light
+			this.lights.put(localId, light);
+			this.lightStates[i] = lightState;
+		}
+
+		// create the bridge, only answering with this cache
+		this.bridge = BenchmarkStubs.stub(PHBridge.class,
+				new BenchmarkStubs.DefaultAnswer()
+				{
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable
+					{
+						if (method.getName().equals("getResourceCache"))
+							return SyntheticBridge.this;
+						else
+							return super.invoke(proxy, method, args);
+					}
+				});
+	}
+
+	/**
+	 * @return the bridge answering with this cache
+	 */
+	public PHBridge getBridge()
+	{
+		return this.bridge;
+	}
+
+	/**
+	 * @return the number of lights
+	 */
+	public int getLightCount()
+	{
+		return this.lightStates.length;
+	}
+
+	/**
+	 * Sets the brightness of the first lights, simulating a state change
+	 * detected by a heartbeat
+	 * 
+	 * @param lightCount
+	 *            The number of lights to change.
+	 * @param brightness
+	 *            The new brightness.
+	 */
+	public void setBrightness(int lightCount, int brightness)
+	{
+		for (int i = 0; i < lightCount; i++)
+			this.lightStates[i].setBrightness(brightness);
+	}
+
+	@Override
+	public Hashtable<String, PHLight> getLights()
+	{
+		return this.lights;
+	}
+
+	@Override
+	public List<PHLight> getAllLights()
+	{
+		return new ArrayList<PHLight>(this.lights.values());
+	}
+
+	@Override
+	public Hashtable<String, PHGroup> getGroups()
+	{
+		return new Hashtable<String, PHGroup>();
+	}
+
+	@Override
+	public List<PHGroup> getAllGroups()
+	{
+		return new ArrayList<PHGroup>();
+	}
+
+	@Override
+	public List<PHScene> getAllScenes()
+	{
+		return new ArrayList<PHScene>();
+	}
+
+	@Override
+	public PHBridgeConfiguration getBridgeConfiguration()
+	{
+		return null;
+	}
+
+	@Override
+	public Hashtable<String, PHSchedule> getSchedules()
+	{
+		return new Hashtable<String, PHSchedule>();
+	}
+
+	@Override
+	public Hashtable<String, PHScene> getScenes()
+	{
+		return new Hashtable<String, PHScene>();
+	}
+
+	@Override
+	public List<PHSchedule> getAllSchedules(boolean recurringOnly)
+	{
+		return new ArrayList<PHSchedule>();
+	}
+
+	@Override
+	public List<PHSchedule> getAllTimers(boolean recurringOnly)
+	{
+		return new ArrayList<PHSchedule>();
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * Dog 2.0 - Hue Driver Benchmarks
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.benchmark;
+
+import it.polito.elite.dog.core.library.model.ControllableDevice;
+import it.polito.elite.dog.core.library.model.DeviceDescriptor;
+import it.polito.elite.dog.core.library.model.DeviceStatus;
+import it.polito.elite.dog.core.library.model.color.HSBColor;
+import it.polito.elite.dog.core.library.model.color.RGBColor;
+import it.polito.elite.dog.core.library.model.devicecategory.ColorDimmableLight;
+
+import javax.measure.Measure;
+
+import org.osgi.framework.BundleContext;
+
+/**
+ * A color dimmable light device living outside of the OSGi framework:
+ * commands are ignored and notifications are only counted, so that the
+ * benchmarks measure the driver code alone.
+ * 
+ * @author bonino
+ * 
+ */
+public class SyntheticColorDimmableLight extends ControllableDevice implements
+		ColorDimmableLight
+{
+	// the device id
+	private String deviceId;
+
+	// the device descriptor
+	private DeviceDescriptor descriptor;
+
+	// the number of received notifications
+	private long notifications;
+
+	/**
+	 * Creates a synthetic light device
+	 * 
+	 * @param deviceId
+	 *            The device id.
+	 * @param descriptor
+	 *            The device descriptor.
+	 */
+	public SyntheticColorDimmableLight(String deviceId,
+			DeviceDescriptor descriptor)
+	{
+		super(BenchmarkStubs.stub(BundleContext.class), descriptor);
+
+		this.deviceId = deviceId;
+		this.descriptor = descriptor;
+	}
+
+	@Override
+	public String getDeviceId()
+	{
+		return this.deviceId;
+	}
+
+	@Override
+	public DeviceDescriptor getDeviceDescriptor()
+	{
+		return this.descriptor;
+	}
+
+	/**
+	 * @return the number of notifications received so far
+	 */
+	public long getNotifications()
+	{
+		return this.notifications;
+	}
+
+	@Override
+	public DeviceStatus getState()
+	{
+		return null;
+	}
+
+	@Override
+	public void updateStatus()
+	{
+		this.notifications++;
+	}
+
+	@Override
+	public void stepDown()
+	{
+		// commands are not used by benchmarks
+	}
+
+	@Override
+	public void stepUp()
+	{
+		// commands are not used by benchmarks
+	}
+
+	@Override
+	public void storeScene(Integer sceneNumber)
+	{
+		// commands are not used by benchmarks
+	}
+
+	@Override
+	public void deleteScene(Integer sceneNumber)
+	{
+		// commands are not used by benchmarks
+	}
+
+	@Override
+	public void set(Object value)
+	{
+		// commands are not used by benchmarks
+	}
+
+	@Override
+	public void on()
+	{
+		// commands are not used by benchmarks
+	}
+
+	@Override
+	public void off()
+	{
+		// commands are not used by benchmarks
+	}
+
+	@Override
+	public void deleteGroup(Integer groupID)
+	{
+		// commands are not used by benchmarks
+	}
+
+	@Override
+	public void storeGroup(Integer groupID)
+	{
+		// commands are not used by benchmarks
+	}
+
+	@Override
+	public void setColorHSB(HSBColor colorHSB)
+	{
+		// commands are not used by benchmarks
+	}
+
+	@Override
+	public void setColorRGB(RGBColor colorRGB)
+	{
+		// commands are not used by benchmarks
+	}
+
+	@Override
+	public void notifyStoredScene(Integer sceneNumber)
+	{
+		this.notifications++;
+	}
+
+	@Override
+	public void notifyDeletedScene(Integer sceneNumber)
+	{
+		this.notifications++;
+	}
+
+	@Override
+	public void notifyOn()
+	{
+		this.notifications++;
+	}
+
+	@Override
+	public void notifyOff()
+	{
+		this.notifications++;
+	}
+
+	@Override
+	public void notifyChangedLevel(Measure<?, ?> newLevel)
+	{
+		this.notifications++;
+	}
+
+	@Override
+	public void notifyLeftGroup(Integer groupNumber)
+	{
+		this.notifications++;
+	}
+
+	@Override
+	public void notifyJoinedGroup(Integer groupNumber)
+	{
+		this.notifications++;
+	}
+
+	@Override
+	public void notifyChangedColorHSB(HSBColor colorHSB)
+	{
+		this.notifications++;
+	}
+
+	@Override
+	public void notifyChangedColorRGB(RGBColor colorRGB)
+	{
+		this.notifications++;
+	}
+}
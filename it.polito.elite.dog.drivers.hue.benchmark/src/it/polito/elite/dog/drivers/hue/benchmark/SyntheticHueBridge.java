@@ -0,0 +1,118 @@
+/*
+ * Dog 2.0 - Hue Driver Benchmarks
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.benchmark;
+
+import it.polito.elite.dog.core.library.model.ControllableDevice;
+import it.polito.elite.dog.core.library.model.DeviceDescriptor;
+import it.polito.elite.dog.core.library.model.DeviceStatus;
+import it.polito.elite.dog.core.library.model.devicecategory.HueBridge;
+
+import org.osgi.framework.BundleContext;
+
+/**
+ * A Hue bridge device living outside of the OSGi framework: commands are
+ * ignored and notifications are only counted.
+ * 
+ * @author bonino
+ * 
+ */
+public class SyntheticHueBridge extends ControllableDevice implements
+		HueBridge
+{
+	// the device id
+	private String deviceId;
+
+	// the device descriptor
+	private DeviceDescriptor descriptor;
+
+	// the number of received notifications
+	private long notifications;
+
+	/**
+	 * Creates a synthetic bridge device
+	 * 
+	 * @param deviceId
+	 *            The device id.
+	 * @param descriptor
+	 *            The device descriptor.
+	 */
+	public SyntheticHueBridge(String deviceId, DeviceDescriptor descriptor)
+	{
+		super(BenchmarkStubs.stub(BundleContext.class), descriptor);
+
+		this.deviceId = deviceId;
+		this.descriptor = descriptor;
+	}
+
+	@Override
+	public String getDeviceId()
+	{
+		return this.deviceId;
+	}
+
+	@Override
+	public DeviceDescriptor getDeviceDescriptor()
+	{
+		return this.descriptor;
+	}
+
+	/**
+	 * @return the number of notifications received so far
+	 */
+	public long getNotifications()
+	{
+		return this.notifications;
+	}
+
+	@Override
+	public DeviceStatus getState()
+	{
+		return null;
+	}
+
+	@Override
+	public void updateStatus()
+	{
+		this.notifications++;
+	}
+
+	@Override
+	public void stopPushLinkAuth()
+	{
+		// commands are not used by benchmarks
+	}
+
+	@Override
+	public void startPushLinkAuth()
+	{
+		// commands are not used by benchmarks
+	}
+
+	@Override
+	public void notifyDeactivatedPushLinkAuth()
+	{
+		this.notifications++;
+	}
+
+	@Override
+	public void notifyActivatedPushLinkAuth()
+	{
+		this.notifications++;
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * Dog 2.0 - Hue Driver Benchmarks
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.benchmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import it.polito.elite.dog.drivers.hue.network.HueCommandFuture;
+import it.polito.elite.dog.drivers.hue.network.HueNetworkDriver;
+import it.polito.elite.dog.drivers.hue.network.info.HueDeviceIdentifier;
+import it.polito.elite.dog.drivers.hue.network.interfaces.HueConnectionListener;
+import it.polito.elite.dog.drivers.hue.simulator.HueBridgeSimulator;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+
+import com.philips.lighting.model.PHBridge;
+import com.philips.lighting.model.PHLightState;
+
+/**
+ * Drives a {@link HueBridgeSimulator} running on the loopback interface
+ * through the network driver command queue, checking that pending updates of
+ * the same light are merged and that each light receives its updates in
+ * submission order. The simulator answers with a jittered latency, so that a
+ * reordering would show up as a stale final state.
+ * 
+ * @author bonino
+ * 
+ */
+public class SimulatedBridgeTest
+{
+	// the time to wait for connection and responses, in seconds
+	private static final long TIMEOUT_SECONDS = 30;
+
+	// the number of lights on the bridge
+	private static final int LIGHTS = 3;
+
+	// the bridge simulator
+	private HueBridgeSimulator simulator;
+
+	// the network driver
+	private HueNetworkDriver network;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		// start the simulator, with a jittered latency and the default rate
+		// limits
+		this.simulator = new HueBridgeSimulator(LIGHTS);
+		this.simulator.setLatency(20, 20);
+		this.simulator.start();
+
+		// start the network driver, without fan-in so that every light is
+		// addressed on its own
+		this.network = new HueNetworkDriver();
+		this.network.activate(BenchmarkStubs.stub(BundleContext.class));
+
+		Hashtable<String, Object> configuration = new Hashtable<String, Object>();
+		configuration.put(HueNetworkDriver.MAX_COMMANDS_PER_SECOND, "10");
+		configuration.put(HueNetworkDriver.FAN_IN_MIN_LIGHTS, "0");
+		this.network.updated(configuration);
+
+		// connect to the simulator
+		final CountDownLatch connected = new CountDownLatch(1);
+		this.network.connectToBridge(this.simulator.getBridgeIp(),
+				new HueConnectionListener()
+				{
+					@Override
+					public void onBridgeConnected(PHBridge bridge)
+					{
+						connected.countDown();
+					}
+
+					@Override
+					public void onBridgeDisconnected()
+					{
+						// intentionally left empty
+					}
+
+					@Override
+					public void onCacheUpdated(int flag, PHBridge bridge)
+					{
+						// intentionally left empty
+					}
+
+					@Override
+					public void onAuthenticationRequired()
+					{
+						// intentionally left empty
+					}
+				});
+
+		assertTrue("Unable to connect to the simulator",
+				connected.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+	}
+
+	@After
+	public void tearDown()
+	{
+		this.network.deactivate();
+		this.simulator.stop();
+	}
+
+	@Test
+	public void pendingUpdatesOfALightAreMerged() throws Exception
+	{
+		String bridgeIp = this.simulator.getBridgeIp();
+		HueDeviceIdentifier device = new HueDeviceIdentifier("1", bridgeIp);
+		long sentBefore = this.simulator.getLightCommandCount();
+
+		// submit a burst of updates, faster than the bridge can take them
+		int updates = 10;
+		List<HueCommandFuture> futures = new ArrayList<HueCommandFuture>();
+		for (int i = 0; i < updates; i++)
+			futures.add(this.network.submitLightState(device,
+					this.brightness(100 + i)));
+
+		// every update is acknowledged, either alone or merged
+		for (HueCommandFuture future : futures)
+			assertTrue(future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+		// the bridge received fewer commands than submitted, and ended up in
+		// the last submitted state
+		assertTrue(this.network.getMergedCommandCount(bridgeIp) > 0);
+		assertTrue(this.simulator.getLightCommandCount() - sentBefore < updates);
+		assertEquals(100 + updates - 1, this.simulator.getLight("1")
+				.getBrightness());
+	}
+
+	@Test
+	public void updatesOfEachLightKeepTheirOrder() throws Exception
+	{
+		String bridgeIp = this.simulator.getBridgeIp();
+
+		HueDeviceIdentifier[] devices = new HueDeviceIdentifier[LIGHTS];
+		for (int i = 0; i < LIGHTS; i++)
+			devices[i] = new HueDeviceIdentifier(String.valueOf(i + 1),
+					bridgeIp);
+
+		// interleave the updates of all the lights, waiting a bit between
+		// rounds so that some are sent while others are still pending
+		int rounds = 5;
+		List<HueCommandFuture> futures = new ArrayList<HueCommandFuture>();
+		for (int round = 0; round < rounds; round++)
+		{
+			for (int i = 0; i < LIGHTS; i++)
+				futures.add(this.network.submitLightState(devices[i],
+						this.brightness(this.value(round, i))));
+
+			Thread.sleep(30);
+		}
+
+		// every update is acknowledged
+		for (HueCommandFuture future : futures)
+			assertTrue(future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+		// each light ended up in its last submitted state
+		for (int i = 0; i < LIGHTS; i++)
+			assertEquals(this.value(rounds - 1, i),
+					this.simulator.getLight(String.valueOf(i + 1))
+							.getBrightness());
+	}
+
+	/**
+	 * Builds a light state setting the given brightness
+	 * 
+	 * @param brightness
+	 *            The brightness to set.
+	 * @return the light state
+	 */
+	private PHLightState brightness(int brightness)
+	{
+		PHLightState lightState = new PHLightState();
+		lightState.setOn(true);
+		lightState.setBrightness(brightness);
+		return lightState;
+	}
+
+	/**
+	 * @return the brightness sent to the given light at the given round,
+	 *         distinct for every light and round
+	 */
+	private int value(int round, int light)
+	{
+		return 10 + round * 10 + light;
+	}
+}
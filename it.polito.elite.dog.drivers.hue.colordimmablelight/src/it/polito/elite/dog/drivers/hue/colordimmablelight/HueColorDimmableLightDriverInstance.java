@@ -35,12 +35,17 @@ import it.polito.elite.dog.core.library.model.statevalue.OnStateValue;
 import it.polito.elite.dog.core.library.model.statevalue.SaturationStateValue;
 import it.polito.elite.dog.core.library.model.statevalue.StateValue;
 import it.polito.elite.dog.drivers.hue.gateway.HueGatewayDriverInstance;
+import it.polito.elite.dog.drivers.hue.network.HueCommandFuture;
+import it.polito.elite.dog.drivers.hue.network.HueDeviceIndex;
 import it.polito.elite.dog.drivers.hue.network.HueDriverInstance;
 import it.polito.elite.dog.drivers.hue.network.info.HueInfo;
+import it.polito.elite.dog.drivers.hue.network.info.HueLightFingerprint;
+import it.polito.elite.dog.drivers.hue.network.interfaces.HueCommandListener;
 import it.polito.elite.dog.drivers.hue.network.interfaces.HueNetwork;
 
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javax.measure.DecimalMeasure;
 import javax.measure.Measure;
@@ -62,6 +67,18 @@ import com.philips.lighting.model.PHLightState;
 public class HueColorDimmableLightDriverInstance extends HueDriverInstance
 		implements ColorDimmableLight
 {
+	// the keys of the device states, computed once
+	private static final String ON_OFF_STATE = OnOffState.class
+			.getSimpleName();
+	private static final String LEVEL_STATE = LevelState.class.getSimpleName();
+	private static final String COLOR_STATE = ColorStateHSB.class
+			.getSimpleName();
+
+	// the attributes handled by this driver
+	private static final int HANDLED_ATTRIBUTES = HueLightFingerprint.ON
+			| HueLightFingerprint.BRIGHTNESS | HueLightFingerprint.HUE
+			| HueLightFingerprint.SATURATION;
+
 	// store the lamp local id
 	private String localId;
 
@@ -71,12 +88,43 @@ public class HueColorDimmableLightDriverInstance extends HueDriverInstance
 	// store the step percentage, default 5%;
 	private int stepPercentage = 5;
 
+	// the time for which the brightness reached by steps prevails over the
+	// (possibly stale) brightness cached by the bridge, after the last step
+	// has been acknowledged, in milliseconds
+	private static final long STEP_SETTLE_MILLIS = 2000;
+
+	// the brightness reached by the steps, negative if no step is being
+	// applied, guarded by the step lock
+	private int targetBrightness = -1;
+
+	// the number of step commands not yet answered by the bridge, guarded by
+	// the step lock
+	private int pendingSteps;
+
+	// the time at which the last step command was answered, in nanoseconds,
+	// guarded by the step lock
+	private long lastStepTime;
+
+	// the step lock
+	private Object stepLock = new Object();
+
+	// completes step commands
+	private HueCommandListener stepListener;
+
 	// the set of scenes to which the device belongs
 	private Set<Integer> scenes;
 
 	// the set of groups to which the device belongs
 	private Set<Integer> groups;
 
+	// the latest known attribute values, unknown values are negative; the
+	// Dog device status is only built from them when requested; the
+	// brightness is guarded by the step lock
+	private int currentHue = -1;
+	private int currentSaturation = -1;
+	private int currentBrightness = -1;
+	private boolean currentOn = false;
+
 	public HueColorDimmableLightDriverInstance(HueNetwork hueNetwork,
 			ControllableDevice device, String localId,
 			HueGatewayDriverInstance gateway, int stepPercentage,
@@ -91,161 +139,250 @@ public class HueColorDimmableLightDriverInstance extends HueDriverInstance
 		// store the local id of this lamp
 		this.localId = localId;
 
+		// store the step percentage, if configured
+		if (stepPercentage > 0)
+			this.stepPercentage = stepPercentage;
+
+		// create the listener of step commands
+		this.stepListener = new HueCommandListener()
+		{
+
+			@Override
+			public void onCommandCompleted(HueCommandFuture command)
+			{
+				stepCompleted(command.isSuccessful());
+			}
+		};
+
 		// initialize the scenes and groups sets
 		this.scenes = new HashSet<Integer>();
 		this.groups = new HashSet<Integer>();
-
-		// initialize the state
-		this.initializeStates();
 	}
 
-	private void initializeStates()
+	@Override
+	public void stepDown()
 	{
-		// prepare the device state map
-		this.currentState = new DeviceStatus(this.device.getDeviceId());
-
-		// prepare the device state
-		// on/off
-		OnOffState onoff = new OnOffState(new OffStateValue());
-
-		// level state
-		LevelState brightnessLevel = new LevelState(new LevelStateValue());
-
-		// HSB state
-		ColorStateHSB colorState = new ColorStateHSB(new HueStateValue(),
-				new SaturationStateValue(), new BrightnessStateValue());
-
-		// add the on/off state
-		this.currentState.setState(OnOffState.class.getSimpleName(), onoff);
-
-		// add the brightnes state
-		this.currentState.setState(LevelState.class.getSimpleName(),
-				brightnessLevel);
-
-		// add the HSB state
-		this.currentState.setState(ColorStateHSB.class.getSimpleName(),
-				colorState);
+		// decrease luminosity by one step
+		this.step(-1);
 	}
 
 	@Override
-	public void stepDown()
+	public void stepUp()
 	{
-		// decrease luminosity by one step
+		// increase luminosity by one step
+		this.step(1);
+	}
 
+	/**
+	 * Changes the lamp brightness by the given number of steps. Steps are
+	 * accumulated on the brightness reached by the previous steps, rather
+	 * than on the brightness cached by the bridge, which lags behind, so that
+	 * no step is lost when steps come in rapid succession; the new level and
+	 * color are notified at once. The resulting absolute brightness is queued,
+	 * and steps not yet sent to the bridge are merged into a single command.
+	 * 
+	 * @param steps
+	 *            The number of steps, negative to decrease the brightness.
+	 */
+	private void step(int steps)
+	{
 		// get the bridge object (asks it to the network driver to get the most
-		// updated version) TODO: check if the received reference is kept up to
-		// date
+		// updated version)
 		PHBridge bridge = this.gateway.getBridge();
 
 		// check not null
 		if (bridge != null)
 		{
+			int brightness;
 
-			// get the light
-			PHLight light = bridge.getResourceCache().getLights()
-					.get(this.localId);
-
-			// get the latest light state
-			PHLightState lightState = light.getLastKnownLightState();
+			synchronized (this.stepLock)
+			{
+				// start from the brightness reached by previous steps, if any,
+				// or from the latest known brightness
+				if (this.isStepping())
+					brightness = this.targetBrightness;
+				else if (this.currentBrightness >= 0)
+					brightness = this.currentBrightness;
+				else
+					brightness = this.getLight(bridge)
+							.getLastKnownLightState().getBrightness();
+
+				// apply the steps
+				brightness = (int) (brightness + steps
+						* (HueInfo.MAX_BRIGHTNESS
+								* (double) this.stepPercentage / 100.0));
+
+				// clamp the brightness
+				brightness = Math.max(0,
+						Math.min(HueInfo.MAX_BRIGHTNESS, brightness));
+
+				// track the step until answered
+				this.targetBrightness = brightness;
+				this.pendingSteps++;
+
+				// the brightness reached by the step is the current one
+				this.currentBrightness = brightness;
+			}
 
 			// create a new light state
 			PHLightState newLightState = new PHLightState();
 
-			// get the brightness
-			int brightness = lightState.getBrightness();
-
-			// decrease the brightness by step percentage, if less than 0 turn
-			// the
-			// lamp off
-			brightness = (int) (brightness - (HueInfo.MAX_BRIGHTNESS
-					* (double) this.stepPercentage / 100.0));
-
 			if (brightness <= 0)
-			{
 				// turn off the lamp
 				newLightState.setOn(false);
-
-				// set brightness at zer
-				brightness = 0;
-			}
+			else if (!this.currentOn)
+				// turn on the lamp
+				newLightState.setOn(true);
 
 			// set the new light state
 			newLightState.setBrightness(brightness);
 
-			// set the new brightness
-			bridge.updateLightState(light, newLightState);
+			// set the new brightness (through the bridge command queue)
+			this.writeLightState(newLightState).addListener(this.stepListener);
 
-			// notify level change
-			this.notifyChangedLevel(DecimalMeasure
-					.valueOf(brightness, Unit.ONE));
+			// notify the new level at once
+			Measure<Integer, Dimensionless> level = DecimalMeasure.valueOf(
+					brightness, Unit.ONE);
+			this.notifyChangedLevel(level);
+
+			// notify the new color, whose brightness changed as well
+			HSBColor newColor = new HSBColor(Math.max(this.currentHue, 0),
+					Math.max(this.currentSaturation, 0), brightness);
+			this.notifyChangedColorHSB(newColor);
+			this.notifyChangedColorRGB(newColor.toRGBColor());
 
 			// update the status
 			this.updateStatus();
 		}
 	}
 
-	@Override
-	public void stepUp()
+	/**
+	 * Records the bridge answer to a step command
+	 * 
+	 * @param successful
+	 *            True if the bridge acknowledged the command.
+	 */
+	private void stepCompleted(boolean successful)
 	{
-		// increase luminosity by one step
-
-		// get the bridge object (asks it to the network driver to get the most
-		// updated version) TODO: check if the received reference is kept up to
-		// date
-		PHBridge bridge = this.gateway.getBridge();
+		boolean rollback = false;
 
-		// check not null
-		if (bridge != null)
+		synchronized (this.stepLock)
 		{
+			this.pendingSteps--;
+			this.lastStepTime = System.nanoTime();
 
-			// get the light
-			PHLight light = bridge.getResourceCache().getLights()
-					.get(this.localId);
-
-			// get the latest light state
-			PHLightState lightState = light.getLastKnownLightState();
-
-			// create a new light state
-			PHLightState newLightState = new PHLightState();
-
-			// get the brightness
-			int brightness = lightState.getBrightness();
-
-			// decrease the brightness by step percentage, if less than 0 turn
-			// the
-			// lamp off
-			brightness = (int) (brightness + (HueInfo.MAX_BRIGHTNESS
-					* (double) this.stepPercentage / 100.0));
-
-			if (!lightState.isOn())
-				// turn off the lamp
-				newLightState.setOn(true);
-
-			if (brightness >= 0)
+			// the bridge brightness is unknown, trust the cache again
+			if ((!successful) && (this.pendingSteps == 0))
 			{
-				if (brightness >= HueInfo.MAX_BRIGHTNESS)
-					// set brightness at 255
-					brightness = HueInfo.MAX_BRIGHTNESS;
+				this.targetBrightness = -1;
+				rollback = true;
 			}
+		}
 
-			// set the new light state
-			newLightState.setBrightness(brightness);
+		// restore the level from the cache
+		if (rollback)
+			this.restoreLightState();
+	}
 
-			// set the new brightness
-			bridge.updateLightState(light, newLightState);
+	/**
+	 * Checks if steps are being applied, i.e., if step commands are waiting
+	 * for the bridge answer or have been answered recently. Must be called
+	 * holding the step lock.
+	 * 
+	 * @return true if the brightness reached by steps prevails over the
+	 *         cached one
+	 */
+	private boolean isStepping()
+	{
+		if ((this.targetBrightness >= 0)
+				&& (this.pendingSteps == 0)
+				&& ((System.nanoTime() - this.lastStepTime) > TimeUnit.MILLISECONDS
+						.toNanos(STEP_SETTLE_MILLIS)))
+			// settled
+			this.targetBrightness = -1;
+
+		return this.targetBrightness >= 0;
+	}
 
-			// notify level change
-			this.notifyChangedLevel(DecimalMeasure
-					.valueOf(brightness, Unit.ONE));
+	/**
+	 * Filters the brightness reported by the bridge while steps are being
+	 * applied, as the bridge cache might still hold the brightness preceding
+	 * the steps. Must be called holding the step lock.
+	 * 
+	 * @param reportedBrightness
+	 *            The brightness reported by the bridge.
+	 * @return the brightness to consider
+	 */
+	private int filterBrightness(int reportedBrightness)
+	{
+		if (this.isStepping())
+		{
+			// the bridge caught up with the steps
+			if ((reportedBrightness == this.targetBrightness)
+					&& (this.pendingSteps == 0))
+				this.targetBrightness = -1;
 
-			this.updateStatus();
+			// keep the brightness reached by steps
+			return this.currentBrightness;
 		}
+
+		return reportedBrightness;
 	}
 
+	/**
+	 * Provides the handle of the light driven by this instance, from the
+	 * device index or, if not yet indexed, from the bridge resource cache
+	 * 
+	 * @param bridge
+	 *            The bridge holding the light.
+	 * @return the light handle
+	 */
+	private PHLight getLight(PHBridge bridge)
+	{
+		PHLight light = HueDeviceIndex.getInstance().getLight(this.hueDevice);
+
+		return (light != null) ? light : bridge.getResourceCache()
+				.getLights().get(this.localId);
+	}
+
+	/**
+	 * Provides the device status, built from the latest known attribute
+	 * values: the status is only requested by Dog clients, e.g., upon REST
+	 * queries, thus it is not kept for each lamp, nor updated on each bridge
+	 * heartbeat.
+	 */
 	@Override
 	public DeviceStatus getState()
 	{
-		return this.currentState;
+		// read the attribute values
+		boolean on = this.currentOn;
+		int hue = Math.max(this.currentHue, 0);
+		int saturation = Math.max(this.currentSaturation, 0);
+		int brightness = Math.max(this.currentBrightness, 0);
+
+		// prepare the device state map
+		DeviceStatus status = new DeviceStatus(this.device.getDeviceId());
+
+		// add the on/off state
+		status.setState(ON_OFF_STATE, new OnOffState(on ? new OnStateValue()
+				: new OffStateValue()));
+
+		// add the brightness state
+		StateValue levelValue = new LevelStateValue();
+		levelValue.setValue(DecimalMeasure.valueOf(brightness, Unit.ONE));
+		status.setState(LEVEL_STATE, new LevelState(levelValue));
+
+		// add the HSB state
+		StateValue hueValue = new HueStateValue();
+		hueValue.setValue(hue);
+		StateValue saturationValue = new SaturationStateValue();
+		saturationValue.setValue(saturation);
+		StateValue brightnessValue = new BrightnessStateValue();
+		brightnessValue.setValue(brightness);
+		status.setState(COLOR_STATE, new ColorStateHSB(hueValue,
+				saturationValue, brightnessValue));
+
+		return status;
 	}
 
 	@Override
@@ -253,13 +390,27 @@ public class HueColorDimmableLightDriverInstance extends HueDriverInstance
 	{
 		// add the scene
 		this.scenes.add(sceneNumber);
+
+		// store the current lamp state in the matching bridge scene
+		this.gateway.getSceneRegistry().addLight(sceneNumber, this.localId);
+
+		// notify the change
+		this.notifyStoredScene(sceneNumber);
 	}
 
 	@Override
 	public void deleteScene(Integer sceneNumber)
 	{
 		// remove the scene
-		this.scenes.remove(sceneNumber);
+		if (this.scenes.remove(sceneNumber))
+		{
+			// leave the matching bridge scene
+			this.gateway.getSceneRegistry().removeLight(sceneNumber,
+					this.localId);
+
+			// notify the change
+			this.notifyDeletedScene(sceneNumber);
+		}
 	}
 
 	@Override
@@ -284,8 +435,7 @@ public class HueColorDimmableLightDriverInstance extends HueDriverInstance
 		{
 			// not already on
 			// get the light
-			PHLight light = bridge.getResourceCache().getLights()
-					.get(this.localId);
+			PHLight light = this.getLight(bridge);
 
 			// get the latest light state
 			PHLightState lightState = light.getLastKnownLightState();
@@ -299,8 +449,9 @@ public class HueColorDimmableLightDriverInstance extends HueDriverInstance
 				// set the state at on
 				newLightState.setOn(true);
 
-				// updated the state on the real device
-				bridge.updateLightState(light, newLightState);
+				// updated the state on the real device (through the bridge
+				// command queue)
+				this.writeLightState(newLightState);
 			}
 		}
 
@@ -310,14 +461,28 @@ public class HueColorDimmableLightDriverInstance extends HueDriverInstance
 	public void deleteGroup(Integer groupID)
 	{
 		// delete the group
-		this.groups.remove(groupID);
+		if (this.groups.remove(groupID))
+		{
+			// leave the matching bridge group
+			this.gateway.getGroupRegistry().removeLight(groupID, this.localId);
+
+			// notify the change
+			this.notifyLeftGroup(groupID);
+		}
 	}
 
 	@Override
 	public void storeGroup(Integer groupID)
 	{
 		// add the group
-		this.groups.add(groupID);
+		if (this.groups.add(groupID))
+		{
+			// join the matching bridge group
+			this.gateway.getGroupRegistry().addLight(groupID, this.localId);
+
+			// notify the change
+			this.notifyJoinedGroup(groupID);
+		}
 	}
 
 	@Override
@@ -335,8 +500,7 @@ public class HueColorDimmableLightDriverInstance extends HueDriverInstance
 		{
 			// not already on
 			// get the light
-			PHLight light = bridge.getResourceCache().getLights()
-					.get(this.localId);
+			PHLight light = this.getLight(bridge);
 
 			// get the latest light state
 			PHLightState lightState = light.getLastKnownLightState();
@@ -350,8 +514,9 @@ public class HueColorDimmableLightDriverInstance extends HueDriverInstance
 				// set the state at on
 				newLightState.setOn(false);
 
-				// updated the state on the real device
-				bridge.updateLightState(light, newLightState);
+				// updated the state on the real device (through the bridge
+				// command queue)
+				this.writeLightState(newLightState);
 			}
 		}
 
@@ -408,71 +573,85 @@ public class HueColorDimmableLightDriverInstance extends HueDriverInstance
 	@Override
 	public void newMessageFromHouse(PHLightState lastKnownLightState)
 	{
-		// handle state changes
+		// handle the whole state
+		this.newMessageFromHouse(lastKnownLightState, HueLightFingerprint.ALL);
+	}
 
-		// on/off
-		if (lastKnownLightState.isOn())
-		{
-			// notify
-			this.notifyOn();
+	@Override
+	public void newMessageFromHouse(PHLightState lastKnownLightState,
+			int changedAttributes)
+	{
+		// handle state changes, notifications are only sent for attributes
+		// which actually changed with respect to the current state. In steady
+		// state (nothing changed) this method does not allocate any object.
+		if ((changedAttributes & HANDLED_ATTRIBUTES) == 0)
+			return;
 
-			// update the on/off state
-			OnOffState onoff = new OnOffState(new OnStateValue());
-			this.currentState.setState(OnOffState.class.getSimpleName(), onoff);
+		boolean changed = false;
+
+		// on/off
+		boolean on = Boolean.TRUE.equals(lastKnownLightState.isOn());
 
-		} else
+		if (on != this.currentOn)
 		{
-			// notify
-			this.notifyOff();
+			this.currentOn = on;
 
-			// update the on/off state
-			OnOffState onoff = new OnOffState(new OffStateValue());
-			this.currentState.setState(OnOffState.class.getSimpleName(), onoff);
+			// notify the new on/off state
+			if (on)
+				this.notifyOn();
+			else
+				this.notifyOff();
+
+			changed = true;
 		}
 
 		// handle HSB state
-		StateValue stateValues[] = this.currentState.getState(
-				ColorStateHSB.class.getSimpleName()).getCurrentStateValue();
+		int hue = lastKnownLightState.getHue();
+		int saturation = lastKnownLightState.getSaturation();
+		int brightness;
+		boolean brightnessChanged;
 
-		for (StateValue value : stateValues)
+		synchronized (this.stepLock)
 		{
-			if (value.getName().equals(
-					BrightnessStateValue.class.getSimpleName()))
-			{
-				value.setValue(lastKnownLightState.getBrightness());
-			} else if (value.getName().equals(
-					SaturationStateValue.class.getSimpleName()))
-			{
-				value.setValue(lastKnownLightState.getSaturation());
-			} else if (value.getName().equals(
-					HueStateValue.class.getSimpleName()))
-			{
-				value.setValue(lastKnownLightState.getHue());
-			}
+			// the brightness reached by steps prevails, steps are notified
+			// when applied
+			brightness = this.filterBrightness(lastKnownLightState
+					.getBrightness());
+			brightnessChanged = (brightness != this.currentBrightness);
+			this.currentBrightness = brightness;
 		}
 
-		// handle HSB notification
-		HSBColor newColor = new HSBColor(lastKnownLightState.getHue(), lastKnownLightState.getSaturation(),
-				lastKnownLightState.getBrightness());
-		this.notifyChangedColorHSB(newColor);
-		this.notifyChangedColorRGB(newColor.toRGBColor());
+		if ((hue != this.currentHue) || (saturation != this.currentSaturation)
+				|| brightnessChanged)
+		{
+			// update the attribute values
+			this.currentHue = hue;
+			this.currentSaturation = saturation;
+
+			// handle HSB notification, the RGB conversion is only computed
+			// here, upon actual color changes
+			HSBColor newColor = new HSBColor(hue, saturation, brightness);
+			this.notifyChangedColorHSB(newColor);
+			this.notifyChangedColorRGB(newColor.toRGBColor());
+			changed = true;
+		}
 
 		// handle level state
-		Measure<Integer, Dimensionless> level = DecimalMeasure.valueOf(
-				lastKnownLightState.getBrightness(), Unit.ONE);
-
-		this.currentState.getState(LevelState.class.getSimpleName())
-				.getCurrentStateValue()[0].setValue(level);
+		if (brightnessChanged)
+		{
+			Measure<Integer, Dimensionless> level = DecimalMeasure.valueOf(
+					brightness, Unit.ONE);
 
-		// handle level notification
-		this.notifyChangedLevel(level);
+			// handle level notification
+			this.notifyChangedLevel(level);
+		}
 
-		// update the status
-		this.updateStatus();
+		// update the status, once and only if something changed
+		if (changed)
+			this.updateStatus();
 
 	}
 
-
 	@Override
 	public void setColorHSB(HSBColor colorHSB)
 	{
@@ -484,11 +663,6 @@ public class HueColorDimmableLightDriverInstance extends HueDriverInstance
 		// check not null
 		if (bridge != null)
 		{
-
-			// get the light
-			PHLight light = bridge.getResourceCache().getLights()
-					.get(this.localId);
-
 			// prepare the new lamp state
 			PHLightState newLightState = new PHLightState();
 
@@ -497,14 +671,10 @@ public class HueColorDimmableLightDriverInstance extends HueDriverInstance
 			newLightState.setSaturation(colorHSB.getSaturation());
 			newLightState.setBrightness(colorHSB.getBrightness());
 
-			// update the real device
-			bridge.updateLightState(light, newLightState);
-
-			// notify...
-
-			// update the status
-			this.updateStatus();
-
+			// update the real device (through the bridge command queue), the
+			// new color is notified, and the status updated, once
+			// acknowledged
+			this.writeLightState(newLightState);
 		}
 	}
 
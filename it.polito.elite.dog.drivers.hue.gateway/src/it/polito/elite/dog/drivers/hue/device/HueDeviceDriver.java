@@ -28,10 +28,11 @@ import it.polito.elite.dog.drivers.hue.network.HueDriverInstance;
 import it.polito.elite.dog.drivers.hue.network.info.HueInfo;
 import it.polito.elite.dog.drivers.hue.network.interfaces.HueNetwork;
 
+import java.util.Collections;
 import java.util.Dictionary;
-import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.osgi.framework.BundleContext;
@@ -62,8 +63,13 @@ public abstract class HueDeviceDriver implements Driver, ManagedService
 	// a reference to the gateway driver
 	protected AtomicReference<HueGatewayDriver> gateway;
 
-	// the list of instances controlled / spawned by this driver
-	protected Hashtable<String, HueDriverInstance> managedInstances;
+	// the list of instances controlled / spawned by this driver, indexed by
+	// device id
+	protected ConcurrentHashMap<String, HueDriverInstance> managedInstances;
+
+	// the ids of the devices being attached, so that each device is attached
+	// once even if attachments run concurrently
+	private Set<String> attachingDevices;
 
 	// the registration object needed to handle the life span of this bundle in
 	// the OSGi framework (it is a ServiceRegistration object for use by the
@@ -92,10 +98,14 @@ public abstract class HueDeviceDriver implements Driver, ManagedService
 
 		// initialize the list of managed device instances (indexed by device
 		// id)
-		this.managedInstances = new Hashtable<String, HueDriverInstance>();
-
-		// intialize the device categories matched by this driver
-		this.deviceCategories = new HashSet<String>();
+		this.managedInstances = new ConcurrentHashMap<String, HueDriverInstance>();
+		this.attachingDevices = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		// intialize the device categories matched by this driver, read
+		// without locking while matching
+		this.deviceCategories = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 	}
 
 	/**
@@ -118,6 +128,10 @@ public abstract class HueDeviceDriver implements Driver, ManagedService
 	{
 		// remove the service from the OSGi framework
 		this.unRegisterHueDeviceDriver();
+
+		// cancel the tasks scheduled by the managed instances
+		for (HueDriverInstance instance : this.managedInstances.values())
+			instance.cancelScheduledTasks();
 	}
 
 	public void addedNetworkDriver(HueNetwork network)
@@ -169,12 +183,19 @@ public abstract class HueDeviceDriver implements Driver, ManagedService
 		}
 	}
 
+	/**
+	 * Matches the given device, without locking: the OSGi device manager can
+	 * match several devices at the same time.
+	 */
 	@SuppressWarnings("rawtypes")
 	@Override
-	public synchronized int match(ServiceReference reference) throws Exception
+	public int match(ServiceReference reference) throws Exception
 	{
 		int matchValue = Device.MATCH_NONE;
 
+		// the gateway driver might be going away
+		HueGatewayDriver gatewayDriver = this.gateway.get();
+
 		// get the given device category
 		String deviceCategory = (String) reference
 				.getProperty(DeviceCostants.DEVICE_CATEGORY);
@@ -193,7 +214,8 @@ public abstract class HueDeviceDriver implements Driver, ManagedService
 			if (manifacturer != null && (gateway != null)
 					&& (manifacturer.equals(HueInfo.MANUFACTURER))
 					&& (this.deviceCategories.contains(deviceCategory))
-					&& (this.gateway.get().isGatewayAvailable(gateway)))
+					&& (gatewayDriver != null)
+					&& (gatewayDriver.isGatewayAvailable(gateway)))
 			{
 				matchValue = Controllable.MATCH_MANUFACTURER
 						+ Controllable.MATCH_TYPE;
@@ -204,59 +226,93 @@ public abstract class HueDeviceDriver implements Driver, ManagedService
 		return matchValue;
 	}
 
+	/**
+	 * Attaches the given device, without locking the driver: devices on
+	 * different bridges are attached concurrently, while each device id is
+	 * attached at most once.
+	 */
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	@Override
-	public synchronized String attach(ServiceReference reference)
-			throws Exception
+	public String attach(ServiceReference reference) throws Exception
 	{
 		// get the referenced device
 		ControllableDevice device = ((ControllableDevice) context
 				.getService(reference));
 
-		// check if not already attached
-		if (!this.managedInstances.containsKey(device.getDeviceId()))
-		{
-			// get the gateway to which the device is connected
-			String gateway = (String) device.getDeviceDescriptor().getGateway();
+		String deviceId = device.getDeviceId();
+
+		boolean attaching = false;
 
-			// check if the gateway is available
-			if (this.gateway.get().isGatewayAvailable(gateway))
+		// reserve the device, unless being attached by another thread
+		if (this.attachingDevices.add(deviceId))
+		{
+			try
 			{
-				// get the corresponding end point set
-				Set<String> localIdSet = device.getDeviceDescriptor()
-						.getSimpleConfigurationParams().get(HueInfo.LOCAL_ID);
-
-				// get the nodeId
-				String sLocalID = localIdSet.iterator().next();
-
-				// create a new driver instance
-				HueDriverInstance driverInstance = this
-						.createHueDriverInstance(network.get(), device,
-								sLocalID, this.gateway.get()
-								.getSpecificGateway(gateway), context);
-
-				// connect this driver instance with the device
-				device.setDriver(driverInstance);
-				
-				// mark the device as known
-				this.gateway.get().getSpecificGateway(gateway).addDevice(sLocalID,driverInstance);
-
-				// store a reference to the connected driver
-				synchronized (this.managedInstances)
+				// check if not already attached: checked once reserved, as a
+				// device is stored as managed before its reservation is
+				// released
+				if (!this.managedInstances.containsKey(deviceId))
 				{
-					this.managedInstances.put(device.getDeviceId(),
-							driverInstance);
+					attaching = true;
+					this.attachDevice(device);
 				}
 			}
+			finally
+			{
+				this.attachingDevices.remove(deviceId);
+			}
 		}
-		else
-		{
+
+		// already attached, or being attached
+		if (!attaching)
 			this.context.ungetService(reference);
-		}
 
 		return null;
 	}
 
+	/**
+	 * Creates the driver instance of the given device, reserved for the
+	 * calling thread
+	 * 
+	 * @param device
+	 *            The device to attach.
+	 */
+	private void attachDevice(ControllableDevice device)
+	{
+		// get the gateway to which the device is connected
+		String gateway = (String) device.getDeviceDescriptor().getGateway();
+
+		// check if the gateway is available
+		HueGatewayDriver gatewayDriver = this.gateway.get();
+		if ((gatewayDriver != null)
+				&& (gatewayDriver.isGatewayAvailable(gateway)))
+		{
+			// get the corresponding end point set
+			Set<String> localIdSet = device.getDeviceDescriptor()
+					.getSimpleConfigurationParams().get(HueInfo.LOCAL_ID);
+
+			// get the nodeId
+			String sLocalID = localIdSet.iterator().next();
+
+			// get the gateway instance
+			HueGatewayDriverInstance gatewayInstance = gatewayDriver
+					.getSpecificGateway(gateway);
+
+			// create a new driver instance
+			HueDriverInstance driverInstance = this.createHueDriverInstance(
+					network.get(), device, sLocalID, gatewayInstance, context);
+
+			// connect this driver instance with the device
+			device.setDriver(driverInstance);
+
+			// mark the device as known
+			gatewayInstance.addDevice(sLocalID, driverInstance);
+
+			// store a reference to the connected driver
+			this.managedInstances.put(device.getDeviceId(), driverInstance);
+		}
+	}
+
 	public abstract HueDriverInstance createHueDriverInstance(
 			HueNetwork hueNetwork, ControllableDevice device, String sLocalID,
 			HueGatewayDriverInstance hueGateway, BundleContext context);
@@ -0,0 +1,200 @@
+/*
+ * Dog 2.0 - Hue Gateway Driver
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.gateway;
+
+import it.polito.elite.dog.drivers.hue.network.HueDriverInstance;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The devices attached to a Hue gateway, indexed by light local id. The
+ * registry is written by the OSGi attach threads and read by the bridge
+ * heartbeat thread without locking: lookups take a single hash probe and the
+ * iteration over the attached devices never fails, though it might not
+ * reflect the changes made meanwhile.
+ * 
+ * Additions and removals are published to the registry listeners, so that
+ * the indexes derived from the attached devices can be kept up to date
+ * incrementally.
+ * 
+ * @author bonino
+ * 
+ */
+public class HueDeviceRegistry
+{
+	// the attached devices, indexed by light local id
+	private ConcurrentHashMap<String, HueDriverInstance> devices;
+
+	// the registry listeners
+	private CopyOnWriteArrayList<Listener> listeners;
+
+	/**
+	 * Creates an empty registry
+	 */
+	public HueDeviceRegistry()
+	{
+		this.devices = new ConcurrentHashMap<String, HueDriverInstance>();
+		this.listeners = new CopyOnWriteArrayList<Listener>();
+	}
+
+	/**
+	 * Adds a listener notified of the devices added and removed from now on
+	 * 
+	 * @param listener
+	 *            The listener to add.
+	 */
+	public void addListener(Listener listener)
+	{
+		this.listeners.addIfAbsent(listener);
+	}
+
+	/**
+	 * Removes a registry listener
+	 * 
+	 * @param listener
+	 *            The listener to remove.
+	 */
+	public void removeListener(Listener listener)
+	{
+		this.listeners.remove(listener);
+	}
+
+	/**
+	 * Records the device attached to the light having the given local id,
+	 * replacing the device previously attached, if any
+	 * 
+	 * @param localId
+	 *            The light local id.
+	 * @param driverInstance
+	 *            The driver instance of the attached device.
+	 * @return the driver instance previously attached, if any
+	 */
+	public HueDriverInstance add(String localId,
+			HueDriverInstance driverInstance)
+	{
+		HueDriverInstance previous = this.devices.put(localId, driverInstance);
+
+		// notify the listeners, if the device changed
+		if (previous != driverInstance)
+		{
+			if (previous != null)
+				for (Listener listener : this.listeners)
+					listener.deviceRemoved(localId, previous);
+
+			for (Listener listener : this.listeners)
+				listener.deviceAdded(localId, driverInstance);
+		}
+
+		return previous;
+	}
+
+	/**
+	 * Forgets the device attached to the light having the given local id
+	 * 
+	 * @param localId
+	 *            The light local id.
+	 * @return the driver instance of the removed device, or null if no device
+	 *         was attached
+	 */
+	public HueDriverInstance remove(String localId)
+	{
+		HueDriverInstance removed = this.devices.remove(localId);
+
+		// notify the listeners
+		if (removed != null)
+			for (Listener listener : this.listeners)
+				listener.deviceRemoved(localId, removed);
+
+		return removed;
+	}
+
+	/**
+	 * Provides the device attached to the light having the given local id
+	 * 
+	 * @param localId
+	 *            The light local id.
+	 * @return the driver instance, or null if no device is attached
+	 */
+	public HueDriverInstance get(String localId)
+	{
+		return this.devices.get(localId);
+	}
+
+	/**
+	 * Checks if a device is attached to the light having the given local id
+	 * 
+	 * @param localId
+	 *            The light local id.
+	 * @return true if a device is attached
+	 */
+	public boolean contains(String localId)
+	{
+		return this.devices.containsKey(localId);
+	}
+
+	/**
+	 * @return a live view of the attached devices, safe to iterate while
+	 *         devices are added or removed
+	 */
+	public Collection<HueDriverInstance> getDevices()
+	{
+		return this.devices.values();
+	}
+
+	/**
+	 * @return the number of attached devices
+	 */
+	public int size()
+	{
+		return this.devices.size();
+	}
+
+	/**
+	 * Receives the devices added to and removed from a
+	 * {@link HueDeviceRegistry}, on the thread changing the registry
+	 * 
+	 * @author bonino
+	 * 
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called once a device has been added
+		 * 
+		 * @param localId
+		 *            The light local id.
+		 * @param driverInstance
+		 *            The driver instance of the added device.
+		 */
+		public void deviceAdded(String localId, HueDriverInstance driverInstance);
+
+		/**
+		 * Called once a device has been removed
+		 * 
+		 * @param localId
+		 *            The light local id.
+		 * @param driverInstance
+		 *            The driver instance of the removed device.
+		 */
+		public void deviceRemoved(String localId,
+				HueDriverInstance driverInstance);
+	}
+}
@@ -25,6 +25,7 @@ import it.polito.elite.dog.core.library.model.devicecategory.HueBridge;
 import it.polito.elite.dog.core.library.util.LogHelper;
 import it.polito.elite.dog.drivers.hue.huemanager.HueManagerDriver;
 import it.polito.elite.dog.drivers.hue.huemanager.HueManagerDriverInstance;
+import it.polito.elite.dog.drivers.hue.network.HueDescriptorBuilder;
 import it.polito.elite.dog.drivers.hue.network.info.HueInfo;
 import it.polito.elite.dog.drivers.hue.network.interfaces.HueNetwork;
 
@@ -130,6 +131,19 @@ public class HueGatewayDriver implements Driver, ManagedService
 	{
 		// remove the service from the OSGi framework
 		this.unRegister();
+
+		// cancel the tasks scheduled by the gateway instances, saving the
+		// latest light states and removing their lights from the device index
+		for (HueGatewayDriverInstance instance : this.connectedGateways
+				.values())
+		{
+			instance.cancelScheduledTasks();
+			instance.saveStateSnapshot();
+			instance.releaseDeviceIndex();
+		}
+
+		// discard the device templates parsed for the gateway instances
+		HueDescriptorBuilder.release(this.context.getBundle());
 	}
 
 	/**
@@ -205,6 +219,10 @@ public class HueGatewayDriver implements Driver, ManagedService
 	{
 		this.deviceFactory.set(deviceFactory);
 
+		// let the gateways discover the lights found meanwhile
+		for (HueGatewayDriverInstance instance : this.connectedGateways
+				.values())
+			instance.setDeviceFactory(deviceFactory);
 	}
 
 	/**
@@ -214,8 +232,15 @@ public class HueGatewayDriver implements Driver, ManagedService
 	public void removedDeviceFactory(DeviceFactory deviceFactory)
 	{
 		if (this.deviceFactory.compareAndSet(deviceFactory, null))
+		{
+			// stop discovery on the gateways
+			for (HueGatewayDriverInstance instance : this.connectedGateways
+					.values())
+				instance.setDeviceFactory(null);
+
 			// unregisters this driver from the OSGi framework
 			unRegister();
+		}
 	}
 
 	/**
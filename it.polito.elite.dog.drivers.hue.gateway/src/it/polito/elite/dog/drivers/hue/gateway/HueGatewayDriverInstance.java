@@ -36,15 +36,29 @@ import it.polito.elite.dog.core.library.model.statevalue.ConnectedStateValue;
 import it.polito.elite.dog.core.library.model.statevalue.DisconnectedStateValue;
 import it.polito.elite.dog.core.library.model.statevalue.NeedingAuthenticationStateValue;
 import it.polito.elite.dog.core.library.util.LogHelper;
+import it.polito.elite.dog.drivers.hue.network.HueCommandFuture;
+import it.polito.elite.dog.drivers.hue.network.HueDescriptorBuilder;
+import it.polito.elite.dog.drivers.hue.network.HueDeviceIndex;
 import it.polito.elite.dog.drivers.hue.network.HueDriverInstance;
+import it.polito.elite.dog.drivers.hue.network.HueLightStateTable;
+import it.polito.elite.dog.drivers.hue.network.info.HueDeviceIdentifier;
 import it.polito.elite.dog.drivers.hue.network.info.HueInfo;
+import it.polito.elite.dog.drivers.hue.network.info.HueLightFingerprint;
 import it.polito.elite.dog.drivers.hue.network.interfaces.HueConnectionListener;
 import it.polito.elite.dog.drivers.hue.network.interfaces.HueNetwork;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.osgi.framework.BundleContext;
 import org.osgi.service.log.LogService;
@@ -57,28 +71,74 @@ import com.philips.lighting.model.PHLightState;
 public class HueGatewayDriverInstance extends HueDriverInstance implements
 		HueBridge, HueConnectionListener
 {
-	// the device factory to use for device (light) creation
-	private DeviceFactory deviceFactory;
+	// the time without light attachments after which the lights already
+	// defined in Dog are deemed attached, in milliseconds
+	public static final long ATTACHMENT_SETTLE_MILLIS = 2000;
 
-	// the device descriptor factory needed to create new device instances.
-	private DeviceDescriptorFactory descriptorFactory;
+	// the device factory to use for device (light) creation, null if not
+	// available
+	private volatile DeviceFactory deviceFactory;
 
-	// a set holding the currently known devices
-	private HashMap<String, HueDriverInstance> knownDevices;
+	// the builder of the descriptors of the discovered lights
+	private HueDescriptorBuilder descriptorBuilder;
+
+	// the currently known (attached) devices, indexed by light local id
+	private HueDeviceRegistry knownDevices;
+
+	// the Dog groups of the attached lights, mirrored on the bridge
+	private HueGroupRegistry groupRegistry;
+
+	// the Dog scenes of the attached lights, stored on the bridge
+	private HueSceneRegistry sceneRegistry;
+
+	// the lights of the bridge, tracked across cache updates
+	private HueLightInventory inventory;
+
+	// the lights held by the bridge cache at the last cache update, reused
+	// across updates, accessed by the thread delivering the bridge events only
+	private PHLight[] bridgeLights = new PHLight[0];
+
+	// the snapshot of the light states, restored at the next startup
+	private HueStateSnapshot stateSnapshot;
+
+	// the index of the lights attached to Dog, across all the bridges
+	private HueDeviceIndex deviceIndex;
+
+	// the index entries of the lights of this bridge attached to Dog, indexed
+	// by light local id, as a live view of the device index
+	private Map<String, HueDeviceIndex.Entry> indexedLights;
 
 	// the drive instance logger
 	private LogHelper logger;
 
-	// the device discovery delay
-	// TODO: find a more "OSGi" way of performing this task (i.e., waiting for
-	// complete device attachment before starting discovery)
+	// the maximum time to wait for the attachment of the lights already
+	// defined in Dog, before starting device discovery
 	private int deviceDiscoveryDelayMillis = 30000;
 	private int pushLinkTimeoutMillis = 30000;
 
-	Timer pushLinkAuthenticationTimer;
+	// the handle of the push-link authentication timeout, if active
+	private ScheduledFuture<?> pushLinkAuthenticationTimeout;
 
-	// the device discovery enabled flag
-	private boolean discoveryEnabled = false;
+	// true once the lights already defined in Dog are deemed attached
+	private volatile boolean discoveryEnabled = false;
+
+	// the lights attached to Dog in a previous run and not yet attached,
+	// skipped by the discovery until the discovery delay expires, null if
+	// none, guarded by this
+	private Set<String> previouslyKnownLights;
+
+	// the lights for which a device has been created, and not yet attached,
+	// guarded by this
+	private Set<String> discoveredLights;
+
+	// the handle of the attachment settle timeout, if active, guarded by this
+	private ScheduledFuture<?> attachmentSettleTimeout;
+
+	// the time of the last light attachment, in nanoseconds, guarded by this
+	private long lastAttachmentTime;
+
+	// the time at which the gateway has been created, in nanoseconds
+	private long creationTime;
 
 	public HueGatewayDriverInstance(HueNetwork hueNetwork,
 			DeviceFactory deviceFactory, ControllableDevice device,
@@ -91,8 +151,27 @@ public class HueGatewayDriverInstance extends HueDriverInstance implements
 		// create the instance logger
 		this.logger = new LogHelper(context);
 
-		// create the set for storing the currently known devices
-		this.knownDevices = new HashMap<String, HueDriverInstance>();
+		// create the registry of the currently known devices
+		this.knownDevices = new HueDeviceRegistry();
+
+		// create the group registry
+		this.groupRegistry = new HueGroupRegistry(this, this.logger);
+
+		// create the scene registry
+		this.sceneRegistry = new HueSceneRegistry(this, this.logger);
+
+		// load the light states saved in the previous run, and keep saving
+		// them periodically
+		this.stateSnapshot = new HueStateSnapshot(
+				context.getDataFile(HueStateSnapshot.getFileName(gatewayAddress)),
+				this.logger);
+		this.stateSnapshot.load();
+		this.scheduleSnapshotSave();
+
+		// keep the per-light data up to date as devices come and go
+		this.deviceIndex = HueDeviceIndex.getInstance();
+		this.indexedLights = this.deviceIndex.getBridgeEntries(this.bridgeIp);
+		this.knownDevices.addListener(new KnownDeviceTracker());
 
 		// store the device factory instance
 		this.deviceFactory = deviceFactory;
@@ -103,37 +182,54 @@ public class HueGatewayDriverInstance extends HueDriverInstance implements
 		// store the push link authentication timeout
 		this.pushLinkTimeoutMillis = pushLinkTimeoutMillis;
 
-		// create the device descriptor factory
-		try
-		{
-			this.descriptorFactory = new DeviceDescriptorFactory(context
-					.getBundle().getEntry("/deviceTemplates"));
-		} catch (Exception e)
-		{
-
-			this.logger.log(LogService.LOG_ERROR,
-					"Error while creating DeviceDescriptorFactory ", e);
-		}
+		// get the device descriptor builder shared by the bundle instances
+		this.descriptorBuilder = HueDescriptorBuilder.forBundle(
+				context.getBundle(), this.logger);
 
 		// create the gateway status object
 		this.currentState = new DeviceStatus(device.getDeviceId());
 
-		// attach the hue bridge
-		this.network.connectToBridge(this.bridgeIp, this);
-
 		// initialize the device state
 		this.initializeStates();
 
-		// start the discovery enable timer...
-		// TODO: improve this in order to start as soon as possible
-		Timer discoveryEnablingTimer = new Timer();
-		discoveryEnablingTimer.schedule(new TimerTask()
+		// initialize the light inventory and the set of discovered lights
+		this.inventory = new HueLightInventory();
+		this.discoveredLights = new HashSet<String>();
+		this.creationTime = System.nanoTime();
+
+		// if the bridge lights attached in a previous run are known, discovery
+		// can start at once, as the lights to skip are known; otherwise it
+		// starts once light attachments settle
+		String[] knownLights = this.network.getKnownLights(this.bridgeIp);
+		if (knownLights != null)
+		{
+			synchronized (this)
+			{
+				this.previouslyKnownLights = new HashSet<String>(
+						Arrays.asList(knownLights));
+			}
+			this.discoveryEnabled = true;
+		}
+		else
+			this.waitForAttachments();
+
+		// attach the hue bridge, if already connected (e.g., on a warm start)
+		// the connection is delivered at once
+		this.network.connectToBridge(this.bridgeIp, this);
+
+		// lights known in a previous run and still not attached once the
+		// discovery delay expires are discovered again
+		this.schedule(new Runnable()
 		{
 
 			@Override
 			public void run()
 			{
-				discoveryEnabled = true;
+				synchronized (HueGatewayDriverInstance.this)
+				{
+					previouslyKnownLights = null;
+				}
+				enableDiscovery();
 			}
 		}, this.deviceDiscoveryDelayMillis);
 	}
@@ -149,6 +245,91 @@ public class HueGatewayDriverInstance extends HueDriverInstance implements
 		return this.hueBridge;
 	}
 
+	/**
+	 * Provides the registry of the Dog groups of the lights attached to this
+	 * gateway, which keeps the matching bridge groups in sync.
+	 * 
+	 * @return the {@link HueGroupRegistry} of this gateway
+	 */
+	public HueGroupRegistry getGroupRegistry()
+	{
+		return this.groupRegistry;
+	}
+
+	/**
+	 * Applies the given state to all the lights of the given Dog group. If the
+	 * group is defined on the bridge, the state is sent as a single group
+	 * action, otherwise (e.g., while the bridge group is being created or
+	 * updated) it is sent to each member light.
+	 * 
+	 * @param groupNumber
+	 *            The Dog group number.
+	 * @param lightState
+	 *            The new (partial) light state.
+	 * @return the {@link HueCommandFuture} tracking the group action, or null
+	 *         if the state has been sent to the single lights
+	 */
+	public HueCommandFuture setGroupState(Integer groupNumber,
+			PHLightState lightState)
+	{
+		// get the group lights
+		String[] lights = this.groupRegistry.getLights(groupNumber);
+
+		// get the bridge group, if in sync
+		String bridgeGroupId = this.groupRegistry
+				.getBridgeGroupId(groupNumber);
+
+		if ((bridgeGroupId != null) && (lights.length > 0))
+			// send a single group action
+			return this.network.submitGroupState(this.bridgeIp, bridgeGroupId,
+					lights, lightState);
+
+		// fall back to light commands
+		for (String localId : lights)
+			this.network.updateLightState(new HueDeviceIdentifier(localId,
+					this.bridgeIp), lightState);
+
+		return null;
+	}
+
+	/**
+	 * Provides the registry of the Dog scenes of the lights attached to this
+	 * gateway, which stores them on the bridge.
+	 * 
+	 * @return the {@link HueSceneRegistry} of this gateway
+	 */
+	public HueSceneRegistry getSceneRegistry()
+	{
+		return this.sceneRegistry;
+	}
+
+	/**
+	 * Recalls the given Dog scene with a single bridge request, restoring the
+	 * state stored for each of its lights.
+	 * 
+	 * @param sceneNumber
+	 *            The Dog scene number.
+	 * @return the {@link HueCommandFuture} tracking the recall, or null if the
+	 *         scene is not stored on the bridge
+	 */
+	public HueCommandFuture recallScene(Integer sceneNumber)
+	{
+		// get the scene lights, cached by the registry
+		String[] lights = this.sceneRegistry.getStoredLights(sceneNumber);
+
+		// check not null
+		if (lights == null)
+		{
+			this.logger.log(LogService.LOG_WARNING, "Scene " + sceneNumber
+					+ " is not stored on bridge " + this.bridgeIp);
+			return null;
+		}
+
+		// recall the scene
+		return this.network.submitSceneRecall(this.bridgeIp,
+				this.sceneRegistry.getBridgeSceneId(sceneNumber), lights);
+	}
+
 	@Override
 	public DeviceStatus getState()
 	{
@@ -174,11 +355,11 @@ public class HueGatewayDriverInstance extends HueDriverInstance implements
 				.equals(ActivePushLinkAuthenticationStateValue.class
 						.getSimpleName())))
 		{
-			// check that the authentication timer is not null, i.e., possibly
-			// active
-			if (this.pushLinkAuthenticationTimer != null)
-				// stop the timer
-				this.pushLinkAuthenticationTimer.cancel();
+			// check that the authentication timeout is not null, i.e.,
+			// possibly active
+			if (this.pushLinkAuthenticationTimeout != null)
+				// stop the timeout
+				this.pushLinkAuthenticationTimeout.cancel(false);
 		}
 
 		// get the current connection state
@@ -220,10 +401,12 @@ public class HueGatewayDriverInstance extends HueDriverInstance implements
 		// notify activation
 		this.notifyActivatedPushLinkAuth();
 
-		// start the discovery enable timer...
-		// TODO: improve this in order to start as soon as possible
-		this.pushLinkAuthenticationTimer = new Timer();
-		this.pushLinkAuthenticationTimer.schedule(new TimerTask()
+		// cancel the timeout of any previous authentication attempt
+		if (this.pushLinkAuthenticationTimeout != null)
+			this.pushLinkAuthenticationTimeout.cancel(false);
+
+		// start the authentication timeout
+		this.pushLinkAuthenticationTimeout = this.schedule(new Runnable()
 		{
 
 			@Override
@@ -253,6 +436,11 @@ public class HueGatewayDriverInstance extends HueDriverInstance implements
 		// store the reference to the hue bridge
 		this.hueBridge = bridge;
 
+		// the bridge state might have changed while disconnected, dispatch
+		// the full state of all lights at the next cache update
+		for (HueDeviceIndex.Entry entry : this.indexedLights.values())
+			entry.clearState();
+
 		// update the device state
 		this.currentState.setState(ConnectionState.class.getSimpleName(),
 				new ConnectionState(new ConnectedStateValue()));
@@ -260,6 +448,12 @@ public class HueGatewayDriverInstance extends HueDriverInstance implements
 		// stop any authentication being on
 		this.stopPushLinkAuth();
 
+		// groups might have changed while disconnected, align them
+		this.groupRegistry.bridgeConnected(bridge);
+
+		// save the scenes changed while disconnected
+		this.sceneRegistry.bridgeConnected(bridge);
+
 		// log connection
 		this.logger.log(LogService.LOG_DEBUG,
 				"Connected to the HueBridge located at: " + this.bridgeIp);
@@ -290,19 +484,128 @@ public class HueGatewayDriverInstance extends HueDriverInstance implements
 	{
 		// handle the bridge status update if needed...
 
-		// trigger device update...
-		List<PHLight> allLights = bridge.getResourceCache().getAllLights();
+		// copy the cached lights, as the SDK updates them from its own
+		// threads, reusing the light array of the previous update
+		int lightCount = this.copyBridgeLights(bridge.getResourceCache()
+				.getLights());
 
-		for (PHLight light : allLights)
+		// trigger device update
+		for (int i = 0; i < lightCount; i++)
 		{
-			// get the attached driver, if available
-			HueDriverInstance driverInstance = this.knownDevices.get(light
+			PHLight light = this.bridgeLights[i];
+
+			// get the index entry of the light, holding the attached driver
+			// and the dispatched state, if attached
+			HueDeviceIndex.Entry entry = this.indexedLights.get(light
 					.getIdentifier());
 
-			// notify the driver
-			driverInstance.newMessageFromHouse(light.getLastKnownLightState());
+			// lights not yet attached are dispatched once attached
+			if (entry != null)
+			{
+				// keep the light handle used by the command paths up to date
+				entry.setLight(light);
+
+				// get the light state
+				PHLightState lightState = light.getLastKnownLightState();
+
+				// compute the current fingerprint
+				long fingerprint = HueLightFingerprint.of(lightState,
+						light.isReachable());
+
+				// get the last dispatched fingerprint, if any
+				long dispatched = entry.getState();
+
+				// compute the changed attributes
+				int changes = (dispatched == HueLightStateTable.UNKNOWN) ? HueLightFingerprint.ALL
+						: HueLightFingerprint.changes(dispatched, fingerprint);
+
+				// notify the driver, only if something changed
+				if (changes != 0)
+				{
+					entry.setState(fingerprint);
+					this.stateSnapshot.update(light.getIdentifier(),
+							fingerprint);
+					entry.getDriverInstance().receiveLightState(lightState,
+							light.isReachable());
+				}
+			}
 		}
 
+		// handle the lights added to or removed from the bridge, if any
+		HueLightInventory.Delta delta = this.inventory.update(
+				this.bridgeLights, lightCount);
+		if (delta != null)
+			this.inventoryChanged(delta);
+	}
+
+	/**
+	 * Copies the lights held by the bridge cache in the reused light array,
+	 * holding the lock of the cache table: the SDK updates the table from its
+	 * own threads, and iterating over it unlocked might throw a
+	 * {@link java.util.ConcurrentModificationException}.
+	 * 
+	 * @param lights
+	 *            The lights held by the bridge cache.
+	 * @return the number of copied lights
+	 */
+	private int copyBridgeLights(Hashtable<String, PHLight> lights)
+	{
+		int count = 0;
+
+		synchronized (lights)
+		{
+			// grow the light array, if needed
+			if (this.bridgeLights.length < lights.size())
+				this.bridgeLights = new PHLight[lights.size()];
+
+			Enumeration<PHLight> elements = lights.elements();
+			while (elements.hasMoreElements())
+				this.bridgeLights[count++] = elements.nextElement();
+		}
+
+		// do not retain the lights removed from the bridge
+		for (int i = count; (i < this.bridgeLights.length)
+				&& (this.bridgeLights[i] != null); i++)
+			this.bridgeLights[i] = null;
+
+		return count;
+	}
+
+	/**
+	 * Starts a search for new lights on the bridge, e.g., after pairing new
+	 * lamps; the lights found are discovered as soon as they show up in the
+	 * bridge resource cache.
+	 * 
+	 * @return true if the search started
+	 */
+	public boolean searchNewLights()
+	{
+		return this.network.searchNewLights(this.bridgeIp);
+	}
+
+	/**
+	 * Handles the lights added to or removed from the bridge
+	 * 
+	 * @param delta
+	 *            The added and removed lights.
+	 */
+	private void inventoryChanged(HueLightInventory.Delta delta)
+	{
+		// discover the new lights only
+		if ((!delta.getAdded().isEmpty()) && (this.discoveryEnabled))
+			this.findNewDevices(delta.getAdded());
+
+		// forget the state of the removed lights
+		for (String localId : delta.getRemoved())
+		{
+			HueDeviceIndex.Entry entry = this.indexedLights.get(localId);
+			if (entry != null)
+				entry.clearState();
+			this.stateSnapshot.remove(localId);
+
+			this.logger.log(LogService.LOG_INFO, "Light " + localId
+					+ " removed from bridge " + this.bridgeIp);
+		}
 	}
 
 	@Override
@@ -324,7 +627,25 @@ public class HueGatewayDriverInstance extends HueDriverInstance implements
 	 */
 	public void addDevice(String localId, HueDriverInstance driverInstance)
 	{
-		this.knownDevices.put(localId, driverInstance);
+		// record the device before it stops being waited for, so that it is
+		// never discovered again meanwhile; the registry listeners do the
+		// rest
+		this.knownDevices.add(localId, driverInstance);
+
+		synchronized (this)
+		{
+			// the light is no longer waited for
+			this.discoveredLights.remove(localId);
+			if (this.previouslyKnownLights != null)
+			{
+				this.previouslyKnownLights.remove(localId);
+				if (this.previouslyKnownLights.isEmpty())
+					this.previouslyKnownLights = null;
+			}
+		}
+
+		// wait for further attachments, if discovery is not yet enabled
+		this.waitForAttachments();
 	}
 
 	/**
@@ -336,7 +657,182 @@ public class HueGatewayDriverInstance extends HueDriverInstance implements
 	 */
 	public String removeDevice(String localId)
 	{
-		return this.removeDevice(localId);
+		// forget the light, the registry listeners do the rest
+		this.knownDevices.remove(localId);
+
+		return localId;
+	}
+
+	/**
+	 * @return the registry of the devices attached to this gateway
+	 */
+	public HueDeviceRegistry getKnownDevices()
+	{
+		return this.knownDevices;
+	}
+
+	/**
+	 * Schedules the given one-shot task on the shared Hue scheduler, on behalf
+	 * of the gateway helpers; the task is cancelled with the gateway ones.
+	 * 
+	 * @param task
+	 *            The task to run.
+	 * @param delayMillis
+	 *            The delay after which the task shall run, in milliseconds.
+	 */
+	void scheduleTask(Runnable task, long delayMillis)
+	{
+		this.schedule(task, delayMillis);
+	}
+
+	/**
+	 * Sets the device factory used to create the discovered lights, e.g., when
+	 * the factory service becomes available again; discovery runs as soon as
+	 * a factory is available.
+	 * 
+	 * @param deviceFactory
+	 *            The device factory, null if no longer available.
+	 */
+	public void setDeviceFactory(DeviceFactory deviceFactory)
+	{
+		this.deviceFactory = deviceFactory;
+
+		// discover the lights found while the factory was missing
+		PHBridge bridge = this.hueBridge;
+		if ((deviceFactory != null) && (bridge != null))
+			this.findNewDevices(bridge);
+	}
+
+	/**
+	 * (Re)starts the wait for the attachment of the lights already defined in
+	 * Dog, if discovery is not yet enabled: discovery is enabled once no light
+	 * attaches for {@link #ATTACHMENT_SETTLE_MILLIS}, or once the discovery
+	 * delay expires. Attachments only record their time: the pending timeout
+	 * checks it once due, rather than being cancelled and scheduled again at
+	 * each attachment.
+	 */
+	private void waitForAttachments()
+	{
+		if (this.discoveryEnabled)
+			return;
+
+		synchronized (this)
+		{
+			// record the attachment
+			this.lastAttachmentTime = System.nanoTime();
+
+			// start the timeout, if not pending
+			if (this.attachmentSettleTimeout == null)
+				this.scheduleAttachmentSettle();
+		}
+	}
+
+	/**
+	 * Schedules the attachment settle timeout, due once no light attaches for
+	 * {@link #ATTACHMENT_SETTLE_MILLIS}, and never beyond the discovery delay.
+	 * Must be called holding the lock of this instance.
+	 */
+	private void scheduleAttachmentSettle()
+	{
+		long now = System.nanoTime();
+		long settleMillis = ATTACHMENT_SETTLE_MILLIS
+				- TimeUnit.NANOSECONDS.toMillis(now - this.lastAttachmentTime);
+		long discoveryMillis = this.deviceDiscoveryDelayMillis
+				- TimeUnit.NANOSECONDS.toMillis(now - this.creationTime);
+		long delayMillis = Math.max(0, Math.min(settleMillis, discoveryMillis));
+
+		this.attachmentSettleTimeout = this.schedule(new Runnable()
+		{
+
+			@Override
+			public void run()
+			{
+				attachmentSettleTimeoutExpired();
+			}
+		}, delayMillis);
+	}
+
+	/**
+	 * Enables the device discovery, unless lights attached while the
+	 * attachment settle timeout was pending, in which case the timeout is
+	 * scheduled again, for the rest of the settle time
+	 */
+	private void attachmentSettleTimeoutExpired()
+	{
+		synchronized (this)
+		{
+			this.attachmentSettleTimeout = null;
+
+			// lights attached meanwhile, keep waiting within the discovery
+			// delay
+			long now = System.nanoTime();
+			long settledMillis = TimeUnit.NANOSECONDS.toMillis(now
+					- this.lastAttachmentTime);
+			long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(now
+					- this.creationTime);
+			if ((settledMillis < ATTACHMENT_SETTLE_MILLIS)
+					&& (elapsedMillis < this.deviceDiscoveryDelayMillis))
+			{
+				this.scheduleAttachmentSettle();
+				return;
+			}
+		}
+
+		this.enableDiscovery();
+	}
+
+	/**
+	 * Enables the device discovery, running it at once if the bridge is
+	 * connected
+	 */
+	private void enableDiscovery()
+	{
+		this.discoveryEnabled = true;
+
+		// discover the lights of the connected bridge
+		PHBridge bridge = this.hueBridge;
+		if (bridge != null)
+			this.findNewDevices(bridge);
+	}
+
+	/**
+	 * Removes the lights of this gateway from the process-wide device index,
+	 * e.g., before the gateway is deactivated.
+	 */
+	public void releaseDeviceIndex()
+	{
+		for (HueDriverInstance driverInstance : this.knownDevices.getDevices())
+			this.deviceIndex.unregister(driverInstance.getHueDevice(),
+					driverInstance);
+	}
+
+	/**
+	 * Saves the snapshot of the light states, if changed since the last save,
+	 * e.g., before the gateway is deactivated.
+	 */
+	public void saveStateSnapshot()
+	{
+		this.stateSnapshot.save();
+	}
+
+	/**
+	 * Schedules the periodic saving of the light state snapshot, until the
+	 * scheduled tasks are cancelled
+	 */
+	private void scheduleSnapshotSave()
+	{
+		this.schedule(new Runnable()
+		{
+
+			@Override
+			public void run()
+			{
+				// save the snapshot and schedule the next save, which is not
+				// scheduled if the tasks have been cancelled meanwhile
+				saveStateSnapshot();
+				scheduleSnapshotSave();
+			}
+		}, HueStateSnapshot.SAVE_INTERVAL_MILLIS);
 	}
 
 	@Override
@@ -365,7 +861,9 @@ public class HueGatewayDriverInstance extends HueDriverInstance implements
 	/**
 	 * Search for new devices (color dimmable lights) and handle the discovery
 	 * process for devices that not yet handled by drivers "connected" to the
-	 * current gateway instance.
+	 * current gateway instance. Discovery is incremental: lights for which a
+	 * device has already been created are skipped until attached, so the
+	 * method can run on every change of the light inventory.
 	 * 
 	 * @param bridge
 	 */
@@ -375,128 +873,141 @@ public class HueGatewayDriverInstance extends HueDriverInstance implements
 		// bridge connects and on subsequent heart beats).
 		PHBridgeResourcesCache cache = bridge.getResourceCache();
 
-		// find all lights connected to the bridge
-		List<PHLight> allLights = cache.getAllLights();
+		// check all the lights, on a copy of the cached list
+		this.findNewDevices(cache.getAllLights());
+	}
+
+	/**
+	 * Handles the discovery of the given lights, creating a Dog device for
+	 * each light not yet handled. The descriptors of the new lights are built
+	 * in parallel and submitted to the device factory in a single pass,
+	 * outside of the gateway lock, so that commissioning a bridge with many
+	 * lights does not interleave descriptor rendering and device registration.
+	 * 
+	 * @param lights
+	 *            The lights to check.
+	 */
+	private void findNewDevices(Collection<PHLight> lights)
+	{
+		// devices cannot be created without a factory, discovery runs again
+		// once available
+		DeviceFactory factory = this.deviceFactory;
+		if (factory == null)
+			return;
+
+		// the definitions of the devices to create
+		List<HueDescriptorBuilder.Definition> definitions = new ArrayList<HueDescriptorBuilder.Definition>();
 
-		// iterate over all lights and check if they are already handled or not
-		for (PHLight light : allLights)
+		synchronized (this)
 		{
-			// debug, log the found light
-			this.logger.log(LogService.LOG_DEBUG, "Found light with local id:"
-					+ light.getIdentifier() + " type: " + light.getLightType());
-
-			// check if the device is already registered
-			if (!this.knownDevices.keySet().contains(light.getIdentifier()))
+			// iterate over the lights and check if they are already handled or
+			// not
+			for (PHLight light : lights)
 			{
-				// the light is new and a new device should be created in Dog
-				DeviceDescriptor newDevice = this.buildDeviceDescriptor(light);
-
-				// check not null
-				if (newDevice != null)
+				String localId = light.getIdentifier();
+
+				// check if the device is already registered, being created, or
+				// expected to attach
+				if ((!this.knownDevices.contains(localId))
+						&& (!this.discoveredLights.contains(localId))
+						&& ((this.previouslyKnownLights == null) || (!this.previouslyKnownLights
+								.contains(localId))))
 				{
-					// create the device and cross your fingers...
-					this.deviceFactory.addNewDevice(newDevice);
-
-					// in theory the device could be set as known here, however
-					// in the first release it will be set as known only when
-					// Dog actually recognizes it and attaches it to the right
-					// driver. As this might generate some issue, in next
-					// releases this choice might change...
+					// debug, log the found light
+					this.logger.log(LogService.LOG_DEBUG,
+							"Found light with local id:" + localId + " type: "
+									+ light.getLightType());
+
+					// the light is new and a new device should be created in
+					// Dog
+					definitions.add(this.defineDevice(light));
+
+					// the light is set as known only when Dog actually
+					// attaches it to the right driver, meanwhile it is not
+					// discovered again
+					this.discoveredLights.add(localId);
 				}
 			}
 		}
 
+		if (definitions.isEmpty())
+			return;
+
+		// build all the descriptors at once
+		List<DeviceDescriptor> newDevices = this.descriptorBuilder
+				.buildAll(definitions);
+
+		// create the devices and cross your fingers...
+		for (DeviceDescriptor newDevice : newDevices)
+			factory.addNewDevice(newDevice);
+
+		this.logger.log(LogService.LOG_INFO, "Created " + newDevices.size()
+				+ " new devices for the lights of bridge " + this.bridgeIp);
 	}
 
 	/**
-	 * Given a {@link PHLight} instance, builds the corresponding Dog device
-	 * descriptor.
+	 * Given a {@link PHLight} instance, defines the corresponding Dog device,
+	 * i.e., the device template to render and its data.
 	 * 
 	 * @param light
 	 *            The light instance to model.
-	 * @return the resulting model as a String.
+	 * @return the device definition.
 	 */
-	private DeviceDescriptor buildDeviceDescriptor(PHLight light)
+	private HueDescriptorBuilder.Definition defineDevice(PHLight light)
 	{
-		// the device descriptor to return
-		DeviceDescriptor descriptor = null;
+		// create a descriptor definition map
+		HashMap<String, Object> descriptorDefinitionData = new HashMap<String, Object>();
+
+		// define the device class
+		// TODO: handle missing light types, now default to on-off
+		String deviceClass = null;
 
-		if (this.descriptorFactory != null)
+		switch (light.getLightType())
 		{
-			// create a descriptor definition map
-			HashMap<String, Object> descriptorDefinitionData = new HashMap<String, Object>();
+		case CT_COLOR_LIGHT:
+		{
+			deviceClass = ColorDimmableLight.class.getSimpleName();
+			break;
+		}
+		case DIM_LIGHT:
+		{
+			deviceClass = DimmableLight.class.getSimpleName();
+			break;
+		}
+		case ON_OFF_LIGHT:
+		default:
+		{
+			deviceClass = OnOffLight.class.getSimpleName();
+			break;
+		}
+		}
 
-			// define the device class
-			// TODO: handle missing light types, now default to on-off
-			String deviceClass = null;
+		// store the device name
+		descriptorDefinitionData.put(DeviceDescriptorFactory.NAME,
+				this.device.getDeviceId() + "_" + deviceClass + "_"
+						+ light.getIdentifier());
 
-			switch (light.getLightType())
-			{
-			case CT_COLOR_LIGHT:
-			{
-				deviceClass = ColorDimmableLight.class.getSimpleName();
-				break;
-			}
-			case DIM_LIGHT:
-			{
-				deviceClass = DimmableLight.class.getSimpleName();
-				break;
-			}
-			case ON_OFF_LIGHT:
-			default:
-			{
-				deviceClass = OnOffLight.class.getSimpleName();
-				break;
-			}
-			}
+		// store the device description
+		descriptorDefinitionData.put(DeviceDescriptorFactory.DESCRIPTION,
+				"New Device of type " + deviceClass);
 
-			if ((deviceClass != null) && (!deviceClass.isEmpty()))
-			{
-				// store the device name
-				descriptorDefinitionData.put(DeviceDescriptorFactory.NAME,
-						this.device.getDeviceId() + "_" + deviceClass + "_"
-								+ light.getIdentifier());
-
-				// store the device description
-				descriptorDefinitionData.put(
-						DeviceDescriptorFactory.DESCRIPTION,
-						"New Device of type " + deviceClass);
-
-				// store the device gateway
-				descriptorDefinitionData.put(DeviceDescriptorFactory.GATEWAY,
-						this.device.getDeviceId());
-
-				// store the device location
-				descriptorDefinitionData.put(DeviceDescriptorFactory.LOCATION,
-						"");
-
-				// store the device local id
-				descriptorDefinitionData.put(HueInfo.LOCAL_ID,
-						light.getIdentifier());
-
-				// get the device descriptor
-				try
-				{
-					descriptor = this.descriptorFactory.getDescriptor(
-							descriptorDefinitionData, deviceClass);
-				} catch (Exception e)
-				{
-					this.logger
-							.log(LogService.LOG_ERROR,
-									"Error while creating DeviceDescriptor for the just added device ",
-									e);
-				}
+		// store the device gateway
+		descriptorDefinitionData.put(DeviceDescriptorFactory.GATEWAY,
+				this.device.getDeviceId());
 
-				// debug dump
-				this.logger.log(
-						LogService.LOG_INFO,
-						"Detected new device:\n\tlocalId: "
-								+ light.getIdentifier() + "\n\tdeviceClass: "
-								+ deviceClass);
-			}
-		}
+		// store the device location
+		descriptorDefinitionData.put(DeviceDescriptorFactory.LOCATION, "");
+
+		// store the device local id
+		descriptorDefinitionData.put(HueInfo.LOCAL_ID, light.getIdentifier());
+
+		// debug dump
+		this.logger.log(LogService.LOG_INFO,
+				"Detected new device:\n\tlocalId: " + light.getIdentifier()
+						+ "\n\tdeviceClass: " + deviceClass);
 
-		return descriptor;
+		return new HueDescriptorBuilder.Definition(deviceClass,
+				descriptorDefinitionData);
 	}
 
 	@Override
@@ -505,4 +1016,57 @@ public class HueGatewayDriverInstance extends HueDriverInstance implements
 		// intentionally left empty
 	}
 
+	/**
+	 * Keeps the per-light data of the gateway (dispatched fingerprints, state
+	 * snapshot and lights known by the network driver) in sync with the
+	 * attached devices
+	 * 
+	 * @author bonino
+	 * 
+	 */
+	private class KnownDeviceTracker implements HueDeviceRegistry.Listener
+	{
+		@Override
+		public void deviceAdded(String localId,
+				HueDriverInstance driverInstance)
+		{
+			// index the light, with its handle if already known
+			if (driverInstance.getHueDevice() != null)
+			{
+				PHBridge bridge = hueBridge;
+				deviceIndex.register(driverInstance.getHueDevice(),
+						driverInstance, (bridge != null) ? bridge
+								.getResourceCache().getLights().get(localId)
+								: null);
+			}
+
+			// remember the light for the next startup
+			network.addKnownLight(bridgeIp, localId);
+
+			// provide the state saved in the previous run, until the bridge
+			// provides the actual one
+			Long fingerprint = stateSnapshot.get(localId);
+			if (fingerprint != null)
+				driverInstance.seedLightState(
+						HueLightFingerprint.toLightState(fingerprint),
+						HueLightFingerprint.isReachable(fingerprint));
+		}
+
+		@Override
+		public void deviceRemoved(String localId,
+				HueDriverInstance driverInstance)
+		{
+			// the next device attached to the light gets the full state, in
+			// a new state slot
+			deviceIndex.unregister(driverInstance.getHueDevice(),
+					driverInstance);
+
+			// the light is no longer attached
+			if (!knownDevices.contains(localId))
+			{
+				stateSnapshot.remove(localId);
+				network.removeKnownLight(bridgeIp, localId);
+			}
+		}
+	}
 }
@@ -0,0 +1,611 @@
+/*
+ * Dog 2.0 - Hue Gateway Driver
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.gateway;
+
+import it.polito.elite.dog.core.library.util.LogHelper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.osgi.service.log.LogService;
+
+import com.philips.lighting.hue.listener.PHGroupListener;
+import com.philips.lighting.model.PHBridge;
+import com.philips.lighting.model.PHGroup;
+import com.philips.lighting.model.PHHueError;
+
+/**
+ * Keeps the Dog groups of the lights attached to a Hue bridge in sync with
+ * groups defined on the bridge itself, so that a group command can be sent as
+ * a single group action rather than as one command per member light.
+ * 
+ * Membership changes are applied locally at once and pushed to the bridge
+ * after a short delay, so that a burst of changes (e.g., all the lights of a
+ * room joining the same group at startup) results in a single bridge request
+ * per group. Bridge groups are named after the Dog group number, so that
+ * groups created in a previous run are reused, and membership is pushed again
+ * each time the bridge connects. A group is used for group actions only once
+ * the bridge has confirmed its membership; failed requests are retried.
+ * 
+ * @author bonino
+ * 
+ */
+public class HueGroupRegistry
+{
+	// the prefix of the names of the bridge groups created by Dog
+	public static final String GROUP_NAME_PREFIX = "Dog group ";
+
+	// the delay between a membership change and the bridge update, in
+	// milliseconds
+	public static final long SYNC_DELAY_MILLIS = 500;
+
+	// the delay between a failed bridge request and its retry, in
+	// milliseconds
+	public static final long RETRY_DELAY_MILLIS = 5000;
+
+	// the gateway owning this registry
+	private HueGatewayDriverInstance gateway;
+
+	// the known groups, indexed by Dog group number, guarded by this
+	private Map<Integer, Group> groups;
+
+	// true while a sync task is scheduled, guarded by this
+	private boolean syncScheduled;
+
+	// the identifier of the last bridge request, guarded by this
+	private int lastRequest;
+
+	// the logger
+	private LogHelper logger;
+
+	/**
+	 * Creates a new group registry for the given gateway
+	 * 
+	 * @param gateway
+	 *            The gateway owning the registry.
+	 * @param logger
+	 *            The logger to use.
+	 */
+	public HueGroupRegistry(HueGatewayDriverInstance gateway, LogHelper logger)
+	{
+		// store the references
+		this.gateway = gateway;
+		this.logger = logger;
+
+		// initialize the group map
+		this.groups = new HashMap<Integer, Group>();
+	}
+
+	/**
+	 * Adds the light having the given local id to the given Dog group
+	 * 
+	 * @param groupNumber
+	 *            The Dog group number.
+	 * @param localId
+	 *            The light local id.
+	 */
+	public void addLight(Integer groupNumber, String localId)
+	{
+		synchronized (this)
+		{
+			// get the group, creating it if needed
+			Group group = this.groups.get(groupNumber);
+			if (group == null)
+			{
+				group = new Group(groupNumber);
+				this.groups.put(groupNumber, group);
+			}
+
+			// update the membership, if changed
+			if (group.lights.add(localId))
+				group.dirty = true;
+		}
+
+		// push the change to the bridge
+		this.scheduleSync();
+	}
+
+	/**
+	 * Removes the light having the given local id from the given Dog group
+	 * 
+	 * @param groupNumber
+	 *            The Dog group number.
+	 * @param localId
+	 *            The light local id.
+	 */
+	public void removeLight(Integer groupNumber, String localId)
+	{
+		synchronized (this)
+		{
+			// get the group, if any
+			Group group = this.groups.get(groupNumber);
+
+			// update the membership, if changed
+			if ((group != null) && (group.lights.remove(localId)))
+				group.dirty = true;
+		}
+
+		// push the change to the bridge
+		this.scheduleSync();
+	}
+
+	/**
+	 * Provides the bridge identifier of the given Dog group, if the group
+	 * exists on the bridge and the bridge confirmed its current membership
+	 * 
+	 * @param groupNumber
+	 *            The Dog group number.
+	 * @return the bridge group identifier, or null
+	 */
+	public synchronized String getBridgeGroupId(Integer groupNumber)
+	{
+		Group group = this.groups.get(groupNumber);
+
+		// the membership is confirmed if not changed since the last
+		// completed request
+		if ((group == null) || (group.dirty) || (group.request != 0))
+			return null;
+
+		return group.bridgeGroupId;
+	}
+
+	/**
+	 * Provides the local ids of the lights belonging to the given Dog group
+	 * 
+	 * @param groupNumber
+	 *            The Dog group number.
+	 * @return the member light ids, empty if the group is unknown
+	 */
+	public synchronized String[] getLights(Integer groupNumber)
+	{
+		Group group = this.groups.get(groupNumber);
+
+		return (group != null) ? group.lights.toArray(new String[group.lights
+				.size()]) : new String[0];
+	}
+
+	/**
+	 * Re-aligns the bridge groups with the Dog groups upon bridge connection,
+	 * as groups might have been changed or deleted on the bridge while
+	 * disconnected.
+	 * 
+	 * @param bridge
+	 *            The connected bridge.
+	 */
+	public void bridgeConnected(PHBridge bridge)
+	{
+		// get the groups currently defined on the bridge
+		Map<String, PHGroup> bridgeGroups = bridge.getResourceCache()
+				.getGroups();
+
+		synchronized (this)
+		{
+			for (Group group : this.groups.values())
+			{
+				// forget groups no longer defined on the bridge
+				if ((group.bridgeGroupId != null)
+						&& ((bridgeGroups == null) || (!bridgeGroups
+								.containsKey(group.bridgeGroupId))))
+					group.bridgeGroupId = null;
+
+				// requests sent on the previous connection are superseded
+				group.request = 0;
+				group.creating = false;
+
+				// push the membership again
+				group.dirty = true;
+			}
+		}
+
+		// push the groups to the bridge
+		this.scheduleSync();
+	}
+
+	/**
+	 * Schedules the alignment of the bridge groups, if not already scheduled
+	 */
+	private void scheduleSync()
+	{
+		this.scheduleSync(SYNC_DELAY_MILLIS);
+	}
+
+	/**
+	 * Schedules the alignment of the bridge groups after the given delay, if
+	 * not already scheduled
+	 * 
+	 * @param delayMillis
+	 *            The delay, in milliseconds.
+	 */
+	private void scheduleSync(long delayMillis)
+	{
+		synchronized (this)
+		{
+			if (this.syncScheduled)
+				return;
+
+			this.syncScheduled = true;
+		}
+
+		// delay the sync, to collect bursts of changes
+		this.gateway.scheduleTask(new Runnable()
+		{
+
+			@Override
+			public void run()
+			{
+				sync();
+			}
+		}, delayMillis);
+	}
+
+	/**
+	 * Pushes the membership of all the changed groups to the bridge
+	 */
+	private void sync()
+	{
+		// get the bridge, if connected
+		PHBridge bridge = this.gateway.getBridge();
+
+		// the groups to push, with their membership at the time of the sync
+		// and the identifiers of their requests
+		List<Group> toSync = new ArrayList<Group>();
+		List<String[]> members = new ArrayList<String[]>();
+		List<Integer> requests = new ArrayList<Integer>();
+
+		synchronized (this)
+		{
+			this.syncScheduled = false;
+
+			// groups are pushed again when the bridge connects
+			if (bridge == null)
+				return;
+
+			for (Group group : new ArrayList<Group>(this.groups.values()))
+			{
+				// groups having a request in progress are pushed once it
+				// completes, e.g., once their id is known
+				if ((group.dirty) && (group.request == 0))
+				{
+					group.dirty = false;
+
+					if (group.lights.isEmpty())
+					{
+						// empty groups are forgotten
+						this.groups.remove(group.number);
+
+						// no need to delete groups never created
+						if (group.bridgeGroupId == null)
+							continue;
+					}
+					else if (group.bridgeGroupId == null)
+						group.creating = true;
+
+					// the membership is unconfirmed until the request completes
+					group.request = ++this.lastRequest;
+
+					toSync.add(group);
+					members.add(group.lights.toArray(new String[group.lights
+							.size()]));
+					requests.add(group.request);
+				}
+			}
+		}
+
+		// send the bridge requests outside of the lock
+		for (int i = 0; i < toSync.size(); i++)
+		{
+			Group group = toSync.get(i);
+			String[] lights = members.get(i);
+			int request = requests.get(i);
+
+			try
+			{
+				if (lights.length == 0)
+					// delete the bridge group
+					bridge.deleteGroup(group.bridgeGroupId, new SyncListener(
+							group, request, "delete"));
+				else if (group.creating)
+					this.create(bridge, group, request, lights);
+				else
+					this.update(bridge, group, request, group.bridgeGroupId,
+							lights);
+			}
+			catch (Exception e)
+			{
+				// try again later
+				this.failed(group, request);
+
+				this.logger.log(LogService.LOG_ERROR, "Unable to sync "
+						+ group.getName() + " on bridge "
+						+ this.gateway.getBridgeIp(), e);
+			}
+		}
+	}
+
+	/**
+	 * Creates the bridge group matching the given Dog group, or reuses the one
+	 * having the same name, if already defined on the bridge
+	 * 
+	 * @param bridge
+	 *            The bridge on which creating the group.
+	 * @param group
+	 *            The Dog group.
+	 * @param request
+	 *            The request identifier.
+	 * @param lights
+	 *            The group lights.
+	 */
+	private void create(PHBridge bridge, Group group, int request,
+			String[] lights)
+	{
+		// look for a group created in a previous run
+		String existingId = null;
+		List<PHGroup> bridgeGroups = bridge.getResourceCache().getAllGroups();
+		if (bridgeGroups != null)
+		{
+			for (PHGroup bridgeGroup : bridgeGroups)
+				if (group.getName().equals(bridgeGroup.getName()))
+					existingId = bridgeGroup.getIdentifier();
+		}
+
+		if (existingId != null)
+		{
+			synchronized (this)
+			{
+				// adopt the existing group
+				group.bridgeGroupId = existingId;
+				group.creating = false;
+			}
+
+			// align its membership
+			this.update(bridge, group, request, existingId, lights);
+		}
+		else
+			// create the group
+			bridge.createGroup(group.getName(), lights, new SyncListener(group,
+					request, "create"));
+	}
+
+	/**
+	 * Updates the membership of the given bridge group
+	 * 
+	 * @param bridge
+	 *            The bridge holding the group.
+	 * @param group
+	 *            The Dog group.
+	 * @param request
+	 *            The request identifier.
+	 * @param bridgeGroupId
+	 *            The bridge group identifier.
+	 * @param lights
+	 *            The group lights.
+	 */
+	private void update(PHBridge bridge, Group group, int request,
+			String bridgeGroupId, String[] lights)
+	{
+		// build the group definition
+		PHGroup bridgeGroup = new PHGroup(group.getName(), bridgeGroupId);
+		bridgeGroup.setLightIdentifiers(lights);
+
+		// update the group
+		bridge.updateGroup(bridgeGroup, new SyncListener(group, request,
+				"update"));
+	}
+
+	/**
+	 * Handles the creation of a bridge group, storing the identifier assigned
+	 * by the bridge
+	 * 
+	 * @param group
+	 *            The Dog group.
+	 * @param request
+	 *            The request identifier.
+	 * @param bridgeGroupId
+	 *            The bridge group identifier.
+	 */
+	private void created(Group group, int request, String bridgeGroupId)
+	{
+		synchronized (this)
+		{
+			// superseded request
+			if (group.request != request)
+				return;
+
+			group.creating = false;
+			group.bridgeGroupId = bridgeGroupId;
+		}
+
+		this.completed(group, request);
+	}
+
+	/**
+	 * Handles the successful completion of a group request: the membership
+	 * sent with the request is confirmed
+	 * 
+	 * @param group
+	 *            The Dog group.
+	 * @param request
+	 *            The request identifier.
+	 */
+	private void completed(Group group, int request)
+	{
+		boolean resync;
+
+		synchronized (this)
+		{
+			// superseded request, or creation still waiting for the id
+			if ((group.request != request) || (group.creating))
+				return;
+
+			group.request = 0;
+
+			// membership changed while the request was in progress
+			resync = (group.dirty) && (this.groups.get(group.number) == group);
+		}
+
+		if (resync)
+			this.scheduleSync();
+	}
+
+	/**
+	 * Handles the failure of a group request: the membership is pushed again
+	 * after a while, meanwhile group commands are sent to the single lights
+	 * 
+	 * @param group
+	 *            The Dog group.
+	 * @param request
+	 *            The request identifier.
+	 */
+	private void failed(Group group, int request)
+	{
+		boolean retry;
+
+		synchronized (this)
+		{
+			// superseded request
+			if (group.request != request)
+				return;
+
+			group.request = 0;
+			group.creating = false;
+			group.dirty = true;
+
+			// deleted groups are not retried
+			retry = (this.groups.get(group.number) == group);
+		}
+
+		if (retry)
+			this.scheduleSync(RETRY_DELAY_MILLIS);
+	}
+
+	/**
+	 * A Dog group and the matching bridge group
+	 * 
+	 * @author bonino
+	 * 
+	 */
+	private static class Group
+	{
+		// the Dog group number
+		private Integer number;
+
+		// the local ids of the member lights, sorted
+		private TreeSet<String> lights;
+
+		// the bridge group identifier, null if not yet created
+		private String bridgeGroupId;
+
+		// true if the membership shall be pushed to the bridge
+		private boolean dirty;
+
+		// true while the bridge group is being created
+		private boolean creating;
+
+		// the identifier of the request in progress, 0 if none
+		private int request;
+
+		public Group(Integer number)
+		{
+			this.number = number;
+			this.lights = new TreeSet<String>();
+		}
+
+		/**
+		 * @return the name of the matching bridge group
+		 */
+		public String getName()
+		{
+			return GROUP_NAME_PREFIX + this.number;
+		}
+	}
+
+	/**
+	 * Logs the outcome of a group request and confirms or retries it
+	 * 
+	 * @author bonino
+	 * 
+	 */
+	private class SyncListener extends PHGroupListener
+	{
+		// the synced group
+		private Group group;
+
+		// the request identifier
+		private int requestId;
+
+		// the request, for logging
+		private String request;
+
+		public SyncListener(Group group, int requestId, String request)
+		{
+			this.group = group;
+			this.requestId = requestId;
+			this.request = request;
+		}
+
+		@Override
+		public void onCreated(PHGroup bridgeGroup)
+		{
+			// store the identifier assigned by the bridge
+			created(this.group, this.requestId, bridgeGroup.getIdentifier());
+
+			logger.log(LogService.LOG_DEBUG, "Created bridge group "
+					+ bridgeGroup.getIdentifier() + " for "
+					+ this.group.getName());
+		}
+
+		@Override
+		public void onSuccess()
+		{
+			// confirm the membership
+			completed(this.group, this.requestId);
+
+			logger.log(LogService.LOG_DEBUG, "Bridge group " + this.request
+					+ " completed for " + this.group.getName());
+		}
+
+		@Override
+		public void onError(int code, String message)
+		{
+			// retry later, meanwhile group commands are sent to the single
+			// lights
+			failed(this.group, this.requestId);
+
+			logger.log(LogService.LOG_WARNING, "Bridge group " + this.request
+					+ " failed for " + this.group.getName() + ": " + message
+					+ " (" + code + ")");
+		}
+
+		@Override
+		public void onStateUpdate(Hashtable<String, String> successes,
+				List<PHHueError> errors)
+		{
+			// report the first error, if any, or confirm the membership
+			if ((errors != null) && (!errors.isEmpty()))
+				this.onError(errors.get(0).getCode(), errors.get(0)
+						.getMessage());
+			else
+				completed(this.group, this.requestId);
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Dog 2.0 - Hue Gateway Driver
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.gateway;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import com.philips.lighting.model.PHLight;
+
+/**
+ * Tracks the lights of a Hue bridge across cache updates and reports the
+ * lights added to and removed from the bridge as deltas, so that the gateway
+ * only handles the changed lights rather than the whole light list. In steady
+ * state (no light added or removed) the inventory allocates no object.
+ * 
+ * The inventory is not thread-safe: it shall be updated by the thread
+ * delivering the bridge events only.
+ * 
+ * @author bonino
+ * 
+ */
+public class HueLightInventory
+{
+	// the local ids of the lights known to be on the bridge
+	private Set<String> lights;
+
+	/**
+	 * Creates a new, empty, inventory
+	 */
+	public HueLightInventory()
+	{
+		this.lights = new HashSet<String>();
+	}
+
+	/**
+	 * Compares the given bridge lights with the inventory, updating it
+	 * 
+	 * @param bridgeLights
+	 *            The lights currently held by the bridge cache, copied from
+	 *            the cache.
+	 * @param lightCount
+	 *            The number of lights in the given array.
+	 * @return the added and removed lights, or null if the inventory did not
+	 *         change
+	 */
+	public Delta update(PHLight[] bridgeLights, int lightCount)
+	{
+		List<PHLight> added = null;
+		int matched = 0;
+
+		// find the new lights
+		for (int i = 0; i < lightCount; i++)
+		{
+			PHLight light = bridgeLights[i];
+			if (this.lights.contains(light.getIdentifier()))
+				matched++;
+			else
+			{
+				if (added == null)
+					added = new ArrayList<PHLight>();
+				added.add(light);
+			}
+		}
+
+		// find the removed lights, only if some known light is missing
+		List<String> removed = null;
+		if (matched < this.lights.size())
+		{
+			// the local ids of the lights still on the bridge
+			Set<String> present = new HashSet<String>();
+			for (int i = 0; i < lightCount; i++)
+				present.add(bridgeLights[i].getIdentifier());
+
+			removed = new ArrayList<String>();
+			Iterator<String> iterator = this.lights.iterator();
+			while (iterator.hasNext())
+			{
+				String localId = iterator.next();
+				if (!present.contains(localId))
+				{
+					removed.add(localId);
+					iterator.remove();
+				}
+			}
+		}
+
+		// nothing changed
+		if (added == null && removed == null)
+			return null;
+
+		// record the new lights
+		if (added != null)
+			for (PHLight light : added)
+				this.lights.add(light.getIdentifier());
+
+		return new Delta(added, removed);
+	}
+
+	/**
+	 * @return the number of lights in the inventory
+	 */
+	public int size()
+	{
+		return this.lights.size();
+	}
+
+	/**
+	 * The lights added to and removed from a bridge
+	 * 
+	 * @author bonino
+	 * 
+	 */
+	public static class Delta
+	{
+		// the added lights
+		private List<PHLight> added;
+
+		// the local ids of the removed lights
+		private List<String> removed;
+
+		public Delta(List<PHLight> added, List<String> removed)
+		{
+			this.added = (added != null) ? added : Collections
+					.<PHLight> emptyList();
+			this.removed = (removed != null) ? removed : Collections
+					.<String> emptyList();
+		}
+
+		/**
+		 * @return the added lights, possibly empty
+		 */
+		public List<PHLight> getAdded()
+		{
+			return this.added;
+		}
+
+		/**
+		 * @return the local ids of the removed lights, possibly empty
+		 */
+		public List<String> getRemoved()
+		{
+			return this.removed;
+		}
+	}
+}
@@ -0,0 +1,467 @@
+/*
+ * Dog 2.0 - Hue Gateway Driver
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.gateway;
+
+import it.polito.elite.dog.core.library.util.LogHelper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.osgi.service.log.LogService;
+
+import com.philips.lighting.hue.listener.PHSceneListener;
+import com.philips.lighting.model.PHBridge;
+import com.philips.lighting.model.PHHueError;
+import com.philips.lighting.model.PHScene;
+
+/**
+ * Keeps the Dog scenes of the lights attached to a Hue bridge stored on the
+ * bridge itself, so that a scene is recalled with a single bridge request
+ * rather than with one command per member light.
+ * 
+ * Each time a light joins (or is stored again in) a scene, the scene is saved
+ * on the bridge with the current state of its lights, after a short delay, so
+ * that a burst of storeScene calls results in a single bridge request. As the
+ * bridge stores the current state of all the scene lights on every save,
+ * removing a light also refreshes the state of the remaining ones. The scene
+ * membership stored on the bridge is cached, so that a recall needs no
+ * lookup. Scenes changed while the bridge is disconnected are saved once it
+ * connects, and failed saves are retried.
+ * 
+ * @author bonino
+ * 
+ */
+public class HueSceneRegistry
+{
+	// the prefix of the identifiers of the bridge scenes created by Dog
+	public static final String SCENE_ID_PREFIX = "dog-scene-";
+
+	// the prefix of the names of the bridge scenes created by Dog
+	public static final String SCENE_NAME_PREFIX = "Dog scene ";
+
+	// the delay between a scene change and the bridge update, in milliseconds
+	public static final long SYNC_DELAY_MILLIS = 500;
+
+	// the delay between a failed scene save and its retry, in milliseconds
+	public static final long RETRY_DELAY_MILLIS = 5000;
+
+	// the gateway owning this registry
+	private HueGatewayDriverInstance gateway;
+
+	// the known scenes, indexed by Dog scene number, guarded by this
+	private Map<Integer, Scene> scenes;
+
+	// true while a sync task is scheduled, guarded by this
+	private boolean syncScheduled;
+
+	// the identifier of the last scene save, guarded by this
+	private int lastRequest;
+
+	// the logger
+	private LogHelper logger;
+
+	/**
+	 * Creates a new scene registry for the given gateway
+	 * 
+	 * @param gateway
+	 *            The gateway owning the registry.
+	 * @param logger
+	 *            The logger to use.
+	 */
+	public HueSceneRegistry(HueGatewayDriverInstance gateway, LogHelper logger)
+	{
+		// store the references
+		this.gateway = gateway;
+		this.logger = logger;
+
+		// initialize the scene map
+		this.scenes = new HashMap<Integer, Scene>();
+	}
+
+	/**
+	 * Stores the current state of the light having the given local id in the
+	 * given Dog scene
+	 * 
+	 * @param sceneNumber
+	 *            The Dog scene number.
+	 * @param localId
+	 *            The light local id.
+	 */
+	public void addLight(Integer sceneNumber, String localId)
+	{
+		synchronized (this)
+		{
+			// get the scene, creating it if needed
+			Scene scene = this.scenes.get(sceneNumber);
+			if (scene == null)
+			{
+				scene = new Scene(sceneNumber);
+				this.scenes.put(sceneNumber, scene);
+			}
+
+			// update the membership
+			if (scene.lights.add(localId))
+				scene.updateMembers();
+
+			// the light state shall be captured again anyway
+			scene.dirty = true;
+		}
+
+		// save the scene on the bridge
+		this.scheduleSync();
+	}
+
+	/**
+	 * Removes the light having the given local id from the given Dog scene
+	 * 
+	 * @param sceneNumber
+	 *            The Dog scene number.
+	 * @param localId
+	 *            The light local id.
+	 */
+	public void removeLight(Integer sceneNumber, String localId)
+	{
+		synchronized (this)
+		{
+			// get the scene, if any
+			Scene scene = this.scenes.get(sceneNumber);
+
+			// update the membership, if changed
+			if ((scene != null) && (scene.lights.remove(localId)))
+			{
+				scene.updateMembers();
+				scene.dirty = true;
+			}
+		}
+
+		// save the scene on the bridge
+		this.scheduleSync();
+	}
+
+	/**
+	 * Provides the bridge identifier of the given Dog scene
+	 * 
+	 * @param sceneNumber
+	 *            The Dog scene number.
+	 * @return the bridge scene identifier
+	 */
+	public String getBridgeSceneId(Integer sceneNumber)
+	{
+		return SCENE_ID_PREFIX + sceneNumber;
+	}
+
+	/**
+	 * Provides the local ids of the lights stored in the given Dog scene, as
+	 * last saved on the bridge. The returned array is shared and shall not be
+	 * modified.
+	 * 
+	 * @param sceneNumber
+	 *            The Dog scene number.
+	 * @return the member light ids, or null if the scene is not stored on the
+	 *         bridge, or its last save failed
+	 */
+	public synchronized String[] getStoredLights(Integer sceneNumber)
+	{
+		Scene scene = this.scenes.get(sceneNumber);
+
+		return (scene != null) ? scene.storedMembers : null;
+	}
+
+	/**
+	 * Saves the scenes changed while the bridge was disconnected, upon bridge
+	 * connection. Scenes not changed are not saved again, as saving would
+	 * replace their stored light states with the current ones.
+	 * 
+	 * @param bridge
+	 *            The connected bridge.
+	 */
+	public void bridgeConnected(PHBridge bridge)
+	{
+		boolean changed = false;
+
+		synchronized (this)
+		{
+			for (Scene scene : this.scenes.values())
+			{
+				// saves sent on the previous connection are superseded
+				if (scene.request != 0)
+				{
+					scene.request = 0;
+					scene.dirty = true;
+				}
+
+				changed |= scene.dirty;
+			}
+		}
+
+		// save the changed scenes
+		if (changed)
+			this.scheduleSync();
+	}
+
+	/**
+	 * Schedules the saving of the changed scenes, if not already scheduled
+	 */
+	private void scheduleSync()
+	{
+		this.scheduleSync(SYNC_DELAY_MILLIS);
+	}
+
+	/**
+	 * Schedules the saving of the changed scenes after the given delay, if not
+	 * already scheduled
+	 * 
+	 * @param delayMillis
+	 *            The delay, in milliseconds.
+	 */
+	private void scheduleSync(long delayMillis)
+	{
+		synchronized (this)
+		{
+			if (this.syncScheduled)
+				return;
+
+			this.syncScheduled = true;
+		}
+
+		// delay the sync, to collect bursts of changes
+		this.gateway.scheduleTask(new Runnable()
+		{
+
+			@Override
+			public void run()
+			{
+				sync();
+			}
+		}, delayMillis);
+	}
+
+	/**
+	 * Saves all the changed scenes on the bridge
+	 */
+	private void sync()
+	{
+		// get the bridge, if connected
+		PHBridge bridge = this.gateway.getBridge();
+
+		// the scenes to save, with their save identifiers
+		List<Scene> toSave = new ArrayList<Scene>();
+		List<PHScene> definitions = new ArrayList<PHScene>();
+		List<Integer> requests = new ArrayList<Integer>();
+
+		synchronized (this)
+		{
+			this.syncScheduled = false;
+
+			// changed scenes are saved once the bridge connects
+			if (bridge == null)
+				return;
+
+			for (Scene scene : new ArrayList<Scene>(this.scenes.values()))
+			{
+				// scenes being saved are saved again once done
+				if ((scene.dirty) && (scene.request == 0))
+				{
+					scene.dirty = false;
+
+					if (scene.lights.isEmpty())
+						// the bridge offers no scene deletion, the bridge
+						// scene is overwritten if the number is used again
+						this.scenes.remove(scene.number);
+					else
+					{
+						// build the scene definition
+						PHScene definition = new PHScene();
+						definition.setSceneIdentifier(this
+								.getBridgeSceneId(scene.number));
+						definition.setName(SCENE_NAME_PREFIX + scene.number);
+						definition.setLightIdentifiers(scene.members);
+
+						scene.request = ++this.lastRequest;
+						toSave.add(scene);
+						definitions.add(definition);
+						requests.add(scene.request);
+					}
+				}
+			}
+		}
+
+		// send the bridge requests outside of the lock
+		for (int i = 0; i < toSave.size(); i++)
+		{
+			Scene scene = toSave.get(i);
+			PHScene definition = definitions.get(i);
+			int request = requests.get(i);
+
+			try
+			{
+				// store the scene with the current light states
+				bridge.saveSceneWithCurrentLightStates(definition,
+						new SaveListener(scene, request, definition
+								.getLightIdentifiers()));
+			}
+			catch (Exception e)
+			{
+				// save again later
+				this.saved(scene, request, null);
+
+				this.logger.log(LogService.LOG_ERROR, "Unable to save "
+						+ SCENE_NAME_PREFIX + scene.number + " on bridge "
+						+ this.gateway.getBridgeIp(), e);
+			}
+		}
+	}
+
+	/**
+	 * Handles the outcome of a scene save
+	 * 
+	 * @param scene
+	 *            The saved scene.
+	 * @param request
+	 *            The save identifier.
+	 * @param members
+	 *            The scene lights stored by the bridge, or null if the save
+	 *            failed.
+	 */
+	private void saved(Scene scene, int request, String[] members)
+	{
+		boolean resync;
+
+		synchronized (this)
+		{
+			// superseded save
+			if (scene.request != request)
+				return;
+
+			scene.request = 0;
+
+			// the bridge scene is unknown after a failure: it is not recalled
+			// until saved again
+			scene.storedMembers = members;
+			if (members == null)
+				scene.dirty = true;
+
+			// the scene changed while saving, or shall be saved again
+			resync = (scene.dirty) && (this.scenes.get(scene.number) == scene);
+		}
+
+		if (resync)
+			this.scheduleSync((members != null) ? SYNC_DELAY_MILLIS
+					: RETRY_DELAY_MILLIS);
+	}
+
+	/**
+	 * A Dog scene and its cached membership
+	 * 
+	 * @author bonino
+	 * 
+	 */
+	private static class Scene
+	{
+		// the Dog scene number
+		private Integer number;
+
+		// the local ids of the member lights, sorted
+		private TreeSet<String> lights;
+
+		// the member lights, cached for saves
+		private String[] members;
+
+		// the member lights as last stored on the bridge, cached for
+		// recalls, null if not stored
+		private String[] storedMembers;
+
+		// true if the scene shall be saved on the bridge
+		private boolean dirty;
+
+		// the identifier of the save in progress, 0 if none
+		private int request;
+
+		public Scene(Integer number)
+		{
+			this.number = number;
+			this.lights = new TreeSet<String>();
+			this.members = new String[0];
+		}
+
+		/**
+		 * Refreshes the cached membership
+		 */
+		public void updateMembers()
+		{
+			this.members = this.lights.toArray(new String[this.lights.size()]);
+		}
+	}
+
+	/**
+	 * Completes a scene save
+	 * 
+	 * @author bonino
+	 * 
+	 */
+	private class SaveListener extends PHSceneListener
+	{
+		// the saved scene
+		private Scene scene;
+
+		// the save identifier
+		private int request;
+
+		// the saved scene lights
+		private String[] members;
+
+		public SaveListener(Scene scene, int request, String[] members)
+		{
+			this.scene = scene;
+			this.request = request;
+			this.members = members;
+		}
+
+		@Override
+		public void onSuccess()
+		{
+			saved(this.scene, this.request, this.members);
+		}
+
+		@Override
+		public void onError(int code, String message)
+		{
+			saved(this.scene, this.request, null);
+
+			logger.log(LogService.LOG_WARNING, "Unable to save "
+					+ SCENE_NAME_PREFIX + this.scene.number + ": " + message
+					+ " (" + code + ")");
+		}
+
+		@Override
+		public void onStateUpdate(Hashtable<String, String> successes,
+				List<PHHueError> errors)
+		{
+			if ((errors == null) || (errors.isEmpty()))
+				this.onSuccess();
+			else
+				this.onError(errors.get(0).getCode(), errors.get(0)
+						.getMessage());
+		}
+	}
+}
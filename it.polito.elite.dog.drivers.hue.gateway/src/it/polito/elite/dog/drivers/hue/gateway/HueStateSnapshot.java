@@ -0,0 +1,288 @@
+/*
+ * Dog 2.0 - Hue Gateway Driver
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.gateway;
+
+import it.polito.elite.dog.core.library.util.LogHelper;
+import it.polito.elite.dog.drivers.hue.network.info.HueLightFingerprint;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.osgi.service.log.LogService;
+
+/**
+ * A compact binary snapshot of the states of the lights of a Hue bridge,
+ * stored on disk so that, after a restart, the light drivers can provide a
+ * (possibly stale) state before the bridge is polled for the first time.
+ * 
+ * Each light state is stored as its {@link HueLightFingerprint}, i.e., a
+ * single long, indexed by the light local id.
+ * 
+ * @author bonino
+ * 
+ */
+public class HueStateSnapshot
+{
+	// the prefix of the snapshot file names, in the bundle data area
+	public static final String FILE_PREFIX = "lights-";
+
+	// the time between two snapshot saves, in milliseconds
+	public static final long SAVE_INTERVAL_MILLIS = 60000;
+
+	// the magic number opening the snapshot file, "HUE" and the format version
+	private static final int MAGIC = 0x48554501;
+
+	// the snapshot file, null if the framework offers no data area
+	private File file;
+
+	// the light fingerprints, indexed by light local id, guarded by this
+	private Map<String, Long> fingerprints;
+
+	// true if the snapshot changed since the last save, guarded by this
+	private boolean dirty;
+
+	// serializes the saves, e.g., the periodic save and the save on
+	// deactivation, which share the temporary file
+	private Object saveLock = new Object();
+
+	// the logger
+	private LogHelper logger;
+
+	/**
+	 * Creates a new snapshot stored in the given file
+	 * 
+	 * @param file
+	 *            The snapshot file, null to keep the snapshot in memory only.
+	 * @param logger
+	 *            The logger to use.
+	 */
+	public HueStateSnapshot(File file, LogHelper logger)
+	{
+		// store the references
+		this.file = file;
+		this.logger = logger;
+
+		// initialize the fingerprint map
+		this.fingerprints = new HashMap<String, Long>();
+	}
+
+	/**
+	 * Provides the name of the snapshot file of the bridge having the given IP
+	 * address
+	 * 
+	 * @param bridgeIp
+	 *            The bridge IP address.
+	 * @return the file name
+	 */
+	public static String getFileName(String bridgeIp)
+	{
+		return FILE_PREFIX + bridgeIp.replace(':', '_') + ".bin";
+	}
+
+	/**
+	 * Loads the snapshot from disk, if stored
+	 */
+	public synchronized void load()
+	{
+		if ((this.file == null) || (!this.file.isFile()))
+			return;
+
+		DataInputStream in = null;
+
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(this.file)));
+
+			// check the format
+			if (in.readInt() != MAGIC)
+			{
+				this.logger.log(LogService.LOG_WARNING,
+						"Ignoring the light state snapshot " + this.file
+								+ ", unknown format");
+				return;
+			}
+
+			// read the fingerprints
+			int count = in.readInt();
+			for (int i = 0; i < count; i++)
+			{
+				String localId = in.readUTF();
+				this.fingerprints.put(localId, in.readLong());
+			}
+		}
+		catch (IOException e)
+		{
+			this.logger.log(LogService.LOG_WARNING,
+					"Unable to load the light state snapshot " + this.file, e);
+		}
+		finally
+		{
+			try
+			{
+				if (in != null)
+					in.close();
+			}
+			catch (IOException e)
+			{
+				// nothing to do
+			}
+		}
+	}
+
+	/**
+	 * Provides the fingerprint stored for the light having the given local id
+	 * 
+	 * @param localId
+	 *            The light local id.
+	 * @return the fingerprint, or null if none is stored
+	 */
+	public synchronized Long get(String localId)
+	{
+		return this.fingerprints.get(localId);
+	}
+
+	/**
+	 * Records the current fingerprint of the light having the given local id
+	 * 
+	 * @param localId
+	 *            The light local id.
+	 * @param fingerprint
+	 *            The current fingerprint.
+	 */
+	public synchronized void update(String localId, long fingerprint)
+	{
+		Long previous = this.fingerprints.put(localId, fingerprint);
+		this.dirty |= ((previous == null)
+				|| (previous.longValue() != fingerprint));
+	}
+
+	/**
+	 * Forgets the light having the given local id
+	 * 
+	 * @param localId
+	 *            The light local id.
+	 */
+	public synchronized void remove(String localId)
+	{
+		this.dirty |= (this.fingerprints.remove(localId) != null);
+	}
+
+	/**
+	 * Saves the snapshot on disk, if changed since the last save. The file is
+	 * replaced only once completely written; if it cannot be replaced, the
+	 * snapshot is saved again at the next save.
+	 */
+	public void save()
+	{
+		synchronized (this.saveLock)
+		{
+			this.write();
+		}
+	}
+
+	/**
+	 * Writes the snapshot on disk, if changed since the last save. Must be
+	 * called holding the save lock.
+	 */
+	private void write()
+	{
+		Map<String, Long> toSave;
+
+		synchronized (this)
+		{
+			if ((this.file == null) || (!this.dirty))
+				return;
+
+			this.dirty = false;
+			toSave = new HashMap<String, Long>(this.fingerprints);
+		}
+
+		// write outside of the lock, in a temporary file first
+		File temporary = new File(this.file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		boolean written = false;
+
+		try
+		{
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(temporary)));
+
+			out.writeInt(MAGIC);
+			out.writeInt(toSave.size());
+			for (Map.Entry<String, Long> entry : toSave.entrySet())
+			{
+				out.writeUTF(entry.getKey());
+				out.writeLong(entry.getValue());
+			}
+
+			out.close();
+			out = null;
+			written = true;
+		}
+		catch (IOException e)
+		{
+			this.logger.log(LogService.LOG_WARNING,
+					"Unable to save the light state snapshot " + this.file, e);
+		}
+		finally
+		{
+			try
+			{
+				if (out != null)
+					out.close();
+			}
+			catch (IOException e)
+			{
+				// nothing to do
+			}
+		}
+
+		// replace the snapshot file; renaming over an existing file fails on
+		// some platforms, the old file is then deleted and renaming retried
+		if ((written) && (!temporary.renameTo(this.file)))
+		{
+			this.file.delete();
+			if (!temporary.renameTo(this.file))
+			{
+				this.logger.log(LogService.LOG_WARNING,
+						"Unable to replace the light state snapshot "
+								+ this.file);
+				written = false;
+			}
+		}
+
+		if (!written)
+		{
+			// save again at the next save
+			synchronized (this)
+			{
+				this.dirty = true;
+			}
+		}
+	}
+}
@@ -24,6 +24,7 @@ import it.polito.elite.dog.core.library.model.DeviceCostants;
 import it.polito.elite.dog.core.library.model.devicecategory.HueBridge;
 import it.polito.elite.dog.core.library.model.devicecategory.HueManager;
 import it.polito.elite.dog.core.library.util.LogHelper;
+import it.polito.elite.dog.drivers.hue.network.HueDescriptorBuilder;
 import it.polito.elite.dog.drivers.hue.network.info.HueInfo;
 import it.polito.elite.dog.drivers.hue.network.interfaces.HueNetwork;
 
@@ -118,6 +119,9 @@ public class HueManagerDriver implements Driver, ManagedService
 	{
 		// remove the service from the OSGi framework
 		this.unRegister();
+
+		// discard the device templates parsed for the manager instance
+		HueDescriptorBuilder.release(this.context.getBundle());
 	}
 
 	/**
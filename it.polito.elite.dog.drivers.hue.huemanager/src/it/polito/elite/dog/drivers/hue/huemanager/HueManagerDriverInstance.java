@@ -3,7 +3,10 @@
  */
 package it.polito.elite.dog.drivers.hue.huemanager;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -19,6 +22,7 @@ import it.polito.elite.dog.core.library.model.state.DiscoveryState;
 import it.polito.elite.dog.core.library.model.statevalue.ActiveDiscoveryStateValue;
 import it.polito.elite.dog.core.library.model.statevalue.IdleStateValue;
 import it.polito.elite.dog.core.library.util.LogHelper;
+import it.polito.elite.dog.drivers.hue.network.HueDescriptorBuilder;
 import it.polito.elite.dog.drivers.hue.network.HueDriverInstance;
 import it.polito.elite.dog.drivers.hue.network.info.HueInfo;
 import it.polito.elite.dog.drivers.hue.network.interfaces.HueBridgeDiscoveryListener;
@@ -41,8 +45,8 @@ public class HueManagerDriverInstance extends HueDriverInstance implements
 	// the device factory to use for device (gateway) creation
 	private DeviceFactory deviceFactory;
 
-	// the device descriptor factory needed to create new device instances.
-	private DeviceDescriptorFactory descriptorFactory;
+	// the builder of the descriptors of the discovered gateways
+	private HueDescriptorBuilder descriptorBuilder;
 
 	// the set of known (already discovered) bridges
 	private Set<String> knownGateways;
@@ -63,17 +67,12 @@ public class HueManagerDriverInstance extends HueDriverInstance implements
 		// store the device factory instance
 		this.deviceFactory = deviceFactory;
 
-		// create the device descriptor factory
-		try
-		{
-			this.descriptorFactory = new DeviceDescriptorFactory(context
-					.getBundle().getEntry("/deviceTemplates"));
-		} catch (Exception e)
-		{
+		// get the device descriptor builder shared by the bundle instances
+		this.descriptorBuilder = HueDescriptorBuilder.forBundle(
+				context.getBundle(), this.logger);
 
-			this.logger.log(LogService.LOG_ERROR,
-					"Error while creating DeviceDescriptorFactory ", e);
-		}
+		// create the set of known gateways
+		this.knownGateways = Collections.synchronizedSet(new HashSet<String>());
 
 		// create the gateway status object
 		this.currentState = new DeviceStatus(device.getDeviceId());
@@ -178,81 +177,69 @@ public class HueManagerDriverInstance extends HueDriverInstance implements
 	{
 		// handle bridge discovery here...
 
+		// the definitions of the gateways to create
+		List<HueDescriptorBuilder.Definition> definitions = new ArrayList<HueDescriptorBuilder.Definition>();
+
 		for (PHAccessPoint accessPoint : accessPoints)
 		{
-			// check if not yet known
-			if (!this.knownGateways.contains(accessPoint.getIpAddress()))
-			{
-				// build a device descriptor for the gateway
-				DeviceDescriptor gatewayDescriptor = this
-						.buildGatewayDescriptor(accessPoint);
-
-				// add the gateway
-				// create the device and cross your fingers...
-				this.deviceFactory.addNewDevice(gatewayDescriptor);
-			}
+			// check if not yet known, marking it as known so that it is not
+			// created again by subsequent discoveries
+			if (this.knownGateways.add(accessPoint.getIpAddress()))
+				definitions.add(this.defineGateway(accessPoint));
 		}
 
+		if (definitions.isEmpty())
+			return;
+
+		// build all the descriptors at once, then add the gateways in a single
+		// pass
+		// create the devices and cross your fingers...
+		for (DeviceDescriptor gatewayDescriptor : this.descriptorBuilder
+				.buildAll(definitions))
+			this.deviceFactory.addNewDevice(gatewayDescriptor);
 	}
 
 	/**
-	 * Builds a complete {@link DeviceDescriptor} instance representing the
-	 * given Hue bridge (as a {@link PHAccessPoint} instance).
+	 * Defines the Dog device representing the given Hue bridge (as a
+	 * {@link PHAccessPoint} instance), i.e., the device template to render
+	 * and its data.
 	 * 
 	 * @param accessPoint The access point to describe.
-	 * @return The corresponding device descriptor.
+	 * @return The corresponding device definition.
 	 */
-	private DeviceDescriptor buildGatewayDescriptor(PHAccessPoint accessPoint)
+	private HueDescriptorBuilder.Definition defineGateway(
+			PHAccessPoint accessPoint)
 	{
-		// the device descriptor to return
-		DeviceDescriptor descriptor = null;
+		// create a descriptor definition map
+		HashMap<String, Object> descriptorDefinitionData = new HashMap<String, Object>();
 
-		if (this.descriptorFactory != null)
-		{
-			// create a descriptor definition map
-			HashMap<String, Object> descriptorDefinitionData = new HashMap<String, Object>();
-
-			// the device class is fixed
-			String deviceClass = HueBridge.class.getSimpleName();
-
-			// build the gateway name (TODO: check if it is suitable)
-			descriptorDefinitionData.put(DeviceDescriptorFactory.NAME,
-					deviceClass + "_" + accessPoint.getIpAddress());
-
-			// store the device description
-			descriptorDefinitionData.put(DeviceDescriptorFactory.DESCRIPTION,
-					"New Device of type " + deviceClass);
-
-			// store the device location
-			descriptorDefinitionData.put(DeviceDescriptorFactory.LOCATION, "");
-
-			// store the device local id
-			descriptorDefinitionData.put(HueInfo.LOCAL_ID,
-					HueInfo.GATEWAY_DEFAULT_LOCAL_ID);
-
-			// store the gateway ip address
-			descriptorDefinitionData.put(HueInfo.GATEWAY_ADDRESS,
-					accessPoint.getIpAddress());
-
-			// get the device descriptor
-			try
-			{
-				descriptor = this.descriptorFactory.getDescriptor(
-						descriptorDefinitionData, deviceClass);
-			} catch (Exception e)
-			{
-				this.logger
-						.log(LogService.LOG_ERROR,
-								"Error while creating DeviceDescriptor for the just added device ",
-								e);
-			}
-
-			// debug dump
-			this.logger.log(LogService.LOG_INFO,
-					"Detected new device:\n\ttdeviceClass: " + deviceClass);
+		// the device class is fixed
+		String deviceClass = HueBridge.class.getSimpleName();
 
-		}
+		// build the gateway name (TODO: check if it is suitable)
+		descriptorDefinitionData.put(DeviceDescriptorFactory.NAME,
+				deviceClass + "_" + accessPoint.getIpAddress());
+
+		// store the device description
+		descriptorDefinitionData.put(DeviceDescriptorFactory.DESCRIPTION,
+				"New Device of type " + deviceClass);
+
+		// store the device location
+		descriptorDefinitionData.put(DeviceDescriptorFactory.LOCATION, "");
+
+		// store the device local id
+		descriptorDefinitionData.put(HueInfo.LOCAL_ID,
+				HueInfo.GATEWAY_DEFAULT_LOCAL_ID);
+
+		// store the gateway ip address
+		descriptorDefinitionData.put(HueInfo.GATEWAY_ADDRESS,
+				accessPoint.getIpAddress());
+
+		// debug dump
+		this.logger.log(LogService.LOG_INFO,
+				"Detected new device:\n\ttdeviceClass: " + deviceClass);
 
-		return descriptor;
+		return new HueDescriptorBuilder.Definition(deviceClass,
+				descriptorDefinitionData);
 	}
 }
@@ -0,0 +1,406 @@
+/*
+ * Dog 2.0 - Hue Network Driver
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.network;
+
+import it.polito.elite.dog.core.library.util.LogHelper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import org.osgi.service.log.LogService;
+
+/**
+ * Keeps on disk the Hue bridges known by the network driver, with the bridge
+ * identifier, the whitelisted username and the local ids of the lights
+ * attached to Dog, so that, at startup, known bridges are connected right
+ * away, without waiting for a UPnP search, and known lights need not be
+ * discovered again.
+ * 
+ * The registry is stored as a properties file, whose keys are the bridge IP
+ * address followed by the name of the stored attribute.
+ * 
+ * @author bonino
+ * 
+ */
+public class HueBridgeRegistry
+{
+	// the name of the registry file, in the bundle data area
+	public static final String FILE_NAME = "bridges.properties";
+
+	// the key suffixes of the stored attributes
+	private static final String BRIDGE_ID = ".bridgeId";
+	private static final String USERNAME = ".username";
+	private static final String LIGHTS = ".lights";
+
+	// the separator of the stored light ids
+	private static final String LIGHT_SEPARATOR = ",";
+
+	// the registry file, null if the framework offers no data area
+	private File file;
+
+	// the known bridges, indexed by IP address, guarded by this
+	private Map<String, KnownBridge> bridges;
+
+	// true if the registry changed since the last save, guarded by this
+	private boolean dirty;
+
+	// the logger
+	private LogHelper logger;
+
+	/**
+	 * Creates a new registry stored in the given file
+	 * 
+	 * @param file
+	 *            The registry file, null to keep the registry in memory only.
+	 * @param logger
+	 *            The logger to use.
+	 */
+	public HueBridgeRegistry(File file, LogHelper logger)
+	{
+		// store the references
+		this.file = file;
+		this.logger = logger;
+
+		// initialize the bridge map
+		this.bridges = new LinkedHashMap<String, KnownBridge>();
+	}
+
+	/**
+	 * Loads the registry from disk, if stored
+	 */
+	public synchronized void load()
+	{
+		if ((this.file == null) || (!this.file.isFile()))
+			return;
+
+		Properties properties = new Properties();
+		InputStream in = null;
+
+		try
+		{
+			// read the registry file
+			in = new FileInputStream(this.file);
+			properties.load(in);
+		}
+		catch (IOException e)
+		{
+			this.logger.log(LogService.LOG_WARNING,
+					"Unable to load the known Hue bridges from " + this.file,
+					e);
+			return;
+		}
+		finally
+		{
+			HueBridgeRegistry.close(in);
+		}
+
+		// rebuild the bridges, from their usernames
+		for (String key : properties.stringPropertyNames())
+		{
+			if (key.endsWith(USERNAME))
+			{
+				String bridgeIp = key.substring(0,
+						key.length() - USERNAME.length());
+				KnownBridge bridge = this.getOrCreate(bridgeIp);
+
+				bridge.username = properties.getProperty(key);
+				bridge.bridgeId = properties.getProperty(bridgeIp + BRIDGE_ID);
+
+				String lights = properties.getProperty(bridgeIp + LIGHTS, "");
+				for (String localId : lights.split(LIGHT_SEPARATOR))
+					if (!localId.trim().isEmpty())
+						bridge.lights.add(localId.trim());
+			}
+		}
+
+		this.logger.log(LogService.LOG_DEBUG, "Loaded " + this.bridges.size()
+				+ " known Hue bridges");
+	}
+
+	/**
+	 * Saves the registry on disk, if changed since the last save. The file is
+	 * replaced only once completely written.
+	 */
+	public void save()
+	{
+		Properties properties = new Properties();
+
+		synchronized (this)
+		{
+			if ((this.file == null) || (!this.dirty))
+				return;
+
+			this.dirty = false;
+
+			// fill the properties
+			for (KnownBridge bridge : this.bridges.values())
+			{
+				properties.setProperty(bridge.ip + USERNAME,
+						(bridge.username != null) ? bridge.username : "");
+				if (bridge.bridgeId != null)
+					properties.setProperty(bridge.ip + BRIDGE_ID,
+							bridge.bridgeId);
+
+				StringBuilder lights = new StringBuilder();
+				for (String localId : bridge.lights)
+				{
+					if (lights.length() > 0)
+						lights.append(LIGHT_SEPARATOR);
+					lights.append(localId);
+				}
+				properties.setProperty(bridge.ip + LIGHTS, lights.toString());
+			}
+		}
+
+		// write outside of the lock, in a temporary file first
+		File temporary = new File(this.file.getPath() + ".tmp");
+		OutputStream out = null;
+		boolean written = false;
+
+		try
+		{
+			out = new FileOutputStream(temporary);
+			properties.store(out, "Known Hue bridges");
+			written = true;
+		}
+		catch (IOException e)
+		{
+			this.logger.log(LogService.LOG_WARNING,
+					"Unable to save the known Hue bridges in " + this.file, e);
+		}
+		finally
+		{
+			HueBridgeRegistry.close(out);
+		}
+
+		if (written)
+		{
+			// replace the registry file, renaming over an existing file fails
+			// on some platforms
+			this.file.delete();
+			if (!temporary.renameTo(this.file))
+				this.logger.log(LogService.LOG_WARNING,
+						"Unable to replace the known Hue bridges file "
+								+ this.file);
+		}
+		else
+			// save again at the next change
+			this.markDirty();
+	}
+
+	/**
+	 * @return the IP addresses of the known bridges
+	 */
+	public synchronized List<String> getBridgeIps()
+	{
+		return new ArrayList<String>(this.bridges.keySet());
+	}
+
+	/**
+	 * Provides the username whitelisted on the bridge having the given IP
+	 * address
+	 * 
+	 * @param bridgeIp
+	 *            The bridge IP address.
+	 * @return the username, or null if the bridge is not known
+	 */
+	public synchronized String getUsername(String bridgeIp)
+	{
+		KnownBridge bridge = this.bridges.get(bridgeIp);
+
+		return (bridge != null) ? bridge.username : null;
+	}
+
+	/**
+	 * Provides the local ids of the lights attached to Dog, for the bridge
+	 * having the given IP address
+	 * 
+	 * @param bridgeIp
+	 *            The bridge IP address.
+	 * @return the light ids, or null if the bridge is not known
+	 */
+	public synchronized String[] getKnownLights(String bridgeIp)
+	{
+		KnownBridge bridge = this.bridges.get(bridgeIp);
+
+		return (bridge != null) ? bridge.lights
+				.toArray(new String[bridge.lights.size()]) : null;
+	}
+
+	/**
+	 * Records a connection to the bridge having the given IP address
+	 * 
+	 * @param bridgeIp
+	 *            The bridge IP address.
+	 * @param bridgeId
+	 *            The bridge identifier, if available.
+	 * @param username
+	 *            The username whitelisted on the bridge.
+	 * @return true if the registry changed and has to be saved
+	 */
+	public synchronized boolean bridgeConnected(String bridgeIp,
+			String bridgeId, String username)
+	{
+		KnownBridge bridge = this.getOrCreate(bridgeIp);
+
+		// nothing new
+		if (HueBridgeRegistry.equal(bridge.username, username)
+				&& HueBridgeRegistry.equal(bridge.bridgeId, bridgeId))
+			return false;
+
+		bridge.username = username;
+		bridge.bridgeId = bridgeId;
+
+		return this.markDirty();
+	}
+
+	/**
+	 * Records a light attached to Dog
+	 * 
+	 * @param bridgeIp
+	 *            The IP address of the bridge holding the light.
+	 * @param localId
+	 *            The light local id.
+	 * @return true if the registry changed and has to be saved
+	 */
+	public synchronized boolean addKnownLight(String bridgeIp, String localId)
+	{
+		KnownBridge bridge = this.bridges.get(bridgeIp);
+
+		// lights are recorded for connected bridges only
+		return (bridge != null) && (bridge.lights.add(localId))
+				&& (this.markDirty());
+	}
+
+	/**
+	 * Forgets a light no longer attached to Dog
+	 * 
+	 * @param bridgeIp
+	 *            The IP address of the bridge holding the light.
+	 * @param localId
+	 *            The light local id.
+	 * @return true if the registry changed and has to be saved
+	 */
+	public synchronized boolean removeKnownLight(String bridgeIp,
+			String localId)
+	{
+		KnownBridge bridge = this.bridges.get(bridgeIp);
+
+		return (bridge != null) && (bridge.lights.remove(localId))
+				&& (this.markDirty());
+	}
+
+	/**
+	 * Marks the registry as changed
+	 * 
+	 * @return true if the registry was not already marked, i.e., if a save
+	 *         has to be scheduled
+	 */
+	private synchronized boolean markDirty()
+	{
+		boolean wasDirty = this.dirty;
+		this.dirty = true;
+
+		return !wasDirty;
+	}
+
+	/**
+	 * Provides the known bridge having the given IP address, creating it if
+	 * needed. Must be called holding the lock.
+	 * 
+	 * @param bridgeIp
+	 *            The bridge IP address.
+	 * @return the known bridge
+	 */
+	private KnownBridge getOrCreate(String bridgeIp)
+	{
+		KnownBridge bridge = this.bridges.get(bridgeIp);
+		if (bridge == null)
+		{
+			bridge = new KnownBridge(bridgeIp);
+			this.bridges.put(bridgeIp, bridge);
+		}
+
+		return bridge;
+	}
+
+	/**
+	 * Null-safe string equality
+	 */
+	private static boolean equal(String a, String b)
+	{
+		return (a == null) ? (b == null) : a.equals(b);
+	}
+
+	/**
+	 * Closes the given stream, ignoring errors
+	 */
+	private static void close(Closeable stream)
+	{
+		if (stream != null)
+		{
+			try
+			{
+				stream.close();
+			}
+			catch (IOException e)
+			{
+				// nothing to do
+			}
+		}
+	}
+
+	/**
+	 * A known bridge
+	 * 
+	 * @author bonino
+	 * 
+	 */
+	private static class KnownBridge
+	{
+		// the bridge IP address
+		private String ip;
+
+		// the bridge identifier, null if unknown
+		private String bridgeId;
+
+		// the whitelisted username
+		private String username;
+
+		// the local ids of the lights attached to Dog, sorted
+		private TreeSet<String> lights;
+
+		public KnownBridge(String ip)
+		{
+			this.ip = ip;
+			this.lights = new TreeSet<String>();
+		}
+	}
+}
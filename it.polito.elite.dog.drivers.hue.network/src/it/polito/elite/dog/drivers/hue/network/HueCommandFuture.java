@@ -0,0 +1,419 @@
+/*
+ * Dog 2.0 - Hue Network Driver
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.network;
+
+import it.polito.elite.dog.drivers.hue.network.info.HueDeviceIdentifier;
+import it.polito.elite.dog.drivers.hue.network.interfaces.HueCommandListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of a light or group command submitted to the network
+ * driver. The
+ * command completes with {@link Boolean#TRUE} when the bridge acknowledges it
+ * and with {@link Boolean#FALSE} when the bridge rejects it, or when it cannot
+ * be delivered; the failure details are available through
+ * {@link #getErrorCode()} and {@link #getErrorMessage()}. A command can be
+ * cancelled only while it is waiting in the bridge command queue on its own:
+ * once sent, or once merged with other commands, {@link #cancel(boolean)}
+ * returns false and the command is delivered.
+ * 
+ * Completion can either be awaited, through the {@link Future} methods, or be
+ * notified to {@link HueCommandListener}s, without blocking the submitting
+ * thread.
+ * 
+ * @author bonino
+ * 
+ */
+public class HueCommandFuture implements Future<Boolean>
+{
+	// the error code of commands that received no response in time
+	public static final int ERROR_TIMEOUT = -1;
+
+	// the error code of commands discarded before being sent
+	public static final int ERROR_DISCARDED = -2;
+
+	// the error code of commands that the SDK failed to send
+	public static final int ERROR_NOT_SENT = -3;
+
+	// the device to which the command is addressed, null for group commands
+	private HueDeviceIdentifier device;
+
+	// the IP address of the bridge to which the command is addressed
+	private String bridgeIp;
+
+	// the group to which the command is addressed, null for light commands
+	private String groupId;
+
+	// the scene recalled by the command, null if not a scene recall
+	private String sceneId;
+
+	// released on completion
+	private CountDownLatch completion;
+
+	// the listeners to notify on completion, null once completed
+	private List<HueCommandListener> listeners;
+
+	// the command result, null until completed
+	private volatile Boolean result;
+
+	// the error code, if the command failed
+	private volatile int errorCode;
+
+	// the error message, if the command failed
+	private volatile String errorMessage;
+
+	// the submission time, in nanoseconds
+	private long submissionTime;
+
+	// the completion time, in nanoseconds
+	private volatile long completionTime;
+
+	// true once the command can no longer be cancelled, i.e., once sent or
+	// merged with other commands, guarded by this
+	private boolean committed;
+
+	/**
+	 * Creates the future of a command addressed to the given device
+	 * 
+	 * @param device
+	 *            The device to which the command is addressed.
+	 */
+	public HueCommandFuture(HueDeviceIdentifier device)
+	{
+		// store the device
+		this.device = device;
+		this.bridgeIp = device.getBridgeIp();
+
+		// initialize the completion latch and listeners
+		this.completion = new CountDownLatch(1);
+		this.listeners = new ArrayList<HueCommandListener>();
+
+		// store the submission time
+		this.submissionTime = System.nanoTime();
+	}
+
+	/**
+	 * Creates the future of a command addressed to the given bridge group
+	 * 
+	 * @param bridgeIp
+	 *            The IP address of the bridge holding the group.
+	 * @param groupId
+	 *            The bridge identifier of the group to which the command is
+	 *            addressed.
+	 */
+	public HueCommandFuture(String bridgeIp, String groupId)
+	{
+		this(bridgeIp, groupId, null);
+	}
+
+	/**
+	 * Creates the future of the recall of the given scene on the given bridge
+	 * group
+	 * 
+	 * @param bridgeIp
+	 *            The IP address of the bridge holding the scene.
+	 * @param groupId
+	 *            The bridge identifier of the group on which the scene is
+	 *            recalled.
+	 * @param sceneId
+	 *            The bridge identifier of the scene, or null if the command
+	 *            is not a scene recall.
+	 */
+	public HueCommandFuture(String bridgeIp, String groupId, String sceneId)
+	{
+		// store the group and scene
+		this.bridgeIp = bridgeIp;
+		this.groupId = groupId;
+		this.sceneId = sceneId;
+
+		// initialize the completion latch and listeners
+		this.completion = new CountDownLatch(1);
+		this.listeners = new ArrayList<HueCommandListener>();
+
+		// store the submission time
+		this.submissionTime = System.nanoTime();
+	}
+
+	/**
+	 * @return the device to which the command is addressed, null for group
+	 *         commands
+	 */
+	public HueDeviceIdentifier getDevice()
+	{
+		return this.device;
+	}
+
+	/**
+	 * @return the IP address of the bridge to which the command is addressed
+	 */
+	public String getBridgeIp()
+	{
+		return this.bridgeIp;
+	}
+
+	/**
+	 * @return the bridge group to which the command is addressed, null for
+	 *         light commands
+	 */
+	public String getGroupId()
+	{
+		return this.groupId;
+	}
+
+	/**
+	 * @return the bridge scene recalled by the command, null if not a scene
+	 *         recall
+	 */
+	public String getSceneId()
+	{
+		return this.sceneId;
+	}
+
+	/**
+	 * Adds a listener notified when the command completes. If the command is
+	 * already completed, the listener is immediately notified on the calling
+	 * thread.
+	 * 
+	 * @param listener
+	 *            The {@link HueCommandListener} to notify.
+	 */
+	public void addListener(HueCommandListener listener)
+	{
+		boolean completed = false;
+
+		synchronized (this)
+		{
+			if (this.listeners != null)
+				this.listeners.add(listener);
+			else
+				completed = true;
+		}
+
+		// notify outside of the lock
+		if (completed)
+			listener.onCommandCompleted(this);
+	}
+
+	/**
+	 * @return true if the bridge acknowledged the command
+	 */
+	public boolean isSuccessful()
+	{
+		return Boolean.TRUE.equals(this.result);
+	}
+
+	/**
+	 * @return the error code, if the command failed, either the bridge error
+	 *         code or one of the ERROR_* constants
+	 */
+	public int getErrorCode()
+	{
+		return this.errorCode;
+	}
+
+	/**
+	 * @return the error message, if the command failed
+	 */
+	public String getErrorMessage()
+	{
+		return this.errorMessage;
+	}
+
+	/**
+	 * Provides the time elapsed between the command submission and its
+	 * completion, or up to now if the command is still pending
+	 * 
+	 * @param unit
+	 *            The unit in which the latency shall be expressed.
+	 * @return the command latency
+	 */
+	public long getLatency(TimeUnit unit)
+	{
+		long end = this.isDone() ? this.completionTime : System.nanoTime();
+		return unit.convert(end - this.submissionTime, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning)
+	{
+		// only pending commands not merged with others can be cancelled, the
+		// queue drops them before sending
+		return this.complete(null, ERROR_DISCARDED, "Command cancelled", true);
+	}
+
+	@Override
+	public boolean isCancelled()
+	{
+		// cancelled commands complete without result
+		return this.isDone() && (this.result == null);
+	}
+
+	@Override
+	public boolean isDone()
+	{
+		return this.completion.getCount() == 0;
+	}
+
+	@Override
+	public Boolean get() throws InterruptedException
+	{
+		// wait for completion
+		this.completion.await();
+
+		return this.getResult();
+	}
+
+	@Override
+	public Boolean get(long timeout, TimeUnit unit)
+			throws InterruptedException, TimeoutException
+	{
+		// wait for completion, at most for the given time
+		if (!this.completion.await(timeout, unit))
+			throw new TimeoutException("No response from bridge "
+					+ this.bridgeIp
+					+ this.describeTarget());
+
+		return this.getResult();
+	}
+
+	/**
+	 * Completes the command as acknowledged by the bridge
+	 * 
+	 * @return true if the command has been completed by this call
+	 */
+	boolean acknowledge()
+	{
+		return this.complete(Boolean.TRUE, 0, null, false);
+	}
+
+	/**
+	 * Completes the command as failed
+	 * 
+	 * @param code
+	 *            The error code.
+	 * @param message
+	 *            The error message.
+	 * @return true if the command has been completed by this call
+	 */
+	boolean fail(int code, String message)
+	{
+		return this.complete(Boolean.FALSE, code, message, false);
+	}
+
+	/**
+	 * Prevents the cancellation of the command, as it is being sent or merged
+	 * with other commands
+	 * 
+	 * @return false if the command was already completed, e.g., cancelled
+	 */
+	synchronized boolean commit()
+	{
+		if (this.listeners == null)
+			return false;
+
+		this.committed = true;
+
+		return true;
+	}
+
+	/**
+	 * Completes the command, if not yet completed, and notifies the
+	 * registered listeners
+	 * 
+	 * @param result
+	 *            The command result, null if cancelled.
+	 * @param code
+	 *            The error code.
+	 * @param message
+	 *            The error message.
+	 * @param uncommittedOnly
+	 *            True if the command shall be completed only if not yet
+	 *            committed, i.e., when cancelled.
+	 * @return true if the command has been completed by this call
+	 */
+	private boolean complete(Boolean result, int code, String message,
+			boolean uncommittedOnly)
+	{
+		List<HueCommandListener> toNotify = null;
+
+		synchronized (this)
+		{
+			// the first completion wins
+			if ((this.listeners != null)
+					&& ((!uncommittedOnly) || (!this.committed)))
+			{
+				this.result = result;
+				this.errorCode = code;
+				this.errorMessage = message;
+				this.completionTime = System.nanoTime();
+
+				// detach the listeners
+				toNotify = this.listeners;
+				this.listeners = null;
+			}
+		}
+
+		if (toNotify != null)
+		{
+			// release waiting threads
+			this.completion.countDown();
+
+			// notify the listeners
+			for (HueCommandListener listener : toNotify)
+				listener.onCommandCompleted(this);
+		}
+
+		return toNotify != null;
+	}
+
+	/**
+	 * Describes the command target, for error messages
+	 * 
+	 * @return the target description
+	 */
+	private String describeTarget()
+	{
+		if (this.sceneId != null)
+			return " for scene " + this.sceneId;
+		else if (this.groupId != null)
+			return " for group " + this.groupId;
+		else
+			return " for light " + this.device.getLocalId();
+	}
+
+	/**
+	 * Provides the result of a completed command
+	 * 
+	 * @return the result
+	 */
+	private Boolean getResult()
+	{
+		if (this.result == null)
+			throw new CancellationException(this.errorMessage);
+
+		return this.result;
+	}
+}
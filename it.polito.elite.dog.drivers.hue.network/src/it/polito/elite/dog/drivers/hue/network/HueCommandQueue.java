@@ -0,0 +1,1394 @@
+/*
+ * Dog 2.0 - Hue Network Driver
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.network;
+
+import it.polito.elite.dog.core.library.util.LogHelper;
+import it.polito.elite.dog.drivers.hue.network.info.HueDeviceIdentifier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.service.log.LogService;
+
+import com.philips.lighting.hue.listener.PHGroupListener;
+import com.philips.lighting.hue.listener.PHLightListener;
+import com.philips.lighting.hue.listener.PHSceneListener;
+import com.philips.lighting.model.PHBridge;
+import com.philips.lighting.model.PHBridgeResource;
+import com.philips.lighting.model.PHGroup;
+import com.philips.lighting.model.PHHueError;
+import com.philips.lighting.model.PHLight;
+import com.philips.lighting.model.PHLightState;
+
+/**
+ * Holds the light and group state updates pending on a single Hue bridge.
+ * Updates addressed to the same light (or group) are merged into one
+ * {@link PHLightState} (the last writer wins on each attribute) and the queue
+ * is drained at a fixed per-bridge budget, so that bursts of commands never
+ * exceed the rate the bridge is able to handle. Group commands, including
+ * scene recalls, are further limited to one every
+ * {@link #GROUP_COMMAND_INTERVAL_MILLIS}, as the bridge does.
+ * 
+ * Every submitted command gets a {@link HueCommandFuture}, completed when the
+ * bridge responds to the (possibly merged) command that carried it. At most
+ * one command per light is in flight at any time and a command is never sent
+ * before older commands addressing the same lights, so that updates of the
+ * same light reach the bridge in submission order, whether addressed to the
+ * light or to one of its groups. Identical commands addressed to several
+ * lights are rewritten into a single group action, as planned by the bridge
+ * {@link HueGroupPlanner}.
+ * 
+ * @author bonino
+ * 
+ */
+public class HueCommandQueue implements Runnable
+{
+	// the time after which an unanswered command is considered lost, in
+	// milliseconds
+	public static final long RESPONSE_TIMEOUT_MILLIS = 10000;
+
+	// the minimum time between two group commands, in milliseconds
+	public static final long GROUP_COMMAND_INTERVAL_MILLIS = 1000;
+
+	// the prefixes distinguishing group and scene keys from light keys
+	private static final String GROUP_KEY_PREFIX = "group/";
+	private static final String SCENE_KEY_PREFIX = "scene/";
+	private static final String FAN_IN_KEY = "fan-in";
+
+	// the IP address of the bridge served by this queue
+	private String bridgeIp;
+
+	// the network driver owning this queue, used to get the connected bridge
+	private HueNetworkDriver network;
+
+	// the pending commands, in arrival order
+	private LinkedList<PendingCommand> pendingStates;
+
+	// the pending commands still accepting merges, indexed by light local id
+	// or group key, guarded by the pending states lock
+	private HashMap<String, PendingCommand> mergeableStates;
+
+	// the commands sent and still waiting for the bridge response, indexed by
+	// light local id, guarded by the pending states lock
+	private HashMap<String, InFlightCommand> inFlight;
+
+	// the time at which the last group command was sent, in nanoseconds
+	private long lastGroupCommandTime;
+
+	// the planner rewriting identical light commands into group actions
+	private HueGroupPlanner planner;
+
+	// the number of commands submitted to this queue
+	private AtomicLong submittedCommands;
+
+	// the number of commands merged into an already pending one
+	private AtomicLong mergedCommands;
+
+	// the number of commands actually sent to the bridge
+	private AtomicLong sentCommands;
+
+	// the number of group commands actually sent to the bridge
+	private AtomicLong sentGroupCommands;
+
+	// the number of commands rejected by the bridge
+	private AtomicLong failedCommands;
+
+	// the number of commands acknowledged by the bridge
+	private AtomicLong acknowledgedCommands;
+
+	// the handle of the drain task, if scheduled
+	private ScheduledFuture<?> drainTask;
+
+	// the logger
+	private LogHelper logger;
+
+	/**
+	 * Creates a new command queue for the bridge having the given IP address
+	 * 
+	 * @param bridgeIp
+	 *            The IP address of the bridge served by this queue.
+	 * @param network
+	 *            The network driver from which getting the connected bridge.
+	 * @param logger
+	 *            The logger to use.
+	 */
+	public HueCommandQueue(String bridgeIp, HueNetworkDriver network,
+			LogHelper logger)
+	{
+		// store the bridge ip
+		this.bridgeIp = bridgeIp;
+
+		// store the network driver reference
+		this.network = network;
+
+		// store the logger
+		this.logger = logger;
+
+		// initialize the pending states
+		this.pendingStates = new LinkedList<PendingCommand>();
+		this.mergeableStates = new HashMap<String, PendingCommand>();
+		this.inFlight = new HashMap<String, InFlightCommand>();
+
+		// group commands can be sent immediately
+		this.lastGroupCommandTime = System.nanoTime()
+				- TimeUnit.MILLISECONDS.toNanos(GROUP_COMMAND_INTERVAL_MILLIS);
+
+		// create the group planner
+		this.planner = new HueGroupPlanner(bridgeIp, logger);
+
+		// initialize the counters
+		this.submittedCommands = new AtomicLong();
+		this.mergedCommands = new AtomicLong();
+		this.sentCommands = new AtomicLong();
+		this.sentGroupCommands = new AtomicLong();
+		this.failedCommands = new AtomicLong();
+		this.acknowledgedCommands = new AtomicLong();
+	}
+
+	/**
+	 * Adds the given light state to the queue, merging it with the state
+	 * already pending for the same light, if any.
+	 * 
+	 * @param device
+	 *            The light to update.
+	 * @param lightState
+	 *            The state to apply.
+	 * @return the {@link HueCommandFuture} completed when the bridge responds
+	 */
+	public HueCommandFuture enqueue(HueDeviceIdentifier device,
+			PHLightState lightState)
+	{
+		// the command future
+		HueCommandFuture future = new HueCommandFuture(device);
+
+		// queue the command
+		this.enqueue(device.getLocalId(), null, null,
+				new String[] { device.getLocalId() }, lightState, future);
+
+		return future;
+	}
+
+	/**
+	 * Adds the given group state to the queue, merging it with the state
+	 * already pending for the same group, if any.
+	 * 
+	 * @param groupId
+	 *            The bridge identifier of the group to update.
+	 * @param lightIds
+	 *            The local ids of the group lights.
+	 * @param lightState
+	 *            The state to apply to all the group lights.
+	 * @return the {@link HueCommandFuture} completed when the bridge responds
+	 */
+	public HueCommandFuture enqueueGroup(String groupId, String[] lightIds,
+			PHLightState lightState)
+	{
+		// the command future
+		HueCommandFuture future = new HueCommandFuture(this.bridgeIp, groupId);
+
+		// queue the command
+		this.enqueue(GROUP_KEY_PREFIX + groupId, groupId, null,
+				lightIds.clone(), lightState, future);
+
+		return future;
+	}
+
+	/**
+	 * Adds the recall of the given bridge scene to the queue; repeated recalls
+	 * of the same scene not yet sent are merged.
+	 * 
+	 * @param sceneId
+	 *            The bridge identifier of the scene to recall.
+	 * @param lightIds
+	 *            The local ids of the scene lights.
+	 * @return the {@link HueCommandFuture} completed when the bridge responds
+	 */
+	public HueCommandFuture enqueueScene(String sceneId, String[] lightIds)
+	{
+		// the command future
+		HueCommandFuture future = new HueCommandFuture(this.bridgeIp,
+				HueGroupPlanner.ALL_LIGHTS_GROUP, sceneId);
+
+		// queue the command, scenes carry no light state
+		this.enqueue(SCENE_KEY_PREFIX + sceneId, HueGroupPlanner.ALL_LIGHTS_GROUP, sceneId,
+				lightIds.clone(), null, future);
+
+		return future;
+	}
+
+	/**
+	 * Starts draining the queue on the given scheduler, sending at most one
+	 * command every given period.
+	 * 
+	 * @param scheduler
+	 *            The scheduler on which the drain task shall run.
+	 * @param periodMillis
+	 *            The time between two subsequent commands, in milliseconds.
+	 */
+	public synchronized void start(ScheduledExecutorService scheduler,
+			long periodMillis)
+	{
+		// stop any previous drain task
+		this.stop();
+
+		// schedule the drain task
+		this.drainTask = scheduler.scheduleAtFixedRate(this, periodMillis,
+				periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops draining the queue, pending commands are kept.
+	 */
+	public synchronized void stop()
+	{
+		if (this.drainTask != null)
+		{
+			// cancel the drain task
+			this.drainTask.cancel(false);
+			this.drainTask = null;
+		}
+	}
+
+	/**
+	 * @return the planner rewriting identical light commands into group
+	 *         actions
+	 */
+	public HueGroupPlanner getPlanner()
+	{
+		return this.planner;
+	}
+
+	@Override
+	public void run()
+	{
+		// get the bridge, if connected
+		PHBridge bridge = this.network.getBridge(this.bridgeIp);
+
+		// commands are kept until the bridge is connected
+		if (bridge != null)
+		{
+			PendingCommand command = null;
+			InFlightCommand sent = null;
+			List<InFlightCommand> expired;
+
+			synchronized (this.pendingStates)
+			{
+				// release lights whose command got no response in time
+				expired = this.expireInFlight();
+
+				// extract the oldest command that can be sent
+				command = this.next(bridge);
+
+				if (command != null)
+				{
+					// the command lights are in flight until the bridge
+					// responds
+					sent = new InFlightCommand(command);
+					for (String lightId : command.lightIds)
+						this.inFlight.put(lightId, sent);
+
+					// consume the group budget
+					if (command.groupId != null)
+						this.lastGroupCommandTime = System.nanoTime();
+				}
+			}
+
+			// fail the expired commands outside of the lock
+			for (InFlightCommand expiredCommand : expired)
+			{
+				// log the loss
+				this.logger.log(LogService.LOG_WARNING,
+						"No response from bridge " + this.bridgeIp + " for "
+								+ expiredCommand.describe());
+
+				expiredCommand.complete(HueCommandFuture.ERROR_TIMEOUT,
+						"No response from the bridge");
+			}
+
+			// send the command, if any
+			if (command != null)
+			{
+				try
+				{
+					if (command.sceneId != null)
+					{
+						// recall the scene on the bridge
+						bridge.activateScene(command.sceneId, command.groupId,
+								new SceneCommandListener(sent));
+
+						// count the sent group command
+						this.sentGroupCommands.incrementAndGet();
+					}
+					else if (command.membership != null)
+					{
+						// set the members of the fan-in group, then update
+						// its state
+						PHGroup group = new PHGroup(
+								HueGroupPlanner.FAN_IN_GROUP_NAME,
+								command.groupId);
+						group.setLightIdentifiers(command.membership);
+						bridge.updateGroup(group, new MembershipListener(
+								bridge, command, sent));
+
+						// count the sent group command
+						this.sentGroupCommands.incrementAndGet();
+					}
+					else if (command.groupId != null)
+					{
+						// update the group state on the bridge
+						bridge.setLightStateForGroup(command.groupId,
+								command.state, new GroupCommandListener(sent));
+
+						// count the sent group command
+						this.sentGroupCommands.incrementAndGet();
+					}
+					else
+						// update the light state on the bridge
+						bridge.updateLightState(command.key, command.state,
+								new CommandListener(sent));
+
+					// count the sent command
+					this.sentCommands.incrementAndGet();
+				}
+				catch (Exception e)
+				{
+					// complete the command as failed
+					sent.complete(HueCommandFuture.ERROR_NOT_SENT,
+							e.getMessage());
+
+					// log the error
+					this.logger.log(LogService.LOG_ERROR,
+							"Unable to send the command for "
+									+ sent.describe() + " on bridge "
+									+ this.bridgeIp, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Discards all the pending commands, completing them as failed, e.g.,
+	 * when the network driver is deactivated.
+	 * 
+	 * @return the number of discarded commands
+	 */
+	public int discard()
+	{
+		List<PendingCommand> discarded;
+		Set<InFlightCommand> unanswered;
+
+		synchronized (this.pendingStates)
+		{
+			// detach pending and in-flight commands
+			discarded = new ArrayList<PendingCommand>(this.pendingStates);
+			unanswered = new HashSet<InFlightCommand>(this.inFlight.values());
+			this.pendingStates.clear();
+			this.mergeableStates.clear();
+			this.inFlight.clear();
+		}
+
+		// complete the detached commands outside of the lock
+		for (PendingCommand command : discarded)
+			for (HueCommandFuture future : command.futures)
+				future.fail(HueCommandFuture.ERROR_DISCARDED,
+						"Command discarded");
+		for (InFlightCommand command : unanswered)
+		{
+			command.finish(false);
+			for (HueCommandFuture future : command.futures)
+				future.fail(HueCommandFuture.ERROR_DISCARDED,
+						"Command discarded");
+		}
+
+		return discarded.size();
+	}
+
+	/**
+	 * Provides the number of commands currently waiting to be sent
+	 * 
+	 * @return the queue depth
+	 */
+	public int getDepth()
+	{
+		synchronized (this.pendingStates)
+		{
+			return this.pendingStates.size();
+		}
+	}
+
+	/**
+	 * @return the number of submitted commands
+	 */
+	public long getSubmittedCommands()
+	{
+		return this.submittedCommands.get();
+	}
+
+	/**
+	 * @return the number of commands merged into already pending ones
+	 */
+	public long getMergedCommands()
+	{
+		return this.mergedCommands.get();
+	}
+
+	/**
+	 * @return the number of commands sent to the bridge
+	 */
+	public long getSentCommands()
+	{
+		return this.sentCommands.get();
+	}
+
+	/**
+	 * @return the number of group commands sent to the bridge
+	 */
+	public long getSentGroupCommands()
+	{
+		return this.sentGroupCommands.get();
+	}
+
+	/**
+	 * @return the number of commands rejected by the bridge
+	 */
+	public long getFailedCommands()
+	{
+		return this.failedCommands.get();
+	}
+
+	/**
+	 * @return the number of commands acknowledged by the bridge
+	 */
+	public long getAcknowledgedCommands()
+	{
+		return this.acknowledgedCommands.get();
+	}
+
+	/**
+	 * Merges the given update into the given target state: all the attributes
+	 * set in the update overwrite the corresponding target attributes, whereas
+	 * attributes not set in the update are left untouched.
+	 * 
+	 * @param target
+	 *            The state to update.
+	 * @param update
+	 *            The state carrying the newest attribute values.
+	 */
+	public static void merge(PHLightState target, PHLightState update)
+	{
+		if (update.isOn() != null)
+			target.setOn(update.isOn());
+		if (update.getBrightness() != PHLightState.VALUE_NOT_SET)
+			target.setBrightness(update.getBrightness());
+		if (update.getHue() != PHLightState.VALUE_NOT_SET)
+			target.setHue(update.getHue());
+		if (update.getSaturation() != PHLightState.VALUE_NOT_SET)
+			target.setSaturation(update.getSaturation());
+		if (update.getCt() != PHLightState.VALUE_NOT_SET)
+			target.setCt(update.getCt());
+		if (update.getX() != PHLightState.VALUE_NOT_SET)
+			target.setX(update.getX());
+		if (update.getY() != PHLightState.VALUE_NOT_SET)
+			target.setY(update.getY());
+		if (update.getTransitionTime() != PHLightState.VALUE_NOT_SET)
+			target.setTransitionTime(update.getTransitionTime());
+		if (update.getAlertMode() != null)
+			target.setAlertMode(update.getAlertMode());
+		if (update.getEffectMode() != null)
+			target.setEffectMode(update.getEffectMode());
+		if (update.getColorMode() != null)
+			target.setColorMode(update.getColorMode());
+	}
+
+	/**
+	 * Queues a command, merging it into the pending command having the same
+	 * key, if it still accepts merges. A new command stops merges into all the
+	 * pending commands addressing the same lights, which shall be sent before
+	 * it. Merged commands can no longer be cancelled, as the merged state
+	 * cannot be split back; a cancelled command accepts no merges.
+	 * 
+	 * @param key
+	 *            The light local id or the group key.
+	 * @param groupId
+	 *            The group id, or null for light commands.
+	 * @param sceneId
+	 *            The scene id, or null if not a scene recall.
+	 * @param lightIds
+	 *            The addressed lights.
+	 * @param lightState
+	 *            The state to apply, null for scene recalls.
+	 * @param future
+	 *            The future of the command.
+	 */
+	private void enqueue(String key, String groupId, String sceneId,
+			String[] lightIds, PHLightState lightState,
+			HueCommandFuture future)
+	{
+		synchronized (this.pendingStates)
+		{
+			// get the pending command still accepting merges, if any
+			PendingCommand pending = this.mergeableStates.get(key);
+
+			// a cancelled command is dropped rather than merged into
+			if ((pending != null) && (!pending.commit()))
+			{
+				this.mergeableStates.remove(key);
+				pending = null;
+			}
+
+			if (pending != null)
+			{
+				// merge the new state into the pending one, if any
+				if (lightState != null)
+					HueCommandQueue.merge(pending.state, lightState);
+
+				// the new command cannot be cancelled either
+				future.commit();
+
+				// count the merge
+				this.mergedCommands.incrementAndGet();
+			}
+			else
+			{
+				// store a copy, to avoid aliasing with the caller
+				pending = new PendingCommand(key, groupId, sceneId, lightIds,
+						(lightState != null) ? new PHLightState(lightState)
+								: null);
+
+				// older commands addressing the same lights are sent first,
+				// therefore they can no longer absorb newer updates
+				for (PendingCommand older : this.pendingStates)
+					if ((this.mergeableStates.get(older.key) == older)
+							&& (older.overlaps(lightIds)))
+						this.mergeableStates.remove(older.key);
+
+				// queue the command
+				this.pendingStates.addLast(pending);
+				this.mergeableStates.put(key, pending);
+			}
+
+			// the future completes with the (merged) command
+			pending.futures.add(future);
+		}
+
+		// count the submission
+		this.submittedCommands.incrementAndGet();
+	}
+
+	/**
+	 * Extracts the oldest command that can be sent, i.e., whose lights have no
+	 * command in flight nor older pending commands, and, for group commands,
+	 * within the group budget. Light commands are held for the planner
+	 * batching window and, if possible, fanned in with identical commands
+	 * addressed to other lights. Cancelled commands are dropped, the
+	 * extracted command can no longer be cancelled. Must be called holding
+	 * the pending states lock.
+	 * 
+	 * @param bridge
+	 *            The bridge to which the command will be sent.
+	 * @return the command to send, or null if none
+	 */
+	private PendingCommand next(PHBridge bridge)
+	{
+		PendingCommand next = null;
+
+		// the lights addressed by older pending commands, lazily allocated
+		Set<String> busyLights = null;
+
+		// check the group budget
+		long now = System.nanoTime();
+		boolean groupBudgetAvailable = (now - this.lastGroupCommandTime) >= TimeUnit.MILLISECONDS
+				.toNanos(GROUP_COMMAND_INTERVAL_MILLIS);
+
+		Iterator<PendingCommand> iterator = this.pendingStates.iterator();
+		while ((next == null) && (iterator.hasNext()))
+		{
+			PendingCommand command = iterator.next();
+
+			if (command.isCancelled())
+			{
+				// drop the command
+				iterator.remove();
+				this.unindex(command);
+			}
+			else if (((command.groupId == null) || (groupBudgetAvailable))
+					&& (this.isFree(command.lightIds, busyLights))
+					&& ((command.groupId != null) || (!this.planner.isHeld(
+							command.enqueueTime, now))))
+			{
+				// send the command, unless cancelled meanwhile
+				iterator.remove();
+				this.unindex(command);
+				if (command.commit())
+					next = command;
+			}
+			else
+			{
+				// newer commands addressing the same lights must wait
+				if (busyLights == null)
+					busyLights = new HashSet<String>();
+				for (String lightId : command.lightIds)
+					busyLights.add(lightId);
+			}
+		}
+
+		// try to send light commands as a single group action
+		if ((next != null) && (next.groupId == null) && (groupBudgetAvailable)
+				&& (this.planner.isEnabled()))
+			next = this.fanIn(bridge, next, busyLights);
+
+		return next;
+	}
+
+	/**
+	 * Collects the pending light commands that can be sent together with the
+	 * given one, i.e., carrying an identical state and addressing free lights,
+	 * and, if enough and a suitable bridge group is available, rewrites them
+	 * into a single group command. Must be called holding the pending states
+	 * lock.
+	 * 
+	 * @param bridge
+	 *            The bridge to which the command will be sent.
+	 * @param first
+	 *            The light command to send, already extracted from the queue.
+	 * @param busyLights
+	 *            The lights addressed by commands older than the given one, or
+	 *            null.
+	 * @return the group command, or the given command if no fan-in is possible
+	 */
+	private PendingCommand fanIn(PHBridge bridge, PendingCommand first,
+			Set<String> busyLights)
+	{
+		// the lights already taken by the fan-in or by older commands
+		Set<String> takenLights = (busyLights != null) ? new HashSet<String>(
+				busyLights) : new HashSet<String>();
+		takenLights.add(first.key);
+
+		// the commands to fan in
+		List<PendingCommand> parts = new ArrayList<PendingCommand>();
+		parts.add(first);
+
+		for (PendingCommand command : this.pendingStates)
+		{
+			if ((command.groupId == null) && (!command.isCancelled())
+					&& (first.state.equals(command.state))
+					&& (this.isFree(command.lightIds, takenLights)))
+				parts.add(command);
+
+			// newer commands addressing the same lights must wait
+			for (String lightId : command.lightIds)
+				takenLights.add(lightId);
+		}
+
+		// too few identical commands
+		if (parts.size() < this.planner.getMinLights())
+			return first;
+
+		// the fanned-in commands can no longer be cancelled, skip the ones
+		// cancelled meanwhile
+		Iterator<PendingCommand> iterator = parts.iterator();
+		while (iterator.hasNext())
+			if (!iterator.next().commit())
+				iterator.remove();
+
+		// too few commands left
+		if (parts.size() < this.planner.getMinLights())
+			return first;
+
+		// the addressed lights, sorted
+		String[] lightIds = new String[parts.size()];
+		for (int i = 0; i < lightIds.length; i++)
+			lightIds[i] = parts.get(i).key;
+		Arrays.sort(lightIds);
+
+		// find the group to which sending the state
+		HueGroupPlanner.Plan plan = this.planner.plan(bridge, lightIds);
+		if (plan == null)
+			return first;
+
+		// build the group command
+		PendingCommand group = new PendingCommand(FAN_IN_KEY,
+				plan.getGroupId(), null, lightIds, first.state);
+		group.membership = plan.getMembership();
+		group.plan = plan;
+		group.parts = parts;
+		for (PendingCommand part : parts)
+		{
+			// the parts are sent with the group command
+			if (part != first)
+			{
+				this.pendingStates.remove(part);
+				this.unindex(part);
+			}
+			group.futures.addAll(part.futures);
+		}
+
+		return group;
+	}
+
+	/**
+	 * Puts back at the head of the queue the light commands of a group command
+	 * that could not be sent, e.g., because the fan-in group could not be
+	 * updated, so that they are sent as light commands. Nothing is requeued if
+	 * the group command already expired or was discarded, nor are light
+	 * commands whose futures have all been completed meanwhile, as their
+	 * submitters already consider them failed.
+	 * 
+	 * @param sent
+	 *            The group command.
+	 * @param parts
+	 *            The light commands rewritten into the group command.
+	 */
+	private void requeue(InFlightCommand sent, List<PendingCommand> parts)
+	{
+		// the group command is abandoned, unless already expired or
+		// discarded
+		if (!sent.finish(false))
+			return;
+
+		synchronized (this.pendingStates)
+		{
+			// release the lights
+			for (String lightId : sent.lightIds)
+				if (this.inFlight.get(lightId) == sent)
+					this.inFlight.remove(lightId);
+
+			// requeue the light commands still awaited, in their original
+			// order, without accepting merges as newer commands might be
+			// already queued
+			for (int i = parts.size() - 1; i >= 0; i--)
+				if (!parts.get(i).isCompleted())
+					this.pendingStates.addFirst(parts.get(i));
+		}
+	}
+
+	/**
+	 * Checks if none of the given lights has a command in flight or is
+	 * addressed by an older pending command.
+	 * 
+	 * @param lightIds
+	 *            The lights to check.
+	 * @param busyLights
+	 *            The lights addressed by older pending commands, or null.
+	 * @return true if all the lights are free
+	 */
+	private boolean isFree(String[] lightIds, Set<String> busyLights)
+	{
+		for (String lightId : lightIds)
+			if ((this.inFlight.containsKey(lightId))
+					|| ((busyLights != null) && (busyLights.contains(lightId))))
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Removes the given command from the commands accepting merges, if
+	 * present. Must be called holding the pending states lock.
+	 * 
+	 * @param command
+	 *            The command to remove.
+	 */
+	private void unindex(PendingCommand command)
+	{
+		if (this.mergeableStates.get(command.key) == command)
+			this.mergeableStates.remove(command.key);
+	}
+
+	/**
+	 * Removes from the in-flight commands the ones that got no response within
+	 * the response timeout, so that lights do not stay blocked if the SDK
+	 * loses a response. Must be called holding the pending states lock.
+	 * 
+	 * @return the expired commands, to be completed as failed
+	 */
+	private List<InFlightCommand> expireInFlight()
+	{
+		List<InFlightCommand> expired = new ArrayList<InFlightCommand>(0);
+
+		Iterator<InFlightCommand> iterator = this.inFlight.values().iterator();
+		while (iterator.hasNext())
+		{
+			InFlightCommand command = iterator.next();
+
+			if (command.isExpired())
+			{
+				iterator.remove();
+
+				// group commands are in flight on several lights
+				if (!expired.contains(command))
+					expired.add(command);
+			}
+		}
+
+		return expired;
+	}
+
+	/**
+	 * Releases the lights of the given command, if it is the one in flight.
+	 * 
+	 * @param command
+	 *            The answered command.
+	 */
+	private void release(InFlightCommand command)
+	{
+		synchronized (this.pendingStates)
+		{
+			for (String lightId : command.lightIds)
+				if (this.inFlight.get(lightId) == command)
+					this.inFlight.remove(lightId);
+		}
+	}
+
+	/**
+	 * A command waiting to be sent, together with the futures of all the
+	 * commands merged into it.
+	 * 
+	 * @author bonino
+	 * 
+	 */
+	private static class PendingCommand
+	{
+		// the light local id or group key
+		private String key;
+
+		// the group id, null for light commands
+		private String groupId;
+
+		// the scene id, null if not a scene recall
+		private String sceneId;
+
+		// the addressed lights
+		private String[] lightIds;
+
+		// the (merged) light state, null for scene recalls
+		private PHLightState state;
+
+		// the futures of the merged commands
+		private List<HueCommandFuture> futures;
+
+		// the time at which the command was queued, in nanoseconds
+		private long enqueueTime;
+
+		// the members to set on the fan-in group before sending, if any
+		private String[] membership;
+
+		// the light commands rewritten into this group command, if any
+		private List<PendingCommand> parts;
+
+		// the plan of this group command, if a fan-in
+		private HueGroupPlanner.Plan plan;
+
+		public PendingCommand(String key, String groupId, String sceneId,
+				String[] lightIds, PHLightState state)
+		{
+			this.key = key;
+			this.groupId = groupId;
+			this.sceneId = sceneId;
+			this.enqueueTime = System.nanoTime();
+			this.lightIds = lightIds;
+			this.state = state;
+			this.futures = new ArrayList<HueCommandFuture>(1);
+		}
+
+		/**
+		 * Prevents the cancellation of all the merged commands, e.g., when
+		 * sending the command
+		 * 
+		 * @return false if any merged command was already completed, e.g.,
+		 *         cancelled
+		 */
+		public boolean commit()
+		{
+			boolean committed = true;
+			for (HueCommandFuture future : this.futures)
+				committed &= future.commit();
+
+			return committed;
+		}
+
+		/**
+		 * @return true if all the merged commands have been cancelled
+		 */
+		public boolean isCancelled()
+		{
+			for (HueCommandFuture future : this.futures)
+				if (!future.isCancelled())
+					return false;
+
+			return true;
+		}
+
+		/**
+		 * @return true if all the merged commands have been completed, e.g.,
+		 *         failed by the response timeout or discarded
+		 */
+		public boolean isCompleted()
+		{
+			for (HueCommandFuture future : this.futures)
+				if (!future.isDone())
+					return false;
+
+			return true;
+		}
+
+		/**
+		 * Checks if this command addresses any of the given lights
+		 * 
+		 * @param otherLightIds
+		 *            The lights to check.
+		 * @return true if at least one light is shared
+		 */
+		public boolean overlaps(String[] otherLightIds)
+		{
+			for (String lightId : this.lightIds)
+				for (String otherLightId : otherLightIds)
+					if (lightId.equals(otherLightId))
+						return true;
+
+			return false;
+		}
+	}
+
+	/**
+	 * A command sent to the bridge and waiting for its response.
+	 * 
+	 * @author bonino
+	 * 
+	 */
+	private class InFlightCommand
+	{
+		// the light local id, group id or scene id
+		private String target;
+
+		// the target type, for logging
+		private String type;
+
+		// the addressed lights
+		private String[] lightIds;
+
+		// the futures completed by the bridge response
+		private List<HueCommandFuture> futures;
+
+		// the time at which the command was sent, in nanoseconds
+		private long sendTime;
+
+		// the fan-in plan of the command, if any
+		private HueGroupPlanner.Plan plan;
+
+		// true once the command has been answered, has expired or has been
+		// abandoned
+		private boolean finished;
+
+		public InFlightCommand(PendingCommand command)
+		{
+			if (command.sceneId != null)
+			{
+				this.type = "scene ";
+				this.target = command.sceneId;
+			}
+			else if (command.groupId != null)
+			{
+				this.type = "group ";
+				this.target = command.groupId;
+			}
+			else
+			{
+				this.type = "light ";
+				this.target = command.key;
+			}
+			this.lightIds = command.lightIds;
+			this.futures = command.futures;
+			this.plan = command.plan;
+			this.sendTime = System.nanoTime();
+		}
+
+		/**
+		 * Marks the command as finished, completing its fan-in plan, if any
+		 * 
+		 * @param successful
+		 *            True if the bridge acknowledged the command.
+		 * @return true the first time it is called
+		 */
+		public boolean finish(boolean successful)
+		{
+			synchronized (this)
+			{
+				if (this.finished)
+					return false;
+
+				this.finished = true;
+			}
+
+			// release the fan-in group
+			if (this.plan != null)
+				planner.planCompleted(this.plan, this.lightIds.length,
+						successful);
+
+			return true;
+		}
+
+		/**
+		 * @return true if the command has been answered, has expired or has
+		 *         been abandoned
+		 */
+		public synchronized boolean isFinished()
+		{
+			return this.finished;
+		}
+
+		/**
+		 * @return true if the response timeout elapsed
+		 */
+		public boolean isExpired()
+		{
+			return (System.nanoTime() - this.sendTime) > TimeUnit.MILLISECONDS
+					.toNanos(RESPONSE_TIMEOUT_MILLIS);
+		}
+
+		/**
+		 * @return a description of the command target, for logging
+		 */
+		public String describe()
+		{
+			return this.type + this.target;
+		}
+
+		/**
+		 * Completes the command futures and releases the lights, unless the
+		 * command already finished, e.g., a group command whose light
+		 * commands have been requeued
+		 * 
+		 * @param code
+		 *            The error code, 0 if the command was acknowledged.
+		 * @param message
+		 *            The error message, if any.
+		 */
+		public void complete(int code, String message)
+		{
+			// release the lights and the fan-in group
+			release(this);
+			if (!this.finish(code == 0))
+				return;
+
+			// complete the futures
+			for (HueCommandFuture future : this.futures)
+			{
+				if (code == 0)
+				{
+					if (future.acknowledge())
+						acknowledgedCommands.incrementAndGet();
+				}
+				else if (future.fail(code, message))
+					failedCommands.incrementAndGet();
+			}
+		}
+
+		/**
+		 * Completes the command as rejected by the bridge
+		 * 
+		 * @param code
+		 *            The bridge error code.
+		 * @param message
+		 *            The bridge error message.
+		 */
+		public void reject(int code, String message)
+		{
+			// log the error
+			logger.log(LogService.LOG_WARNING, "Bridge " + bridgeIp
+					+ " rejected the command for " + this.describe() + ": "
+					+ message + " (" + code + ")");
+
+			// complete the command as failed
+			this.complete(code, message);
+		}
+
+		/**
+		 * Completes the command depending on the bridge state update
+		 * 
+		 * @param errors
+		 *            The errors reported by the bridge, if any.
+		 */
+		public void update(List<PHHueError> errors)
+		{
+			if ((errors == null) || (errors.isEmpty()))
+				this.complete(0, null);
+			else
+			{
+				// report the first error
+				PHHueError error = errors.get(0);
+				this.reject(error.getCode(), error.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Completes a light command on the bridge response.
+	 * 
+	 * @author bonino
+	 * 
+	 */
+	private static class CommandListener extends PHLightListener
+	{
+		// the answered command
+		private InFlightCommand command;
+
+		public CommandListener(InFlightCommand command)
+		{
+			this.command = command;
+		}
+
+		@Override
+		public void onSuccess()
+		{
+			// the SDK reports light updates through onStateUpdate
+		}
+
+		@Override
+		public void onError(int code, String message)
+		{
+			this.command.reject(code, message);
+		}
+
+		@Override
+		public void onStateUpdate(Hashtable<String, String> successes,
+				List<PHHueError> errors)
+		{
+			this.command.update(errors);
+		}
+
+		@Override
+		public void onReceivingLightDetails(PHLight light)
+		{
+			// intentionally left empty
+		}
+
+		@Override
+		public void onReceivingLights(List<PHBridgeResource> lights)
+		{
+			// intentionally left empty
+		}
+
+		@Override
+		public void onSearchComplete()
+		{
+			// intentionally left empty
+		}
+	}
+
+	/**
+	 * Completes a group command on the bridge response.
+	 * 
+	 * @author bonino
+	 * 
+	 */
+	private static class GroupCommandListener extends PHGroupListener
+	{
+		// the answered command
+		private InFlightCommand command;
+
+		public GroupCommandListener(InFlightCommand command)
+		{
+			this.command = command;
+		}
+
+		@Override
+		public void onSuccess()
+		{
+			this.command.complete(0, null);
+		}
+
+		@Override
+		public void onError(int code, String message)
+		{
+			this.command.reject(code, message);
+		}
+
+		@Override
+		public void onStateUpdate(Hashtable<String, String> successes,
+				List<PHHueError> errors)
+		{
+			this.command.update(errors);
+		}
+
+		@Override
+		public void onCreated(PHGroup group)
+		{
+			// intentionally left empty
+		}
+	}
+
+	/**
+	 * Completes a scene recall on the bridge response.
+	 * 
+	 * @author bonino
+	 * 
+	 */
+	private static class SceneCommandListener extends PHSceneListener
+	{
+		// the answered command
+		private InFlightCommand command;
+
+		public SceneCommandListener(InFlightCommand command)
+		{
+			this.command = command;
+		}
+
+		@Override
+		public void onSuccess()
+		{
+			this.command.complete(0, null);
+		}
+
+		@Override
+		public void onError(int code, String message)
+		{
+			this.command.reject(code, message);
+		}
+
+		@Override
+		public void onStateUpdate(Hashtable<String, String> successes,
+				List<PHHueError> errors)
+		{
+			this.command.update(errors);
+		}
+	}
+
+	/**
+	 * Sends the state of a fan-in group once its members have been updated,
+	 * or sends the fanned-in commands to the single lights if the update
+	 * fails.
+	 * 
+	 * @author bonino
+	 * 
+	 */
+	private class MembershipListener extends PHGroupListener
+	{
+		// the bridge on which the group is updated
+		private PHBridge bridge;
+
+		// the group command
+		private PendingCommand command;
+
+		// the in-flight command
+		private InFlightCommand sent;
+
+		// true once the update outcome has been handled
+		private boolean handled;
+
+		public MembershipListener(PHBridge bridge, PendingCommand command,
+				InFlightCommand sent)
+		{
+			this.bridge = bridge;
+			this.command = command;
+			this.sent = sent;
+		}
+
+		@Override
+		public void onSuccess()
+		{
+			if (this.isFirstOutcome())
+			{
+				// store the new membership
+				planner.membershipUpdated(this.command.plan,
+						this.command.membership);
+
+				// the command expired meanwhile, and the group might already
+				// serve a newer plan
+				if (this.sent.isFinished())
+					return;
+
+				try
+				{
+					// update the group state on the bridge
+					this.bridge.setLightStateForGroup(this.command.groupId,
+							this.command.state, new GroupCommandListener(
+									this.sent));
+				}
+				catch (Exception e)
+				{
+					// complete the command as failed
+					this.sent.complete(HueCommandFuture.ERROR_NOT_SENT,
+							e.getMessage());
+				}
+			}
+		}
+
+		@Override
+		public void onError(int code, String message)
+		{
+			if (this.isFirstOutcome())
+			{
+				// the group might have been deleted, look it up again
+				planner.invalidate();
+
+				// log the error
+				logger.log(LogService.LOG_WARNING, "Unable to update the "
+						+ "fan-in group on bridge " + bridgeIp + ": "
+						+ message + " (" + code + ")");
+
+				// the command expired or was discarded meanwhile, and its
+				// futures have already been failed
+				if (this.sent.isFinished())
+					return;
+
+				// send the light commands one by one
+				requeue(this.sent, this.command.parts);
+			}
+		}
+
+		@Override
+		public void onStateUpdate(Hashtable<String, String> successes,
+				List<PHHueError> errors)
+		{
+			if ((errors == null) || (errors.isEmpty()))
+				this.onSuccess();
+			else
+				this.onError(errors.get(0).getCode(), errors.get(0)
+						.getMessage());
+		}
+
+		@Override
+		public void onCreated(PHGroup group)
+		{
+			// intentionally left empty
+		}
+
+		/**
+		 * @return true the first time it is called
+		 */
+		private synchronized boolean isFirstOutcome()
+		{
+			boolean first = !this.handled;
+			this.handled = true;
+			return first;
+		}
+	}
+}
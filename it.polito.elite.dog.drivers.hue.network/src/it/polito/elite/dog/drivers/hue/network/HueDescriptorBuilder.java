@@ -0,0 +1,320 @@
+/*
+ * Dog 2.0 - Hue Network Driver
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.network;
+
+import it.polito.elite.dog.core.library.model.DeviceDescriptor;
+import it.polito.elite.dog.core.library.model.DeviceDescriptorFactory;
+import it.polito.elite.dog.core.library.util.LogHelper;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.osgi.framework.Bundle;
+import org.osgi.service.log.LogService;
+
+/**
+ * Builds the Dog device descriptors of the devices discovered on Hue
+ * bridges, rendering the device templates of a bundle. Descriptors found
+ * together (e.g., all the lights of a newly commissioned bridge) are built
+ * as a batch, in parallel, so that they can be submitted to the device
+ * factory in a single pass.
+ * 
+ * Descriptor factories are not assumed to be thread-safe: each concurrent
+ * build borrows a factory from a pool, creating a new one only when all the
+ * pooled ones are in use.
+ * 
+ * A single builder is shared by all the driver instances of a bundle (see
+ * {@link #forBundle(Bundle, LogHelper)}), so that the device templates are
+ * parsed by a few pooled factories, once per bundle, rather than once per
+ * gateway instance: after the first descriptors, building a descriptor only
+ * fills the already parsed template in.
+ * 
+ * @author bonino
+ * 
+ */
+public class HueDescriptorBuilder
+{
+	// the maximum number of descriptors built at the same time
+	public static final int MAX_WORKERS = 4;
+
+	// the bundle entry holding the device templates
+	public static final String TEMPLATES_ENTRY = "/deviceTemplates";
+
+	// the builders shared by the driver instances of each bundle, indexed by
+	// bundle id
+	private static final ConcurrentHashMap<Long, HueDescriptorBuilder> sharedBuilders = new ConcurrentHashMap<Long, HueDescriptorBuilder>();
+
+	// the location of the device templates
+	private URL templates;
+
+	// the modification time of the bundle providing the templates, 0 if
+	// unknown
+	private long templatesModified;
+
+	// the descriptor factories not in use
+	private ConcurrentLinkedQueue<DeviceDescriptorFactory> idleFactories;
+
+	// the logger
+	private LogHelper logger;
+
+	/**
+	 * Creates a new builder rendering the device templates at the given
+	 * location
+	 * 
+	 * @param templates
+	 *            The location of the device templates, e.g., the
+	 *            /deviceTemplates entry of a bundle.
+	 * @param logger
+	 *            The logger to use.
+	 */
+	public HueDescriptorBuilder(URL templates, LogHelper logger)
+	{
+		// store the references
+		this.templates = templates;
+		this.logger = logger;
+
+		// initialize the factory pool
+		this.idleFactories = new ConcurrentLinkedQueue<DeviceDescriptorFactory>();
+	}
+
+	/**
+	 * Provides the builder shared by all the driver instances of the given
+	 * bundle, rendering the templates of its {@link #TEMPLATES_ENTRY} entry.
+	 * The builder is replaced whenever the bundle is updated, as the
+	 * templates might have changed.
+	 * 
+	 * @param bundle
+	 *            The bundle providing the device templates.
+	 * @param logger
+	 *            The logger to use, if a new builder is needed.
+	 * @return the shared builder
+	 */
+	public static HueDescriptorBuilder forBundle(Bundle bundle,
+			LogHelper logger)
+	{
+		// no templates, descriptors cannot be built (and errors are logged)
+		if (bundle == null)
+			return new HueDescriptorBuilder(null, logger);
+
+		Long bundleId = bundle.getBundleId();
+		long modified = bundle.getLastModified();
+
+		while (true)
+		{
+			HueDescriptorBuilder builder = sharedBuilders.get(bundleId);
+
+			// up to date
+			if ((builder != null) && (builder.templatesModified == modified))
+				return builder;
+
+			// create a new builder, parsing the templates again
+			HueDescriptorBuilder newBuilder = new HueDescriptorBuilder(
+					bundle.getEntry(TEMPLATES_ENTRY), logger);
+			newBuilder.templatesModified = modified;
+
+			// another instance might have created it meanwhile
+			if ((builder == null) ? (sharedBuilders.putIfAbsent(bundleId,
+					newBuilder) == null) : (sharedBuilders.replace(bundleId,
+					builder, newBuilder)))
+				return newBuilder;
+		}
+	}
+
+	/**
+	 * Discards the builder shared by the driver instances of the given
+	 * bundle, e.g., when the bundle is stopped, so that the pooled factories
+	 * and the parsed templates can be collected
+	 * 
+	 * @param bundle
+	 *            The bundle providing the device templates.
+	 */
+	public static void release(Bundle bundle)
+	{
+		if (bundle != null)
+			sharedBuilders.remove(bundle.getBundleId());
+	}
+
+	/**
+	 * Builds the descriptor of a single device
+	 * 
+	 * @param definition
+	 *            The device definition.
+	 * @return the device descriptor, or null if it cannot be built
+	 */
+	public DeviceDescriptor build(Definition definition)
+	{
+		// borrow a factory
+		DeviceDescriptorFactory factory = this.idleFactories.poll();
+
+		try
+		{
+			if (factory == null)
+				factory = new DeviceDescriptorFactory(this.templates);
+
+			return factory.getDescriptor(definition.getData(),
+					definition.getDeviceClass());
+		}
+		catch (Exception e)
+		{
+			this.logger.log(LogService.LOG_ERROR,
+					"Error while creating DeviceDescriptor for the device "
+							+ definition.getName(), e);
+
+			return null;
+		}
+		finally
+		{
+			// give the factory back
+			if (factory != null)
+				this.idleFactories.offer(factory);
+		}
+	}
+
+	/**
+	 * Builds the descriptors of the given devices, in parallel
+	 * 
+	 * @param definitions
+	 *            The device definitions.
+	 * @return the descriptors that could be built, in definition order
+	 */
+	public List<DeviceDescriptor> buildAll(List<Definition> definitions)
+	{
+		List<DeviceDescriptor> descriptors = new ArrayList<DeviceDescriptor>(
+				definitions.size());
+
+		int workers = Math.min(Math.min(MAX_WORKERS, Runtime.getRuntime()
+				.availableProcessors()), definitions.size());
+
+		// not worth a thread pool
+		if (workers <= 1)
+		{
+			for (Definition definition : definitions)
+				HueDescriptorBuilder.addIfBuilt(descriptors,
+						this.build(definition));
+
+			return descriptors;
+		}
+
+		// build the descriptors on short-lived workers, as batches are rare
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+
+		try
+		{
+			List<Callable<DeviceDescriptor>> tasks = new ArrayList<Callable<DeviceDescriptor>>(
+					definitions.size());
+			for (final Definition definition : definitions)
+			{
+				tasks.add(new Callable<DeviceDescriptor>()
+				{
+
+					@Override
+					public DeviceDescriptor call()
+					{
+						return build(definition);
+					}
+				});
+			}
+
+			// wait for all the descriptors
+			for (Future<DeviceDescriptor> result : executor.invokeAll(tasks))
+				HueDescriptorBuilder.addIfBuilt(descriptors, result.get());
+		}
+		catch (InterruptedException e)
+		{
+			// keep the descriptors built so far
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e)
+		{
+			this.logger.log(LogService.LOG_ERROR,
+					"Error while creating the device descriptors", e);
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+
+		return descriptors;
+	}
+
+	/**
+	 * Adds the given descriptor to the list, if not null
+	 */
+	private static void addIfBuilt(List<DeviceDescriptor> descriptors,
+			DeviceDescriptor descriptor)
+	{
+		if (descriptor != null)
+			descriptors.add(descriptor);
+	}
+
+	/**
+	 * The definition of a device to describe: the device class, i.e., the
+	 * template to render, and the template data
+	 * 
+	 * @author bonino
+	 * 
+	 */
+	public static class Definition
+	{
+		// the device class
+		private String deviceClass;
+
+		// the template data
+		private Map<String, Object> data;
+
+		public Definition(String deviceClass, Map<String, Object> data)
+		{
+			this.deviceClass = deviceClass;
+			this.data = data;
+		}
+
+		/**
+		 * @return the device class
+		 */
+		public String getDeviceClass()
+		{
+			return this.deviceClass;
+		}
+
+		/**
+		 * @return the template data
+		 */
+		public Map<String, Object> getData()
+		{
+			return this.data;
+		}
+
+		/**
+		 * @return the device name, if defined
+		 */
+		public Object getName()
+		{
+			return this.data.get(DeviceDescriptorFactory.NAME);
+		}
+	}
+}
@@ -0,0 +1,365 @@
+/*
+ * Dog 2.0 - Hue Network Driver
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.network;
+
+import it.polito.elite.dog.drivers.hue.network.info.HueDeviceIdentifier;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.philips.lighting.model.PHLight;
+
+/**
+ * The process-wide index of the Hue lights attached to Dog, across all the
+ * bridges: each light, identified by its {@link HueDeviceIdentifier}, is
+ * mapped to the driver instance of its device and to the latest
+ * {@link PHLight} handle provided by its bridge, so that command and state
+ * ingestion paths resolve a light with a single hash probe, instead of
+ * looking up the gateway and then the bridge resource cache.
+ * 
+ * The index is filled by the gateways, as light devices are attached and
+ * detached, and as the bridges provide updated light handles. Each indexed
+ * light owns a slot of the {@link HueLightStateTable}, holding the light
+ * state last dispatched to Dog. The lights of each bridge are also indexed by
+ * local id, so that a gateway resolves the lights in a bridge cache update
+ * with a single hash probe each, without building identifiers. Lookups take
+ * no lock; registrations are serialized, as they are rare.
+ * 
+ * @author bonino
+ * 
+ */
+public class HueDeviceIndex
+{
+	// the single index
+	private static final HueDeviceIndex instance = new HueDeviceIndex();
+
+	// the indexed lights
+	private ConcurrentHashMap<HueDeviceIdentifier, Entry> entries;
+
+	// the indexed lights of each bridge, indexed by bridge IP address and
+	// then by light local id
+	private ConcurrentHashMap<String, ConcurrentHashMap<String, Entry>> bridgeEntries;
+
+	// the table holding the states of the indexed lights
+	private HueLightStateTable stateTable;
+
+	private HueDeviceIndex()
+	{
+		this.entries = new ConcurrentHashMap<HueDeviceIdentifier, Entry>();
+		this.bridgeEntries = new ConcurrentHashMap<String, ConcurrentHashMap<String, Entry>>();
+		this.stateTable = HueLightStateTable.getInstance();
+	}
+
+	/**
+	 * @return the process-wide index
+	 */
+	public static HueDeviceIndex getInstance()
+	{
+		return instance;
+	}
+
+	/**
+	 * Indexes the device attached to the given light, replacing the device
+	 * previously indexed, if any
+	 * 
+	 * @param device
+	 *            The light identifier.
+	 * @param driverInstance
+	 *            The driver instance of the attached device.
+	 * @param light
+	 *            The light handle, null if not yet known.
+	 * @return the index entry
+	 */
+	public synchronized Entry register(HueDeviceIdentifier device,
+			HueDriverInstance driverInstance, PHLight light)
+	{
+		Entry entry = new Entry(HueDeviceIdentifier.intern(
+				device.getLocalId(), device.getBridgeIp()), driverInstance,
+				light, this.stateTable);
+		Entry previous = this.entries.put(entry.getDevice(), entry);
+
+		// index the light among the lights of its bridge
+		if ((device.getBridgeIp() != null) && (device.getLocalId() != null))
+			this.bridge(device.getBridgeIp()).put(device.getLocalId(), entry);
+
+		// the replaced device no longer needs its state slot
+		if (previous != null)
+			previous.releaseState();
+
+		return entry;
+	}
+
+	/**
+	 * Removes the given device from the index, unless another device has
+	 * been indexed for the same light meanwhile
+	 * 
+	 * @param device
+	 *            The light identifier.
+	 * @param driverInstance
+	 *            The driver instance of the detached device.
+	 * @return true if the device has been removed
+	 */
+	public synchronized boolean unregister(HueDeviceIdentifier device,
+			HueDriverInstance driverInstance)
+	{
+		Entry entry = this.entry(device);
+
+		if ((entry != null) && (entry.driverInstance == driverInstance)
+				&& (this.entries.remove(device, entry)))
+		{
+			if ((device.getBridgeIp() != null)
+					&& (device.getLocalId() != null))
+				this.bridge(device.getBridgeIp()).remove(
+						device.getLocalId(), entry);
+
+			// free the state slot
+			entry.releaseState();
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Stores the latest handle of an indexed light, e.g., after a bridge
+	 * heartbeat
+	 * 
+	 * @param device
+	 *            The light identifier.
+	 * @param light
+	 *            The light handle.
+	 */
+	public void updateLight(HueDeviceIdentifier device, PHLight light)
+	{
+		Entry entry = this.entry(device);
+		if (entry != null)
+			entry.light = light;
+	}
+
+	/**
+	 * Provides the index entry of the given light
+	 * 
+	 * @param device
+	 *            The light identifier.
+	 * @return the entry, or null if the light is not indexed
+	 */
+	public Entry get(HueDeviceIdentifier device)
+	{
+		return this.entry(device);
+	}
+
+	/**
+	 * Provides the latest handle of the given light
+	 * 
+	 * @param device
+	 *            The light identifier.
+	 * @return the light handle, or null if not known
+	 */
+	public PHLight getLight(HueDeviceIdentifier device)
+	{
+		Entry entry = this.entry(device);
+
+		return (entry != null) ? entry.light : null;
+	}
+
+	/**
+	 * Provides the driver instance of the device attached to the given light
+	 * 
+	 * @param device
+	 *            The light identifier.
+	 * @return the driver instance, or null if the light is not indexed
+	 */
+	public HueDriverInstance getDriverInstance(HueDeviceIdentifier device)
+	{
+		Entry entry = this.entry(device);
+
+		return (entry != null) ? entry.driverInstance : null;
+	}
+
+	/**
+	 * Provides the indexed lights of the given bridge, indexed by local id,
+	 * e.g., to resolve the lights of a bridge cache update
+	 * 
+	 * @param bridgeIp
+	 *            The bridge IP address.
+	 * @return a live, read-only, view of the indexed lights of the bridge,
+	 *         safe to use while lights are indexed or removed
+	 */
+	public Map<String, Entry> getBridgeEntries(String bridgeIp)
+	{
+		if (bridgeIp == null)
+			return Collections.<String, Entry> emptyMap();
+
+		return Collections.unmodifiableMap(this.bridge(bridgeIp));
+	}
+
+	/**
+	 * @return a live view of all the indexed lights, across all the bridges,
+	 *         safe to iterate while lights are indexed or removed
+	 */
+	public Collection<Entry> getEntries()
+	{
+		return this.entries.values();
+	}
+
+	/**
+	 * @return the number of indexed lights
+	 */
+	public int size()
+	{
+		return this.entries.size();
+	}
+
+	/**
+	 * Provides the lights of the given bridge, indexed by local id, creating
+	 * the bridge map if needed
+	 */
+	private ConcurrentHashMap<String, Entry> bridge(String bridgeIp)
+	{
+		ConcurrentHashMap<String, Entry> bridge = this.bridgeEntries
+				.get(bridgeIp);
+
+		if (bridge == null)
+		{
+			ConcurrentHashMap<String, Entry> created = new ConcurrentHashMap<String, Entry>();
+			bridge = this.bridgeEntries.putIfAbsent(bridgeIp, created);
+			if (bridge == null)
+				bridge = created;
+		}
+
+		return bridge;
+	}
+
+	/**
+	 * Provides the index entry of the given light, if any
+	 */
+	private Entry entry(HueDeviceIdentifier device)
+	{
+		return (device != null) ? this.entries.get(device) : null;
+	}
+
+	/**
+	 * An indexed light
+	 * 
+	 * @author bonino
+	 * 
+	 */
+	public static class Entry
+	{
+		// the canonical light identifier
+		private final HueDeviceIdentifier device;
+
+		// the driver instance of the attached device
+		private final HueDriverInstance driverInstance;
+
+		// the latest light handle, null if not yet known
+		private volatile PHLight light;
+
+		// the table holding the light state
+		private final HueLightStateTable stateTable;
+
+		// the slot of the light in the state table
+		private final int stateSlot;
+
+		public Entry(HueDeviceIdentifier device,
+				HueDriverInstance driverInstance, PHLight light,
+				HueLightStateTable stateTable)
+		{
+			this.device = device;
+			this.driverInstance = driverInstance;
+			this.light = light;
+			this.stateTable = stateTable;
+			this.stateSlot = stateTable.allocate(this);
+		}
+
+		/**
+		 * @return the canonical light identifier
+		 */
+		public HueDeviceIdentifier getDevice()
+		{
+			return this.device;
+		}
+
+		/**
+		 * @return the driver instance of the attached device
+		 */
+		public HueDriverInstance getDriverInstance()
+		{
+			return this.driverInstance;
+		}
+
+		/**
+		 * @return the latest light handle, null if not yet known
+		 */
+		public PHLight getLight()
+		{
+			return this.light;
+		}
+
+		/**
+		 * Stores the latest light handle
+		 * 
+		 * @param light
+		 *            The light handle.
+		 */
+		public void setLight(PHLight light)
+		{
+			this.light = light;
+		}
+
+		/**
+		 * @return the fingerprint of the light state last dispatched to Dog,
+		 *         or {@link HueLightStateTable#UNKNOWN}
+		 */
+		public long getState()
+		{
+			return this.stateTable.get(this.stateSlot, this);
+		}
+
+		/**
+		 * Stores the fingerprint of the light state dispatched to Dog
+		 * 
+		 * @param fingerprint
+		 *            The state fingerprint.
+		 */
+		public void setState(long fingerprint)
+		{
+			this.stateTable.set(this.stateSlot, this, fingerprint);
+		}
+
+		/**
+		 * Forgets the light state dispatched to Dog, so that the full state
+		 * is dispatched next
+		 */
+		public void clearState()
+		{
+			this.stateTable.clear(this.stateSlot, this);
+		}
+
+		/**
+		 * Releases the state slot, once the entry is no longer indexed
+		 */
+		private void releaseState()
+		{
+			this.stateTable.release(this.stateSlot, this);
+		}
+	}
+}
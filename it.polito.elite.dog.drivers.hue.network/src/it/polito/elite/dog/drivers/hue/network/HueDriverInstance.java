@@ -24,11 +24,19 @@ import it.polito.elite.dog.core.library.model.DeviceStatus;
 import it.polito.elite.dog.core.library.util.ElementDescription;
 import it.polito.elite.dog.drivers.hue.network.info.HueDeviceIdentifier;
 import it.polito.elite.dog.drivers.hue.network.info.HueInfo;
+import it.polito.elite.dog.drivers.hue.network.info.HueLightFingerprint;
+import it.polito.elite.dog.drivers.hue.network.interfaces.HueCommandListener;
 import it.polito.elite.dog.drivers.hue.network.interfaces.HueNetwork;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import com.philips.lighting.model.PHBridge;
 import com.philips.lighting.model.PHLightState;
@@ -39,6 +47,10 @@ import com.philips.lighting.model.PHLightState;
  */
 public abstract class HueDriverInstance
 {
+	// the time after which an acknowledged write not yet echoed by the bridge
+	// cache is no longer applied over the cached state, in milliseconds
+	public static final long ECHO_TIMEOUT_MILLIS = 5000;
+
 	// The HUE bridge to which belongs the HUE device handled by the extending
 	// class.
 	protected PHBridge hueBridge;
@@ -65,6 +77,35 @@ public abstract class HueDriverInstance
 	// the set of commands associated to the driver
 	protected HashMap<String, CNParameters> commands;
 
+	// the handles of the tasks scheduled by this instance and not yet run
+	private List<ScheduledFuture<?>> scheduledTasks;
+
+	// true once the scheduled tasks have been cancelled, guarded by the list
+	// of scheduled tasks
+	private boolean tasksCancelled;
+
+	// the fingerprint of the latest light state received from the bridge
+	// cache, with its reachability, UNKNOWN if none, guarded by the write
+	// lock; the state itself is rebuilt when needed, and is otherwise held by
+	// the bridge cache only
+	private long houseFingerprint = HueLightStateTable.UNKNOWN;
+
+	// the writes acknowledged by the bridge and not yet echoed by the bridge
+	// cache, oldest first, null if none, guarded by the write lock
+	private LinkedList<AcknowledgedWrite> acknowledgedWrites;
+
+	// the fingerprint of the last state delivered to the extending class,
+	// UNKNOWN if none, guarded by the write lock
+	private long deliveredFingerprint = HueLightStateTable.UNKNOWN;
+
+	// true while the current state has been restored from a snapshot and not
+	// yet confirmed by the bridge
+	private volatile boolean stale;
+
+	// the write lock, also serializing the delivery of states to the
+	// extending class
+	private Object writeLock = new Object();
+
 	public HueDriverInstance(HueNetwork network, ControllableDevice device,
 			String bridgeIp)
 	{
@@ -80,6 +121,7 @@ public abstract class HueDriverInstance
 		// initialize datastructures
 		this.notifications = new HashMap<String, CNParameters>();
 		this.commands = new HashMap<String, CNParameters>();
+		this.scheduledTasks = new ArrayList<ScheduledFuture<?>>();
 
 		// fill the data structures depending on the specific device
 		// configuration parameters
@@ -97,6 +139,15 @@ public abstract class HueDriverInstance
 		return bridgeIp;
 	}
 
+	/**
+	 * @return the canonical identifier of the handled device, null if the
+	 *         device has no local id
+	 */
+	public HueDeviceIdentifier getHueDevice()
+	{
+		return this.hueDevice;
+	}
+
 	/**
 	 * @param bridgeIp
 	 *            the bridgeIp to set
@@ -106,6 +157,310 @@ public abstract class HueDriverInstance
 		this.bridgeIp = bridgeIp;
 	}
 
+	/**
+	 * Schedules the given one-shot task on the scheduler shared by all the Hue
+	 * drivers, tracking its handle so that it can be cancelled by
+	 * {@link #cancelScheduledTasks()}.
+	 * 
+	 * @param task
+	 *            The task to run.
+	 * @param delayMillis
+	 *            The time after which the task shall run, in milliseconds.
+	 * @return the task handle, or null if no scheduler is available or the
+	 *         tasks of this instance have been cancelled
+	 */
+	protected ScheduledFuture<?> schedule(Runnable task, long delayMillis)
+	{
+		synchronized (this.scheduledTasks)
+		{
+			// no more tasks once cancelled, e.g., a periodic task re-arming
+			// itself while the instance is being deactivated
+			if (this.tasksCancelled)
+				return null;
+
+			// schedule the task
+			ScheduledFuture<?> handle = this.network.schedule(task,
+					delayMillis, TimeUnit.MILLISECONDS);
+
+			if (handle != null)
+			{
+				// forget the tasks already run
+				Iterator<ScheduledFuture<?>> iterator = this.scheduledTasks
+						.iterator();
+				while (iterator.hasNext())
+					if (iterator.next().isDone())
+						iterator.remove();
+
+				// track the new task
+				this.scheduledTasks.add(handle);
+			}
+
+			return handle;
+		}
+	}
+
+	/**
+	 * Cancels all the tasks scheduled by this instance and not yet run, to be
+	 * called when the instance is no longer used, e.g., on driver deactivation.
+	 * No further task can be scheduled afterwards.
+	 */
+	public void cancelScheduledTasks()
+	{
+		synchronized (this.scheduledTasks)
+		{
+			this.tasksCancelled = true;
+
+			for (ScheduledFuture<?> handle : this.scheduledTasks)
+				handle.cancel(false);
+
+			this.scheduledTasks.clear();
+		}
+	}
+
+	/**
+	 * Writes the given state on the handled light, through the bridge command
+	 * queue. As soon as the bridge acknowledges the write, the written
+	 * attributes are applied to the current state, through
+	 * {@link #newMessageFromHouse(PHLightState, int)}, without waiting for the
+	 * next heartbeat; they keep prevailing over the bridge cache until the
+	 * cache echoes them. If the bridge rejects the write, the current state is
+	 * restored from the bridge cache.
+	 * 
+	 * @param lightState
+	 *            The state to write.
+	 * @return the command handle
+	 */
+	protected HueCommandFuture writeLightState(PHLightState lightState)
+	{
+		// store a copy, as the caller might reuse the state
+		final PHLightState written = new PHLightState(lightState);
+
+		// submit the write
+		HueCommandFuture command = this.network.submitLightState(
+				this.hueDevice, lightState);
+
+		// apply it once answered
+		command.addListener(new HueCommandListener()
+		{
+
+			@Override
+			public void onCommandCompleted(HueCommandFuture command)
+			{
+				writeCompleted(written, command.isSuccessful());
+			}
+		});
+
+		return command;
+	}
+
+	/**
+	 * Called whenever the bridge cache provides a new state for the handled
+	 * light. The state is delivered to
+	 * {@link #newMessageFromHouse(PHLightState, int)} with the acknowledged
+	 * writes not yet echoed applied over it; states carrying no change with
+	 * respect to the last delivered one, e.g., the echo of a write already
+	 * applied, are not delivered.
+	 * 
+	 * @param lightState
+	 *            The light state held by the bridge cache.
+	 * @param reachable
+	 *            The light reachability.
+	 */
+	public void receiveLightState(PHLightState lightState, boolean reachable)
+	{
+		synchronized (this.writeLock)
+		{
+			// store the bridge state
+			this.houseFingerprint = HueLightFingerprint.of(lightState,
+					reachable);
+			this.stale = false;
+
+			// forget the writes echoed by the bridge, with the older ones
+			if (this.acknowledgedWrites != null)
+			{
+				Iterator<AcknowledgedWrite> writes = this.acknowledgedWrites
+						.descendingIterator();
+				boolean echoed = false;
+				while (writes.hasNext())
+				{
+					AcknowledgedWrite write = writes.next();
+					echoed = echoed || this.isEchoed(lightState, write.state);
+					if (echoed)
+						writes.remove();
+				}
+			}
+
+			// deliver the changes, if any, from the cached state
+			this.deliverLightState(0, lightState);
+		}
+	}
+
+	/**
+	 * Restores a light state saved in a previous run, e.g., from a snapshot
+	 * stored on disk, so that the current state is available before the bridge
+	 * provides the actual one. The restored state is delivered to
+	 * {@link #newMessageFromHouse(PHLightState, int)} and marked as stale until
+	 * the bridge provides the actual state; states already provided by the
+	 * bridge are not overwritten.
+	 * 
+	 * @param lightState
+	 *            The saved light state.
+	 * @param reachable
+	 *            The saved light reachability.
+	 */
+	public void seedLightState(PHLightState lightState, boolean reachable)
+	{
+		synchronized (this.writeLock)
+		{
+			// the bridge state prevails
+			if (this.houseFingerprint != HueLightStateTable.UNKNOWN)
+				return;
+
+			// store the saved state, until confirmed
+			this.houseFingerprint = HueLightFingerprint.of(lightState,
+					reachable);
+			this.stale = true;
+
+			// deliver it
+			this.deliverLightState(0, lightState);
+		}
+	}
+
+	/**
+	 * Checks if the current state has been restored from a previous run and
+	 * not yet confirmed by the bridge
+	 * 
+	 * @return true if the current state might be outdated
+	 */
+	public boolean isStateStale()
+	{
+		return this.stale;
+	}
+
+	/**
+	 * Delivers again the current state, i.e., the bridge cache state with the
+	 * acknowledged writes applied over it, to
+	 * {@link #newMessageFromHouse(PHLightState, int)}, even if unchanged.
+	 * Extending classes keeping optimistic state on their own might call this
+	 * method to roll it back, e.g., upon failed commands.
+	 */
+	protected void restoreLightState()
+	{
+		synchronized (this.writeLock)
+		{
+			this.deliverLightState(HueLightFingerprint.ALL, null);
+		}
+	}
+
+	/**
+	 * Handles the bridge answer to a write
+	 * 
+	 * @param written
+	 *            The written state.
+	 * @param successful
+	 *            True if the bridge acknowledged the write.
+	 */
+	private void writeCompleted(PHLightState written, boolean successful)
+	{
+		synchronized (this.writeLock)
+		{
+			if (successful)
+			{
+				// apply the write, until echoed
+				if (this.acknowledgedWrites == null)
+					this.acknowledgedWrites = new LinkedList<AcknowledgedWrite>();
+				this.acknowledgedWrites.add(new AcknowledgedWrite(written));
+				this.deliverLightState(0, null);
+			}
+			else
+				// roll back to the known state
+				this.deliverLightState(HueLightFingerprint.ALL, null);
+		}
+	}
+
+	/**
+	 * Delivers the bridge cache state, with the acknowledged writes applied
+	 * over it, if changed with respect to the last delivered state. Must be
+	 * called holding the write lock.
+	 * 
+	 * @param forcedAttributes
+	 *            The attributes to deliver as changed anyway.
+	 * @param houseState
+	 *            The bridge cache state, if at hand, null to rebuild it from
+	 *            its fingerprint.
+	 */
+	private void deliverLightState(int forcedAttributes,
+			PHLightState houseState)
+	{
+		// nothing known yet, writes are applied once the state is known
+		if (this.houseFingerprint == HueLightStateTable.UNKNOWN)
+			return;
+
+		// forget the writes never echoed, and the list once empty
+		if (this.acknowledgedWrites != null)
+		{
+			long now = System.nanoTime();
+			Iterator<AcknowledgedWrite> writes = this.acknowledgedWrites
+					.iterator();
+			while (writes.hasNext())
+				if ((now - writes.next().time) > TimeUnit.MILLISECONDS
+						.toNanos(ECHO_TIMEOUT_MILLIS))
+					writes.remove();
+
+			if (this.acknowledgedWrites.isEmpty())
+				this.acknowledgedWrites = null;
+		}
+
+		// the bridge state, rebuilt if not at hand
+		PHLightState lightState = (houseState != null) ? houseState
+				: HueLightFingerprint.toLightState(this.houseFingerprint);
+		boolean reachable = HueLightFingerprint
+				.isReachable(this.houseFingerprint);
+
+		// apply the writes over the bridge state, oldest first, without
+		// altering the cached state
+		if (this.acknowledgedWrites != null)
+		{
+			if (lightState == houseState)
+				lightState = new PHLightState(houseState);
+			for (AcknowledgedWrite write : this.acknowledgedWrites)
+				HueCommandQueue.merge(lightState, write.state);
+		}
+
+		// compute the changes
+		long fingerprint = HueLightFingerprint.of(lightState, reachable);
+		int changes = (this.deliveredFingerprint == HueLightStateTable.UNKNOWN) ? HueLightFingerprint.ALL
+				: HueLightFingerprint.changes(this.deliveredFingerprint,
+						fingerprint);
+		changes |= forcedAttributes;
+
+		// deliver the state, only if something changed
+		if (changes != 0)
+		{
+			this.deliveredFingerprint = fingerprint;
+			this.newMessageFromHouse(lightState, changes);
+		}
+	}
+
+	/**
+	 * Checks if the given bridge cache state already holds the given written
+	 * state.
+	 * 
+	 * @param houseState
+	 *            The bridge cache state.
+	 * @param written
+	 *            The written state.
+	 * @return true if the written attributes match the bridge state
+	 */
+	private boolean isEchoed(PHLightState houseState, PHLightState written)
+	{
+		PHLightState echo = new PHLightState(houseState);
+		HueCommandQueue.merge(echo, written);
+
+		return HueLightFingerprint.of(echo, true) == HueLightFingerprint.of(
+				houseState, true);
+	}
+
 	/**
 	 * Extending classes might implement this method to provide driver-specific
 	 * configurations to be done during the driver creation process, before
@@ -123,6 +478,46 @@ public abstract class HueDriverInstance
 	 */
 	public abstract void newMessageFromHouse(PHLightState lastKnownLightState);
 
+	/**
+	 * Called whenever some attributes of a given device (Light) changed at the
+	 * network level. By default, the whole state is handled as in
+	 * {@link #newMessageFromHouse(PHLightState)}, extending classes might
+	 * exploit the given bitmask to only handle the changed attributes.
+	 * 
+	 * @param lastKnownLightState
+	 *            A {@link PHLightState} instance representing the most updated
+	 *            state of the device.
+	 * @param changedAttributes
+	 *            The bitmask of changed attributes, as defined in
+	 *            {@link HueLightFingerprint}.
+	 */
+	public void newMessageFromHouse(PHLightState lastKnownLightState,
+			int changedAttributes)
+	{
+		this.newMessageFromHouse(lastKnownLightState);
+	}
+
+	/**
+	 * A write acknowledged by the bridge
+	 * 
+	 * @author bonino
+	 * 
+	 */
+	private static class AcknowledgedWrite
+	{
+		// the written state
+		private PHLightState state;
+
+		// the acknowledgement time, in nanoseconds
+		private long time;
+
+		public AcknowledgedWrite(PHLightState state)
+		{
+			this.state = state;
+			this.time = System.nanoTime();
+		}
+	}
+
 	/***
 	 * Fills the inner data structures depending on the specific device
 	 * configuration parameters, extracted from the device instance associated
@@ -145,9 +540,10 @@ public abstract class HueDriverInstance
 
 			if ((localIDs != null) && (localIDs.size() == 1))
 			{
-				// store the local id anf the corresponding bridge ip
-				this.hueDevice = new HueDeviceIdentifier(localIDs.iterator()
-						.next(), this.bridgeIp);
+				// store the local id anf the corresponding bridge ip, shared
+				// with the device index
+				this.hueDevice = HueDeviceIdentifier.intern(localIDs
+						.iterator().next(), this.bridgeIp);
 
 			}
 		}
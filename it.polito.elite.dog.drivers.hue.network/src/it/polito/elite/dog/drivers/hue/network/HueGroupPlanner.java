@@ -0,0 +1,510 @@
+/*
+ * Dog 2.0 - Hue Network Driver
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.network;
+
+import it.polito.elite.dog.core.library.util.LogHelper;
+
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.service.log.LogService;
+
+import com.philips.lighting.hue.listener.PHGroupListener;
+import com.philips.lighting.model.PHBridge;
+import com.philips.lighting.model.PHBridgeResourcesCache;
+import com.philips.lighting.model.PHGroup;
+import com.philips.lighting.model.PHHueError;
+import com.philips.lighting.model.PHLight;
+
+/**
+ * Plans the fan-in of identical light commands pending on a single Hue
+ * bridge into one group action. Given the set of lights that shall receive
+ * the same state, the planner provides the bridge group having exactly those
+ * lights: the group of all the lights, a group already defined on the bridge
+ * (e.g., a Dog group) or, as a last resort, a temporary group maintained by
+ * the planner, whose membership is updated right before the group action.
+ * The temporary group serves a single plan at a time: until the group action
+ * of a plan completes, further sets of lights needing the temporary group are
+ * not planned, and their commands are sent to the single lights.
+ * 
+ * Lights that get identical states are only detected among the commands
+ * pending at the same time, therefore light commands are held in the queue
+ * for a short batching window before being sent.
+ * 
+ * @author bonino
+ * 
+ */
+public class HueGroupPlanner
+{
+	// the name of the temporary group maintained by the planner
+	public static final String FAN_IN_GROUP_NAME = "Dog fan-in";
+
+	// the identifier of the group holding all the bridge lights
+	public static final String ALL_LIGHTS_GROUP = "0";
+
+	// the time after which a failed creation of the temporary group is
+	// attempted again, in milliseconds
+	public static final long CREATION_RETRY_MILLIS = 60000;
+
+	// the IP address of the bridge served by this planner
+	private String bridgeIp;
+
+	// the minimum number of identical light commands rewritten into a group
+	// action, 0 to disable the fan-in
+	private volatile int minLights;
+
+	// the batching window, in nanoseconds
+	private volatile long windowNanos;
+
+	// the bridge identifier of the temporary group, null if not available,
+	// guarded by this
+	private String fanInGroupId;
+
+	// the sorted members of the temporary group, as last set, guarded by this
+	private String[] fanInMembers;
+
+	// the plan using the temporary group, until its group action completes,
+	// null if none, guarded by this
+	private Plan fanInPlan;
+
+	// true while the temporary group is being created, guarded by this
+	private boolean creatingFanInGroup;
+
+	// the time of the last failed creation of the temporary group, in
+	// nanoseconds, guarded by this
+	private long creationFailureTime;
+
+	// true if the last creation of the temporary group failed, guarded by
+	// this
+	private boolean creationFailed;
+
+	// the number of completed fan-ins, i.e., of planned group actions
+	// acknowledged by the bridge
+	private AtomicLong plannedCommands;
+
+	// the number of light commands rewritten into completed fan-ins
+	private AtomicLong fannedInCommands;
+
+	// the logger
+	private LogHelper logger;
+
+	/**
+	 * Creates a new planner for the bridge having the given IP address
+	 * 
+	 * @param bridgeIp
+	 *            The IP address of the bridge served by this planner.
+	 * @param logger
+	 *            The logger to use.
+	 */
+	public HueGroupPlanner(String bridgeIp, LogHelper logger)
+	{
+		// store the references
+		this.bridgeIp = bridgeIp;
+		this.logger = logger;
+
+		// initialize the counters
+		this.plannedCommands = new AtomicLong();
+		this.fannedInCommands = new AtomicLong();
+	}
+
+	/**
+	 * Configures the fan-in
+	 * 
+	 * @param minLights
+	 *            The minimum number of identical light commands rewritten
+	 *            into a group action, 0 to disable the fan-in.
+	 * @param windowMillis
+	 *            The time for which light commands are held, waiting for
+	 *            identical commands addressed to other lights, in milliseconds.
+	 */
+	public void configure(int minLights, long windowMillis)
+	{
+		this.minLights = Math.max(0, minLights);
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0,
+				windowMillis));
+	}
+
+	/**
+	 * @return true if the fan-in is enabled
+	 */
+	public boolean isEnabled()
+	{
+		return this.minLights > 0;
+	}
+
+	/**
+	 * @return the minimum number of identical light commands rewritten into
+	 *         a group action
+	 */
+	public int getMinLights()
+	{
+		return this.minLights;
+	}
+
+	/**
+	 * Checks if a light command queued at the given time shall still be held,
+	 * waiting for identical commands addressed to other lights
+	 * 
+	 * @param enqueueTime
+	 *            The time at which the command was queued, in nanoseconds.
+	 * @param now
+	 *            The current time, in nanoseconds.
+	 * @return true if the command shall be held
+	 */
+	public boolean isHeld(long enqueueTime, long now)
+	{
+		return (this.minLights > 0) && ((now - enqueueTime) < this.windowNanos);
+	}
+
+	/**
+	 * Provides the bridge group to which sending the state shared by the
+	 * given lights
+	 * 
+	 * @param bridge
+	 *            The bridge holding the lights.
+	 * @param lightIds
+	 *            The local ids of the lights, sorted.
+	 * @return the group plan, or null if the lights cannot be addressed as a
+	 *         group now; plans shall be completed with
+	 *         {@link #planCompleted(Plan, int, boolean)}
+	 */
+	public Plan plan(PHBridge bridge, String[] lightIds)
+	{
+		// too few lights
+		if ((this.minLights <= 0) || (lightIds.length < this.minLights))
+			return null;
+
+		PHBridgeResourcesCache cache = bridge.getResourceCache();
+
+		// all the bridge lights
+		Map<String, PHLight> lights = cache.getLights();
+		if ((lights != null) && (lights.size() == lightIds.length)
+				&& (HueGroupPlanner.containsAll(lights, lightIds)))
+			return new Plan(ALL_LIGHTS_GROUP, null);
+
+		// a group defined on the bridge
+		List<PHGroup> groups = cache.getAllGroups();
+		if (groups != null)
+		{
+			for (PHGroup group : groups)
+				// the cached membership of the temporary group might be stale
+				if ((!FAN_IN_GROUP_NAME.equals(group.getName()))
+						&& (HueGroupPlanner.sameLights(
+								group.getLightIdentifiers(), lightIds)))
+					return new Plan(group.getIdentifier(), null);
+		}
+
+		synchronized (this)
+		{
+			// the temporary group is in use, its membership cannot change
+			// until the group action of the previous plan completes
+			if (this.fanInPlan != null)
+				return null;
+
+			// the temporary group, updating its membership if needed
+			if (this.fanInGroupId != null)
+				return this.useFanInGroup(Arrays.equals(this.fanInMembers,
+						lightIds) ? null : lightIds);
+
+			// the temporary group is being created, or its creation recently
+			// failed, use light commands
+			if ((this.creatingFanInGroup)
+					|| ((this.creationFailed) && ((System.nanoTime() - this.creationFailureTime) < TimeUnit.MILLISECONDS
+							.toNanos(CREATION_RETRY_MILLIS))))
+				return null;
+
+			// adopt the temporary group created in a previous run, if any
+			if (groups != null)
+			{
+				for (PHGroup group : groups)
+				{
+					if (FAN_IN_GROUP_NAME.equals(group.getName()))
+					{
+						this.fanInGroupId = group.getIdentifier();
+						return this.useFanInGroup(lightIds);
+					}
+				}
+			}
+
+			this.creatingFanInGroup = true;
+		}
+
+		try
+		{
+			// create the temporary group, meanwhile use light commands
+			bridge.createGroup(FAN_IN_GROUP_NAME, lightIds,
+					new FanInGroupListener(lightIds));
+		}
+		catch (Exception e)
+		{
+			this.fanInGroupCreated(null, null);
+
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to create the fan-in group on bridge "
+							+ this.bridgeIp, e);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Records the membership of the temporary group, once updated. An update
+	 * answered after its plan completed (e.g., after the response timeout)
+	 * might have been overtaken by the update of a newer plan: the membership
+	 * is then considered unknown.
+	 * 
+	 * @param plan
+	 *            The plan that updated the membership.
+	 * @param lightIds
+	 *            The new group members, sorted.
+	 */
+	public synchronized void membershipUpdated(Plan plan, String[] lightIds)
+	{
+		this.fanInMembers = (plan == this.fanInPlan) ? lightIds : null;
+	}
+
+	/**
+	 * Completes a plan, once its group action has been answered by the
+	 * bridge, has failed or has been abandoned: the temporary group, if used,
+	 * can serve a new plan, and acknowledged plans are counted
+	 * 
+	 * @param plan
+	 *            The plan.
+	 * @param lights
+	 *            The number of lights addressed by the plan.
+	 * @param successful
+	 *            True if the bridge acknowledged the group action.
+	 */
+	public void planCompleted(Plan plan, int lights, boolean successful)
+	{
+		synchronized (this)
+		{
+			// release the temporary group
+			if (plan == this.fanInPlan)
+			{
+				this.fanInPlan = null;
+
+				// a membership update might still be pending on the bridge
+				if ((!successful) && (plan.getMembership() != null))
+					this.fanInMembers = null;
+			}
+		}
+
+		// count the completed fan-in
+		if (successful)
+		{
+			this.plannedCommands.incrementAndGet();
+			this.fannedInCommands.addAndGet(lights);
+		}
+	}
+
+	/**
+	 * Forgets the temporary group, e.g., when the bridge rejects a
+	 * membership update, so that the group is looked up or created again
+	 */
+	public synchronized void invalidate()
+	{
+		this.fanInGroupId = null;
+		this.fanInMembers = null;
+	}
+
+	/**
+	 * @return the number of completed fan-ins, i.e., of planned group actions
+	 *         acknowledged by the bridge
+	 */
+	public long getPlannedCommands()
+	{
+		return this.plannedCommands.get();
+	}
+
+	/**
+	 * @return the number of light commands rewritten into completed fan-ins
+	 */
+	public long getFannedInCommands()
+	{
+		return this.fannedInCommands.get();
+	}
+
+	/**
+	 * Plans a group action on the temporary group, which is in use until the
+	 * plan completes. Must be called holding the planner lock.
+	 * 
+	 * @param membership
+	 *            The members to set before the group action, null if up to
+	 *            date.
+	 * @return the plan
+	 */
+	private Plan useFanInGroup(String[] membership)
+	{
+		this.fanInPlan = new Plan(this.fanInGroupId, membership);
+
+		return this.fanInPlan;
+	}
+
+	/**
+	 * Stores the temporary group, once created
+	 * 
+	 * @param groupId
+	 *            The group identifier, or null if creation failed.
+	 * @param lightIds
+	 *            The group members, sorted.
+	 */
+	private synchronized void fanInGroupCreated(String groupId,
+			String[] lightIds)
+	{
+		this.creatingFanInGroup = false;
+		this.fanInGroupId = groupId;
+		this.fanInMembers = lightIds;
+
+		// back off after failures
+		this.creationFailed = (groupId == null);
+		this.creationFailureTime = System.nanoTime();
+	}
+
+	/**
+	 * Checks if the given light map holds all the given lights
+	 * 
+	 * @param lights
+	 *            The light map, indexed by local id.
+	 * @param lightIds
+	 *            The light ids.
+	 * @return true if all the lights are in the map
+	 */
+	private static boolean containsAll(Map<String, PHLight> lights,
+			String[] lightIds)
+	{
+		for (String lightId : lightIds)
+			if (!lights.containsKey(lightId))
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Checks if a group holds exactly the given lights
+	 * 
+	 * @param groupLights
+	 *            The group lights, in any order.
+	 * @param lightIds
+	 *            The light ids, sorted.
+	 * @return true if the sets are equal
+	 */
+	private static boolean sameLights(String[] groupLights, String[] lightIds)
+	{
+		if ((groupLights == null) || (groupLights.length != lightIds.length))
+			return false;
+
+		String[] sorted = groupLights.clone();
+		Arrays.sort(sorted);
+
+		return Arrays.equals(sorted, lightIds);
+	}
+
+	/**
+	 * The bridge group to which a fanned-in command shall be sent
+	 * 
+	 * @author bonino
+	 * 
+	 */
+	public static class Plan
+	{
+		// the bridge group identifier
+		private String groupId;
+
+		// the members to set before sending the action, null if up to date
+		private String[] membership;
+
+		public Plan(String groupId, String[] membership)
+		{
+			this.groupId = groupId;
+			this.membership = membership;
+		}
+
+		/**
+		 * @return the bridge group identifier
+		 */
+		public String getGroupId()
+		{
+			return this.groupId;
+		}
+
+		/**
+		 * @return the members to set before sending the group action, null if
+		 *         the group membership is up to date
+		 */
+		public String[] getMembership()
+		{
+			return this.membership;
+		}
+	}
+
+	/**
+	 * Stores the temporary group once created
+	 * 
+	 * @author bonino
+	 * 
+	 */
+	private class FanInGroupListener extends PHGroupListener
+	{
+		// the initial group members
+		private String[] lightIds;
+
+		public FanInGroupListener(String[] lightIds)
+		{
+			this.lightIds = lightIds;
+		}
+
+		@Override
+		public void onCreated(PHGroup group)
+		{
+			fanInGroupCreated(group.getIdentifier(), this.lightIds);
+		}
+
+		@Override
+		public void onSuccess()
+		{
+			// the group is stored on creation
+		}
+
+		@Override
+		public void onError(int code, String message)
+		{
+			// light commands are used until the next attempt
+			fanInGroupCreated(null, null);
+
+			logger.log(LogService.LOG_WARNING,
+					"Unable to create the fan-in group on bridge " + bridgeIp
+							+ ": " + message + " (" + code + ")");
+		}
+
+		@Override
+		public void onStateUpdate(Hashtable<String, String> successes,
+				List<PHHueError> errors)
+		{
+			// report the first error, if any
+			if ((errors != null) && (!errors.isEmpty()))
+				this.onError(errors.get(0).getCode(), errors.get(0)
+						.getMessage());
+		}
+	}
+}
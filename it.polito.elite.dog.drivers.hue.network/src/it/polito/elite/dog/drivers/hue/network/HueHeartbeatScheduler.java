@@ -0,0 +1,308 @@
+/*
+ * Dog 2.0 - Hue Network Driver
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.network;
+
+import it.polito.elite.dog.core.library.util.LogHelper;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.service.log.LogService;
+
+import com.philips.lighting.hue.sdk.bridge.impl.PHBridgeImpl;
+import com.philips.lighting.hue.sdk.heartbeat.PHHeartbeatProcessor;
+import com.philips.lighting.model.PHBridge;
+
+/**
+ * Polls a single Hue bridge with an adaptive rate, replacing the fixed-rate
+ * heartbeat provided by the Hue SDK. The bridge is polled at the fast rate for
+ * a short window after any activity (commands or detected changes), then the
+ * polling interval grows by the decay factor at each poll, up to the idle
+ * rate. A random offset is added to every poll so that heartbeats of different
+ * bridges do not synchronize.
+ * 
+ * Polls are blocking HTTP requests: the scheduler only times them, while the
+ * polls themselves run on a separate executor, so that a slow or unreachable
+ * bridge never delays the polls of other bridges, nor the tasks sharing the
+ * scheduler.
+ * 
+ * @author bonino
+ * 
+ */
+public class HueHeartbeatScheduler implements Runnable
+{
+	// the jitter applied to each poll, as a fraction of the current interval
+	private static final double JITTER = 0.1;
+
+	// the random generator used to stagger polls
+	private static final Random random = new Random();
+
+	// the IP address of the polled bridge
+	private String bridgeIp;
+
+	// the SDK processor performing a single heartbeat
+	private volatile PHHeartbeatProcessor processor;
+
+	// the scheduler timing the polls
+	private ScheduledExecutorService scheduler;
+
+	// the executor on which polls are run
+	private ExecutorService pollExecutor;
+
+	// submits a poll to the poll executor, once due
+	private Runnable pollTrigger;
+
+	// the handle of the next scheduled poll
+	private ScheduledFuture<?> nextPoll;
+
+	// the fast polling interval, in milliseconds
+	private long fastIntervalMillis;
+
+	// the idle polling interval, in milliseconds
+	private long idleIntervalMillis;
+
+	// the time during which the bridge is polled at the fast rate after an
+	// activity, in milliseconds
+	private long fastWindowMillis;
+
+	// the factor by which the interval grows at each poll outside the fast
+	// window
+	private double decayFactor;
+
+	// the current polling interval, in milliseconds
+	private long currentIntervalMillis;
+
+	// the time of the latest activity
+	private volatile long lastActivityMillis;
+
+	// true when the scheduler has been stopped
+	private boolean stopped;
+
+	// the logger
+	private LogHelper logger;
+
+	/**
+	 * Creates a heartbeat scheduler for the given bridge
+	 * 
+	 * @param bridgeIp
+	 *            The IP address of the bridge.
+	 * @param scheduler
+	 *            The scheduler timing the polls.
+	 * @param pollExecutor
+	 *            The executor on which polls are run.
+	 * @param logger
+	 *            The logger to use.
+	 */
+	public HueHeartbeatScheduler(String bridgeIp,
+			ScheduledExecutorService scheduler, ExecutorService pollExecutor,
+			LogHelper logger)
+	{
+		// store the bridge ip
+		this.bridgeIp = bridgeIp;
+
+		// store the scheduler and the poll executor
+		this.scheduler = scheduler;
+		this.pollExecutor = pollExecutor;
+
+		// create the trigger of due polls
+		this.pollTrigger = new Runnable()
+		{
+
+			@Override
+			public void run()
+			{
+				poll();
+			}
+		};
+
+		// store the logger
+		this.logger = logger;
+	}
+
+	/**
+	 * Sets the polling rates used by this scheduler
+	 * 
+	 * @param fastIntervalMillis
+	 *            The polling interval used right after an activity.
+	 * @param idleIntervalMillis
+	 *            The polling interval used when the bridge is idle.
+	 * @param fastWindowMillis
+	 *            The time during which the fast interval is used after an
+	 *            activity.
+	 * @param decayFactor
+	 *            The factor by which the interval grows at each poll, outside
+	 *            the fast window.
+	 */
+	public synchronized void configure(long fastIntervalMillis,
+			long idleIntervalMillis, long fastWindowMillis, double decayFactor)
+	{
+		this.fastIntervalMillis = fastIntervalMillis;
+		this.idleIntervalMillis = Math.max(fastIntervalMillis,
+				idleIntervalMillis);
+		this.fastWindowMillis = fastWindowMillis;
+		this.decayFactor = Math.max(1.0, decayFactor);
+
+		// keep the current interval in the new bounds
+		this.currentIntervalMillis = Math.max(this.fastIntervalMillis,
+				Math.min(this.idleIntervalMillis, this.currentIntervalMillis));
+	}
+
+	/**
+	 * Starts polling the given bridge, the first poll is randomly delayed
+	 * within the fast interval to stagger bridges connected at the same time.
+	 * 
+	 * @param bridge
+	 *            The (connected) bridge to poll.
+	 */
+	public synchronized void start(PHBridge bridge)
+	{
+		// create the processor performing the actual heartbeat
+		this.processor = new PHHeartbeatProcessor((PHBridgeImpl) bridge);
+
+		// a just connected bridge is active
+		this.stopped = false;
+		this.lastActivityMillis = System.currentTimeMillis();
+		this.currentIntervalMillis = this.fastIntervalMillis;
+
+		// schedule the first poll
+		this.reschedule((long) (random.nextDouble() * this.fastIntervalMillis));
+	}
+
+	/**
+	 * Stops polling the bridge
+	 */
+	public synchronized void stop()
+	{
+		this.stopped = true;
+
+		// cancel the next poll, if any
+		if (this.nextPoll != null)
+		{
+			this.nextPoll.cancel(false);
+			this.nextPoll = null;
+		}
+	}
+
+	/**
+	 * Signals an activity on the bridge (e.g., a command or a detected state
+	 * change), switching back to the fast polling rate.
+	 */
+	public synchronized void signalActivity()
+	{
+		// store the activity time
+		this.lastActivityMillis = System.currentTimeMillis();
+
+		// switch to the fast interval
+		this.currentIntervalMillis = this.fastIntervalMillis;
+
+		// anticipate the next poll if it is farther than the fast interval
+		if ((!this.stopped)
+				&& (this.nextPoll != null)
+				&& (this.nextPoll.getDelay(TimeUnit.MILLISECONDS) > this.fastIntervalMillis))
+		{
+			this.nextPoll.cancel(false);
+			this.reschedule(this.jitter(this.fastIntervalMillis));
+		}
+	}
+
+	/**
+	 * @return the current polling interval, in milliseconds
+	 */
+	public synchronized long getCurrentIntervalMillis()
+	{
+		return this.currentIntervalMillis;
+	}
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			// poll the bridge, cache updates are notified by the SDK
+			this.processor.run();
+		}
+		catch (Exception e)
+		{
+			// log the error and keep polling
+			this.logger.log(LogService.LOG_WARNING, "Heartbeat failed for "
+					+ this.bridgeIp, e);
+		}
+
+		synchronized (this)
+		{
+			// outside the fast window, back off towards the idle rate
+			if (System.currentTimeMillis() - this.lastActivityMillis > this.fastWindowMillis)
+				this.currentIntervalMillis = Math.min(this.idleIntervalMillis,
+						(long) (this.currentIntervalMillis * this.decayFactor));
+
+			// schedule the next poll, unless already scheduled by a restart
+			// while polling
+			if ((!this.stopped)
+					&& ((this.nextPoll == null) || (this.nextPoll.isDone())))
+				this.reschedule(this.jitter(this.currentIntervalMillis));
+		}
+	}
+
+	/**
+	 * Schedules the next poll after the given delay
+	 * 
+	 * @param delayMillis
+	 *            The delay in milliseconds.
+	 */
+	private void reschedule(long delayMillis)
+	{
+		this.nextPoll = this.scheduler.schedule(this.pollTrigger, delayMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs a due poll on the poll executor, the next poll is scheduled once
+	 * completed
+	 */
+	private void poll()
+	{
+		try
+		{
+			this.pollExecutor.execute(this);
+		}
+		catch (RejectedExecutionException e)
+		{
+			// the network driver is being deactivated
+			this.logger.log(LogService.LOG_DEBUG, "Heartbeat stopped for "
+					+ this.bridgeIp);
+		}
+	}
+
+	/**
+	 * Randomly spreads the given interval by {@link #JITTER}
+	 * 
+	 * @param intervalMillis
+	 *            The interval to spread.
+	 * @return the spread interval
+	 */
+	private long jitter(long intervalMillis)
+	{
+		return (long) (intervalMillis * (1.0 + JITTER
+				* (2 * random.nextDouble() - 1.0)));
+	}
+}
@@ -0,0 +1,240 @@
+/*
+ * Dog 2.0 - Hue Network Driver
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.network;
+
+import it.polito.elite.dog.drivers.hue.network.info.HueLightFingerprint;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The process-wide table of the light states last dispatched to Dog, for
+ * all the lights of all the bridges. Each light gets a dense slot, and its
+ * state (on, brightness, hue, saturation, color temperature, xy and
+ * reachability) is stored in the slot as its {@link HueLightFingerprint},
+ * i.e., as a single long in a primitive array, instead of as boxed values in
+ * per-light maps.
+ * 
+ * Slots are recycled once released, so the table never grows beyond the
+ * largest number of lights attached at the same time. Each slot is accessed
+ * on behalf of the owner that allocated it: accesses by a previous owner of
+ * a recycled slot are ignored.
+ * 
+ * Reads take no lock, as they happen for each light at each bridge cache
+ * update; slot allocations and writes, which only happen as lights are
+ * attached or change, are serialized.
+ * 
+ * @author bonino
+ * 
+ */
+public class HueLightStateTable
+{
+	/**
+	 * The content of slots holding no state: fingerprints never have the
+	 * most significant bit set
+	 */
+	public static final long UNKNOWN = -1L;
+
+	// the initial number of slots
+	private static final int INITIAL_CAPACITY = 64;
+
+	// the single table
+	private static final HueLightStateTable instance = new HueLightStateTable();
+
+	// the light states, indexed by slot, replaced when growing, written
+	// holding the lock of this
+	private volatile AtomicLongArray states;
+
+	// the slot owners, indexed by slot, replaced when growing, written
+	// holding the lock of this
+	private volatile AtomicReferenceArray<Object> owners;
+
+	// the released slots, as a stack, guarded by this
+	private int[] freeSlots;
+
+	// the number of released slots, guarded by this
+	private int freeCount;
+
+	// the number of slots ever allocated, guarded by this
+	private int slotCount;
+
+	private HueLightStateTable()
+	{
+		this.states = new AtomicLongArray(INITIAL_CAPACITY);
+		this.owners = new AtomicReferenceArray<Object>(INITIAL_CAPACITY);
+		this.freeSlots = new int[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * @return the process-wide table
+	 */
+	public static HueLightStateTable getInstance()
+	{
+		return instance;
+	}
+
+	/**
+	 * Allocates a slot, holding no state
+	 * 
+	 * @param owner
+	 *            The slot owner, e.g., the device index entry of the light.
+	 * @return the slot
+	 */
+	public synchronized int allocate(Object owner)
+	{
+		int slot;
+
+		// recycle a released slot, if any
+		if (this.freeCount > 0)
+			slot = this.freeSlots[--this.freeCount];
+		else
+		{
+			// grow the table if needed, publishing the owners last, so that
+			// readers seeing a slot owner see its state too
+			if (this.slotCount == this.states.length())
+			{
+				this.states = HueLightStateTable.grow(this.states);
+				this.owners = HueLightStateTable.grow(this.owners);
+				this.freeSlots = Arrays.copyOf(this.freeSlots,
+						this.freeSlots.length * 2);
+			}
+
+			slot = this.slotCount++;
+		}
+
+		this.states.set(slot, UNKNOWN);
+		this.owners.set(slot, owner);
+
+		return slot;
+	}
+
+	/**
+	 * Releases a slot, which can then be allocated again
+	 * 
+	 * @param slot
+	 *            The slot to release.
+	 * @param owner
+	 *            The slot owner.
+	 */
+	public synchronized void release(int slot, Object owner)
+	{
+		if (this.owners.get(slot) == owner)
+		{
+			this.owners.set(slot, null);
+			this.states.set(slot, UNKNOWN);
+			this.freeSlots[this.freeCount++] = slot;
+		}
+	}
+
+	/**
+	 * Provides the state stored in the given slot
+	 * 
+	 * @param slot
+	 *            The slot.
+	 * @param owner
+	 *            The slot owner.
+	 * @return the state fingerprint, or {@link #UNKNOWN}
+	 */
+	public long get(int slot, Object owner)
+	{
+		// read the owners first: a table grown meanwhile is read after its
+		// owners have been published, thus holding the slot state
+		AtomicReferenceArray<Object> owners = this.owners;
+		long state = this.states.get(slot);
+
+		// the state read belongs to the owner, unless the slot has been
+		// released meanwhile
+		return (owners.get(slot) == owner) ? state : UNKNOWN;
+	}
+
+	/**
+	 * Stores a state in the given slot
+	 * 
+	 * @param slot
+	 *            The slot.
+	 * @param owner
+	 *            The slot owner.
+	 * @param fingerprint
+	 *            The state fingerprint.
+	 */
+	public synchronized void set(int slot, Object owner, long fingerprint)
+	{
+		if (this.owners.get(slot) == owner)
+			this.states.set(slot, fingerprint);
+	}
+
+	/**
+	 * Forgets the state stored in the given slot, keeping the slot allocated
+	 * 
+	 * @param slot
+	 *            The slot.
+	 * @param owner
+	 *            The slot owner.
+	 */
+	public synchronized void clear(int slot, Object owner)
+	{
+		if (this.owners.get(slot) == owner)
+			this.states.set(slot, UNKNOWN);
+	}
+
+	/**
+	 * @return the number of allocated slots
+	 */
+	public synchronized int size()
+	{
+		return this.slotCount - this.freeCount;
+	}
+
+	/**
+	 * @return the memory taken by the table arrays, in bytes, excluding the
+	 *         array headers and assuming compressed references
+	 */
+	public synchronized long getFootprintBytes()
+	{
+		return (this.states.length() * 8L) + (this.owners.length() * 4L)
+				+ (this.freeSlots.length * 4L);
+	}
+
+	/**
+	 * Copies the given states in an array twice as large
+	 */
+	private static AtomicLongArray grow(AtomicLongArray states)
+	{
+		AtomicLongArray grown = new AtomicLongArray(states.length() * 2);
+		for (int i = 0; i < states.length(); i++)
+			grown.set(i, states.get(i));
+
+		return grown;
+	}
+
+	/**
+	 * Copies the given owners in an array twice as large
+	 */
+	private static AtomicReferenceArray<Object> grow(
+			AtomicReferenceArray<Object> owners)
+	{
+		AtomicReferenceArray<Object> grown = new AtomicReferenceArray<Object>(
+				owners.length() * 2);
+		for (int i = 0; i < owners.length(); i++)
+			grown.set(i, owners.get(i));
+
+		return grown;
+	}
+}
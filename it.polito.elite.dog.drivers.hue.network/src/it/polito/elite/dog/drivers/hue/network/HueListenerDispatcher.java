@@ -0,0 +1,548 @@
+/*
+ * Dog 2.0 - Hue Network Driver
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.network;
+
+import it.polito.elite.dog.core.library.util.LogHelper;
+import it.polito.elite.dog.drivers.hue.network.interfaces.HueConnectionListener;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.service.log.LogService;
+
+import com.philips.lighting.model.PHBridge;
+
+/**
+ * Delivers the events of a single Hue bridge to the registered
+ * {@link HueConnectionListener}s, off the SDK notification thread. Events are
+ * kept in a bounded queue and dispatched one at a time, in arrival order, on
+ * a shared executor, so that a slow listener delays only the events of its own
+ * bridge.
+ * 
+ * When the queue is full, cache-updated events are discarded according to the
+ * configured {@link OverflowPolicy}; connection events are never discarded.
+ * 
+ * @author bonino
+ * 
+ */
+public class HueListenerDispatcher implements Runnable
+{
+	/**
+	 * The policies applied to cache-updated events when the dispatch queue is
+	 * full
+	 */
+	public enum OverflowPolicy
+	{
+		/**
+		 * A new cache-updated event replaces the pending one having the same
+		 * flag, if any, as the bridge cache only holds the latest state; when
+		 * full, the oldest pending cache-updated event is discarded.
+		 */
+		COLLAPSE,
+
+		/**
+		 * When full, the oldest pending cache-updated event is discarded.
+		 */
+		DROP_OLDEST,
+
+		/**
+		 * When full, the new cache-updated event is discarded.
+		 */
+		DROP_NEWEST
+	}
+
+	// the event types
+	private static final int BRIDGE_CONNECTED = 0;
+	private static final int BRIDGE_DISCONNECTED = 1;
+	private static final int CACHE_UPDATED = 2;
+	private static final int AUTHENTICATION_REQUIRED = 3;
+
+	// the IP address of the bridge whose events are dispatched
+	private String bridgeIp;
+
+	// the network driver holding the registered listeners
+	private HueNetworkDriver network;
+
+	// the executor on which events are dispatched
+	private ExecutorService executor;
+
+	// the pending events, in arrival order
+	private LinkedList<Event> events;
+
+	// the maximum number of pending events
+	private volatile int capacity;
+
+	// the overflow policy
+	private volatile OverflowPolicy overflowPolicy;
+
+	// true while a dispatch task is scheduled or running, guarded by the
+	// events lock
+	private boolean dispatching;
+
+	// true once stopped, guarded by the events lock
+	private boolean stopped;
+
+	// the number of dispatched events
+	private AtomicLong dispatchedEvents;
+
+	// the number of collapsed cache-updated events
+	private AtomicLong collapsedEvents;
+
+	// the number of discarded cache-updated events
+	private AtomicLong droppedEvents;
+
+	// the lag of the last dispatched event, in nanoseconds
+	private volatile long lastDispatchLag;
+
+	// the logger
+	private LogHelper logger;
+
+	/**
+	 * Creates a new dispatcher for the bridge having the given IP address
+	 * 
+	 * @param bridgeIp
+	 *            The IP address of the bridge whose events are dispatched.
+	 * @param network
+	 *            The network driver holding the registered listeners.
+	 * @param executor
+	 *            The executor on which events are dispatched.
+	 * @param logger
+	 *            The logger to use.
+	 */
+	public HueListenerDispatcher(String bridgeIp, HueNetworkDriver network,
+			ExecutorService executor, LogHelper logger)
+	{
+		// store the references
+		this.bridgeIp = bridgeIp;
+		this.network = network;
+		this.executor = executor;
+		this.logger = logger;
+
+		// initialize the event queue
+		this.events = new LinkedList<Event>();
+		this.capacity = Integer.MAX_VALUE;
+		this.overflowPolicy = OverflowPolicy.COLLAPSE;
+
+		// initialize the counters
+		this.dispatchedEvents = new AtomicLong();
+		this.collapsedEvents = new AtomicLong();
+		this.droppedEvents = new AtomicLong();
+	}
+
+	/**
+	 * Configures the queue bound and the overflow policy
+	 * 
+	 * @param capacity
+	 *            The maximum number of pending events.
+	 * @param overflowPolicy
+	 *            The policy applied to cache-updated events.
+	 */
+	public void configure(int capacity, OverflowPolicy overflowPolicy)
+	{
+		this.capacity = Math.max(1, capacity);
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Queues a bridge connection event
+	 * 
+	 * @param bridge
+	 *            The connected bridge.
+	 */
+	public void bridgeConnected(PHBridge bridge)
+	{
+		this.enqueue(new Event(BRIDGE_CONNECTED, 0, bridge));
+	}
+
+	/**
+	 * Queues a bridge connection event for the given listener only, e.g., for
+	 * a listener registered once the bridge is already connected
+	 * 
+	 * @param bridge
+	 *            The connected bridge.
+	 * @param listener
+	 *            The listener to notify.
+	 */
+	public void bridgeConnected(PHBridge bridge, HueConnectionListener listener)
+	{
+		Event event = new Event(BRIDGE_CONNECTED, 0, bridge);
+		event.listener = listener;
+
+		this.enqueue(event);
+	}
+
+	/**
+	 * Queues a bridge disconnection event
+	 */
+	public void bridgeDisconnected()
+	{
+		this.enqueue(new Event(BRIDGE_DISCONNECTED, 0, null));
+	}
+
+	/**
+	 * Queues a cache-updated event
+	 * 
+	 * @param flag
+	 *            The SDK flag identifying the updated cache.
+	 * @param bridge
+	 *            The updated bridge.
+	 */
+	public void cacheUpdated(int flag, PHBridge bridge)
+	{
+		this.enqueue(new Event(CACHE_UPDATED, flag, bridge));
+	}
+
+	/**
+	 * Queues an authentication-required event
+	 */
+	public void authenticationRequired()
+	{
+		this.enqueue(new Event(AUTHENTICATION_REQUIRED, 0, null));
+	}
+
+	/**
+	 * Stops dispatching, pending events are discarded
+	 */
+	public void stop()
+	{
+		synchronized (this.events)
+		{
+			this.stopped = true;
+			this.events.clear();
+		}
+	}
+
+	/**
+	 * @return the number of events waiting to be dispatched
+	 */
+	public int getDepth()
+	{
+		synchronized (this.events)
+		{
+			return this.events.size();
+		}
+	}
+
+	/**
+	 * Provides the dispatch lag, i.e., the time the oldest pending event has
+	 * been waiting or, if no event is pending, the time the last dispatched
+	 * event waited before being delivered
+	 * 
+	 * @param unit
+	 *            The unit in which the lag shall be expressed.
+	 * @return the dispatch lag
+	 */
+	public long getDispatchLag(TimeUnit unit)
+	{
+		long lag = this.lastDispatchLag;
+
+		synchronized (this.events)
+		{
+			if (!this.events.isEmpty())
+				lag = System.nanoTime() - this.events.getFirst().enqueueTime;
+		}
+
+		return unit.convert(lag, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return the number of dispatched events
+	 */
+	public long getDispatchedEvents()
+	{
+		return this.dispatchedEvents.get();
+	}
+
+	/**
+	 * @return the number of cache-updated events collapsed into pending ones
+	 */
+	public long getCollapsedEvents()
+	{
+		return this.collapsedEvents.get();
+	}
+
+	/**
+	 * @return the number of cache-updated events discarded on overflow
+	 */
+	public long getDroppedEvents()
+	{
+		return this.droppedEvents.get();
+	}
+
+	@Override
+	public void run()
+	{
+		Event event = this.next();
+
+		while (event != null)
+		{
+			// measure the dispatch lag
+			this.lastDispatchLag = System.nanoTime() - event.enqueueTime;
+
+			// deliver the event
+			this.dispatch(event);
+			this.dispatchedEvents.incrementAndGet();
+
+			event = this.next();
+		}
+	}
+
+	/**
+	 * Adds the given event to the queue, applying the overflow policy, and
+	 * schedules the dispatch task, if not already scheduled.
+	 * 
+	 * @param event
+	 *            The event to add.
+	 */
+	private void enqueue(Event event)
+	{
+		boolean schedule = false;
+
+		synchronized (this.events)
+		{
+			if (this.stopped)
+				return;
+
+			boolean accepted = true;
+
+			if (event.type == CACHE_UPDATED)
+			{
+				if ((this.overflowPolicy == OverflowPolicy.COLLAPSE)
+						&& (this.collapse(event)))
+				{
+					// merged into a pending event
+					this.collapsedEvents.incrementAndGet();
+					accepted = false;
+				}
+				else if (this.events.size() >= this.capacity)
+				{
+					// overflow
+					if ((this.overflowPolicy == OverflowPolicy.DROP_NEWEST)
+							|| (!this.dropOldestCacheUpdate()))
+						accepted = false;
+
+					this.droppedEvents.incrementAndGet();
+				}
+			}
+
+			if (accepted)
+				this.events.addLast(event);
+
+			// schedule the dispatch task, if needed
+			if ((!this.dispatching) && (!this.events.isEmpty()))
+			{
+				this.dispatching = true;
+				schedule = true;
+			}
+		}
+
+		if (schedule)
+		{
+			try
+			{
+				this.executor.execute(this);
+			}
+			catch (RejectedExecutionException e)
+			{
+				// the driver is shutting down
+				synchronized (this.events)
+				{
+					this.dispatching = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merges the given cache-updated event into a pending one having the same
+	 * flag, if found after the last pending connection event, so that the
+	 * order with respect to connection events is kept. Must be called holding
+	 * the events lock.
+	 * 
+	 * @param event
+	 *            The cache-updated event.
+	 * @return true if the event has been merged
+	 */
+	private boolean collapse(Event event)
+	{
+		ListIterator<Event> iterator = this.events.listIterator(this.events
+				.size());
+
+		while (iterator.hasPrevious())
+		{
+			Event pending = iterator.previous();
+
+			// stop at connection events
+			if (pending.type != CACHE_UPDATED)
+				break;
+
+			if (pending.flag == event.flag)
+			{
+				// the pending event will deliver the latest bridge state
+				pending.bridge = event.bridge;
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Discards the oldest pending cache-updated event, if any. Must be called
+	 * holding the events lock.
+	 * 
+	 * @return true if an event has been discarded
+	 */
+	private boolean dropOldestCacheUpdate()
+	{
+		Iterator<Event> iterator = this.events.iterator();
+
+		while (iterator.hasNext())
+		{
+			if (iterator.next().type == CACHE_UPDATED)
+			{
+				iterator.remove();
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Extracts the next event to dispatch, or releases the dispatch task if no
+	 * event is pending.
+	 * 
+	 * @return the next event, or null
+	 */
+	private Event next()
+	{
+		synchronized (this.events)
+		{
+			Event event = this.events.poll();
+
+			if (event == null)
+				this.dispatching = false;
+
+			return event;
+		}
+	}
+
+	/**
+	 * Delivers the given event to the listeners registered for the bridge
+	 * 
+	 * @param event
+	 *            The event to deliver.
+	 */
+	private void dispatch(Event event)
+	{
+		// events targeting a single listener
+		if (event.listener != null)
+		{
+			this.deliver(event, event.listener);
+			return;
+		}
+
+		// get the set of listeners registered for the bridge
+		Set<HueConnectionListener> listenersToNotify = this.network
+				.getConnectionListeners(this.bridgeIp);
+
+		// check not null
+		if (listenersToNotify != null)
+		{
+			for (HueConnectionListener listener : listenersToNotify)
+				this.deliver(event, listener);
+		}
+	}
+
+	/**
+	 * Delivers the given event to the given listener
+	 * 
+	 * @param event
+	 *            The event to deliver.
+	 * @param listener
+	 *            The listener to notify.
+	 */
+	private void deliver(Event event, HueConnectionListener listener)
+	{
+		try
+		{
+			switch (event.type)
+			{
+				case BRIDGE_CONNECTED:
+					listener.onBridgeConnected(event.bridge);
+					break;
+				case BRIDGE_DISCONNECTED:
+					listener.onBridgeDisconnected();
+					break;
+				case CACHE_UPDATED:
+					listener.onCacheUpdated(event.flag, event.bridge);
+					break;
+				case AUTHENTICATION_REQUIRED:
+					listener.onAuthenticationRequired();
+					break;
+			}
+		}
+		catch (Exception e)
+		{
+			// a faulty listener shall not prevent delivery to others
+			this.logger.log(LogService.LOG_ERROR,
+					"Error while notifying an event of bridge " + this.bridgeIp,
+					e);
+		}
+	}
+
+	/**
+	 * A bridge event waiting to be dispatched
+	 * 
+	 * @author bonino
+	 * 
+	 */
+	private static class Event
+	{
+		// the event type
+		private int type;
+
+		// the SDK flag of cache-updated events
+		private int flag;
+
+		// the bridge, if any
+		private PHBridge bridge;
+
+		// the single listener to notify, null to notify all the listeners
+		private HueConnectionListener listener;
+
+		// the time at which the event was queued, in nanoseconds
+		private long enqueueTime;
+
+		public Event(int type, int flag, PHBridge bridge)
+		{
+			this.type = type;
+			this.flag = flag;
+			this.bridge = bridge;
+			this.enqueueTime = System.nanoTime();
+		}
+	}
+}
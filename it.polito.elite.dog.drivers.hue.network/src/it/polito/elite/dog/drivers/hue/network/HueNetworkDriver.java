@@ -19,26 +19,42 @@
 package it.polito.elite.dog.drivers.hue.network;
 
 import it.polito.elite.dog.core.library.util.LogHelper;
+import it.polito.elite.dog.drivers.hue.network.info.HueDeviceIdentifier;
 import it.polito.elite.dog.drivers.hue.network.interfaces.HueBridgeDiscoveryListener;
 import it.polito.elite.dog.drivers.hue.network.interfaces.HueConnectionListener;
 import it.polito.elite.dog.drivers.hue.network.interfaces.HueNetwork;
 
 import java.util.Collections;
+import java.util.Dictionary;
 import java.util.HashSet;
+import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.cm.ConfigurationException;
+import org.osgi.service.cm.ManagedService;
 import org.osgi.service.log.LogService;
 
+import com.philips.lighting.hue.listener.PHLightListener;
 import com.philips.lighting.hue.sdk.PHAccessPoint;
 import com.philips.lighting.hue.sdk.PHBridgeSearchManager;
 import com.philips.lighting.hue.sdk.PHHueSDK;
 import com.philips.lighting.hue.sdk.PHSDKListener;
 import com.philips.lighting.model.PHBridge;
+import com.philips.lighting.model.PHBridgeResource;
+import com.philips.lighting.model.PHHueError;
+import com.philips.lighting.model.PHLight;
+import com.philips.lighting.model.PHLightState;
 
 /**
  * Differently from the typical structure adopted in network drivers, since most
@@ -50,8 +66,74 @@ import com.philips.lighting.model.PHBridge;
  * @author bonino
  * 
  */
-public class HueNetworkDriver implements HueNetwork, PHSDKListener
+public class HueNetworkDriver implements HueNetwork, PHSDKListener,
+		ManagedService
 {
+	// the configuration identifier for the maximum number of commands sent
+	// to a single bridge in one second
+	public static final String MAX_COMMANDS_PER_SECOND = "maxCommandsPerSecond";
+
+	// the configuration identifier for the fast heartbeat interval
+	public static final String HEARTBEAT_FAST_INTERVAL = "heartbeatFastIntervalMillis";
+
+	// the configuration identifier for the idle heartbeat interval
+	public static final String HEARTBEAT_IDLE_INTERVAL = "heartbeatIdleIntervalMillis";
+
+	// the configuration identifier for the time during which bridges are
+	// polled at the fast rate after an activity
+	public static final String HEARTBEAT_FAST_WINDOW = "heartbeatFastWindowMillis";
+
+	// the configuration identifier for the heartbeat decay factor
+	public static final String HEARTBEAT_DECAY = "heartbeatDecayFactor";
+
+	// the configuration identifier for the maximum number of bridge events
+	// waiting to be dispatched to listeners, per bridge
+	public static final String LISTENER_QUEUE_CAPACITY = "listenerQueueCapacity";
+
+	// the configuration identifier for the policy applied to cache-updated
+	// events when the listener queue is full
+	public static final String LISTENER_OVERFLOW_POLICY = "listenerOverflowPolicy";
+
+	// the configuration identifier for the minimum number of identical light
+	// commands rewritten into a group action, 0 to disable
+	public static final String FAN_IN_MIN_LIGHTS = "fanInMinLights";
+
+	// the configuration identifier for the time for which light commands are
+	// held, waiting for identical commands addressed to other lights
+	public static final String FAN_IN_WINDOW = "fanInWindowMillis";
+
+	// the maximum number of commands sent to a single bridge in one second
+	private int maxCommandsPerSecond = 10;
+
+	// the fast heartbeat interval in milliseconds
+	private long heartbeatFastIntervalMillis = 1000;
+
+	// the idle heartbeat interval in milliseconds
+	private long heartbeatIdleIntervalMillis = PHHueSDK.HB_INTERVAL;
+
+	// the time during which bridges are polled at the fast rate after an
+	// activity, in milliseconds
+	private long heartbeatFastWindowMillis = 10000;
+
+	// the factor by which the heartbeat interval grows when bridges are idle
+	private double heartbeatDecayFactor = 1.5;
+
+	// the maximum number of bridge events waiting to be dispatched, per
+	// bridge
+	private int listenerQueueCapacity = 64;
+
+	// the policy applied to cache-updated events when the listener queue is
+	// full
+	private HueListenerDispatcher.OverflowPolicy listenerOverflowPolicy = HueListenerDispatcher.OverflowPolicy.COLLAPSE;
+
+	// the minimum number of identical light commands rewritten into a group
+	// action, 0 to disable the fan-in
+	private int fanInMinLights = 3;
+
+	// the time for which light commands are held, waiting for identical
+	// commands addressed to other lights, in milliseconds
+	private long fanInWindowMillis = 20;
+
 	// the default HUE username
 	private String hueUsername = "newdeveloper";
 
@@ -79,6 +161,37 @@ public class HueNetworkDriver implements HueNetwork, PHSDKListener
 	// the HUE sdk singleton
 	private PHHueSDK sdk;
 
+	// the command queues, one per bridge, indexed by bridge ip address
+	private ConcurrentHashMap<String, HueCommandQueue> commandQueues;
+
+	// the heartbeat schedulers, one per bridge, indexed by bridge ip address
+	private ConcurrentHashMap<String, HueHeartbeatScheduler> heartbeats;
+
+	// the scheduler used to drain command queues and to time bridge polls
+	private ScheduledExecutorService scheduler;
+
+	// the scheduler running the tasks of all the Hue drivers (e.g., snapshot
+	// saving, group and scene syncs, discovery), independent of bridge
+	// latency
+	private ScheduledExecutorService taskScheduler;
+
+	// the executor on which bridge polls are run, as polls block until the
+	// bridge responds; each bridge uses at most one thread at a time
+	private ExecutorService pollExecutor;
+
+	// the listener dispatchers, one per bridge, indexed by bridge ip address
+	private ConcurrentHashMap<String, HueListenerDispatcher> dispatchers;
+
+	// the executor on which bridge events are dispatched to listeners
+	private ExecutorService dispatchExecutor;
+
+	// the known bridges, persisted across restarts
+	private HueBridgeRegistry bridgeRegistry;
+
+	// the delay between a change of the known bridges and their saving, in
+	// milliseconds
+	private static final long REGISTRY_SAVE_DELAY_MILLIS = 1000;
+
 	/**
 	 * Class constructor, creates a HUE network driver instance and initializes
 	 * all the needed data structures. It performs the initial bridge discovery
@@ -96,6 +209,15 @@ public class HueNetworkDriver implements HueNetwork, PHSDKListener
 		// initialise the set of currently connected gateways
 		this.connectedBridges = new ConcurrentHashMap<String, PHBridge>();
 
+		// initialize the per-bridge command queues
+		this.commandQueues = new ConcurrentHashMap<String, HueCommandQueue>();
+
+		// initialize the per-bridge heartbeat schedulers
+		this.heartbeats = new ConcurrentHashMap<String, HueHeartbeatScheduler>();
+
+		// initialize the per-bridge listener dispatchers
+		this.dispatchers = new ConcurrentHashMap<String, HueListenerDispatcher>();
+
 		// create the sdk singleton
 		this.sdk = PHHueSDK.create();
 
@@ -123,9 +245,35 @@ public class HueNetworkDriver implements HueNetwork, PHSDKListener
 		// debug: signal activation...
 		this.logger.log(LogService.LOG_DEBUG, "Activated...");
 
+		// create the scheduler used to drain the command queues and to time
+		// the bridge polls
+		this.scheduler = Executors.newScheduledThreadPool(2);
+
+		// create the scheduler running the tasks of all the Hue drivers
+		this.taskScheduler = Executors.newSingleThreadScheduledExecutor();
+
+		// create the executor running the bridge polls
+		this.pollExecutor = Executors.newCachedThreadPool();
+
+		// create the executor delivering bridge events to listeners, off the
+		// SDK notification thread; each bridge uses at most one thread at a
+		// time
+		this.dispatchExecutor = Executors.newCachedThreadPool();
+
 		// initialize the HUE link
 		this.initializeHueLink();
 
+		// load the known bridges
+		this.bridgeRegistry = new HueBridgeRegistry(
+				context.getDataFile(HueBridgeRegistry.FILE_NAME), this.logger);
+		this.bridgeRegistry.load();
+
+		// reconnect the known bridges right away, without waiting for a
+		// search: connections proceed in parallel, and gateways attaching
+		// later find their bridge already connected
+		for (String bridgeIp : this.bridgeRegistry.getBridgeIps())
+			this.connect(bridgeIp);
+
 		// register the service
 		this.registerNetworkService();
 	}
@@ -138,6 +286,51 @@ public class HueNetworkDriver implements HueNetwork, PHSDKListener
 		// unregister the service
 		this.unregisterNetworkService();
 
+		// stop draining command queues, reporting any command left behind
+		for (HueCommandQueue queue : this.commandQueues.values())
+		{
+			queue.stop();
+
+			// fail the pending commands, to release waiting callers
+			int discarded = queue.discard();
+			if (discarded > 0)
+				this.logger.log(LogService.LOG_WARNING, "Discarded "
+						+ discarded + " pending commands");
+		}
+		this.commandQueues.clear();
+
+		// stop polling bridges
+		for (HueHeartbeatScheduler heartbeat : this.heartbeats.values())
+			heartbeat.stop();
+		this.heartbeats.clear();
+
+		// stop dispatching bridge events
+		for (HueListenerDispatcher dispatcher : this.dispatchers.values())
+			dispatcher.stop();
+		this.dispatchers.clear();
+
+		// detach from the SDK singleton, which outlives this instance, so that
+		// a later activation (e.g., a bundle restart) receives the SDK events
+		// and connects the bridges again
+		this.sdk.getNotificationManager().unregisterSDKListener(this);
+		for (PHBridge bridge : this.connectedBridges.values())
+			this.sdk.removeBridge(bridge);
+		this.connectedBridges.clear();
+
+		// save the known bridges, if changed
+		if (this.bridgeRegistry != null)
+			this.bridgeRegistry.save();
+
+		// stop the schedulers, the poll executor and the dispatch executor
+		if (this.scheduler != null)
+			this.scheduler.shutdownNow();
+		if (this.taskScheduler != null)
+			this.taskScheduler.shutdownNow();
+		if (this.pollExecutor != null)
+			this.pollExecutor.shutdownNow();
+		if (this.dispatchExecutor != null)
+			this.dispatchExecutor.shutdown();
+
 		// log
 		this.logger.log(LogService.LOG_INFO, "Deactivated...");
 	}
@@ -176,7 +369,8 @@ public class HueNetworkDriver implements HueNetwork, PHSDKListener
 	}
 
 	/**
-	 * Performs a search for new bridges, using UPnP
+	 * Performs a search for new bridges, using UPnP, and a search for new
+	 * lights on the connected bridges
 	 */
 	public void discoverNewBridges()
 	{
@@ -186,6 +380,40 @@ public class HueNetworkDriver implements HueNetwork, PHSDKListener
 
 		// Start the UPNP Searching of local bridges.
 		sm.search(true, true, true);
+
+		// look for lamps paired with the connected bridges
+		for (String bridgeIp : this.connectedBridges.keySet())
+			this.searchNewLights(bridgeIp);
+	}
+
+	@Override
+	public boolean searchNewLights(final String bridgeIp)
+	{
+		// get the bridge, if connected
+		PHBridge bridge = this.connectedBridges.get(bridgeIp);
+		if (bridge == null)
+			return false;
+
+		try
+		{
+			// start the search on the bridge, the SDK polls the new lights
+			// only, while the search is active
+			bridge.findNewLights(new LightSearchListener(bridgeIp));
+		}
+		catch (Exception e)
+		{
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to search new lights on bridge " + bridgeIp, e);
+			return false;
+		}
+
+		// the light list changes during the search
+		this.signalActivity(bridgeIp);
+
+		this.logger.log(LogService.LOG_INFO,
+				"Searching new lights on bridge " + bridgeIp);
+
+		return true;
 	}
 
 	@Override
@@ -195,6 +423,266 @@ public class HueNetworkDriver implements HueNetwork, PHSDKListener
 		return this.connectedBridges.get(bridgeIp);
 	}
 
+	@Override
+	public void updateLightState(HueDeviceIdentifier device,
+			PHLightState lightState)
+	{
+		// fire and forget, failures are logged by the command queue
+		this.submitLightState(device, lightState);
+	}
+
+	@Override
+	public HueCommandFuture submitLightState(HueDeviceIdentifier device,
+			PHLightState lightState)
+	{
+		// enqueue the state update on the queue of the device bridge
+		HueCommandFuture command = this.getCommandQueue(device.getBridgeIp())
+				.enqueue(device, lightState);
+
+		// a command is an activity, poll the bridge faster to catch its
+		// effects
+		HueHeartbeatScheduler heartbeat = this.heartbeats.get(device
+				.getBridgeIp());
+		if (heartbeat != null)
+			heartbeat.signalActivity();
+
+		return command;
+	}
+
+	@Override
+	public HueCommandFuture submitGroupState(String bridgeIp, String groupId,
+			String[] lightIds, PHLightState lightState)
+	{
+		// enqueue the state update on the queue of the group bridge
+		HueCommandFuture command = this.getCommandQueue(bridgeIp)
+				.enqueueGroup(groupId, lightIds, lightState);
+
+		// a command is an activity, poll the bridge faster to catch its
+		// effects
+		HueHeartbeatScheduler heartbeat = this.heartbeats.get(bridgeIp);
+		if (heartbeat != null)
+			heartbeat.signalActivity();
+
+		return command;
+	}
+
+	@Override
+	public HueCommandFuture submitSceneRecall(String bridgeIp, String sceneId,
+			String[] lightIds)
+	{
+		// enqueue the recall on the queue of the scene bridge
+		HueCommandFuture command = this.getCommandQueue(bridgeIp)
+				.enqueueScene(sceneId, lightIds);
+
+		// a command is an activity, poll the bridge faster to catch its
+		// effects
+		HueHeartbeatScheduler heartbeat = this.heartbeats.get(bridgeIp);
+		if (heartbeat != null)
+			heartbeat.signalActivity();
+
+		return command;
+	}
+
+	@Override
+	public int getCommandQueueDepth(String bridgeIp)
+	{
+		// get the bridge queue, if any
+		HueCommandQueue queue = this.commandQueues.get(bridgeIp);
+
+		return (queue != null) ? queue.getDepth() : 0;
+	}
+
+	@Override
+	public long getMergedCommandCount(String bridgeIp)
+	{
+		// get the bridge queue, if any
+		HueCommandQueue queue = this.commandQueues.get(bridgeIp);
+
+		return (queue != null) ? queue.getMergedCommands() : 0;
+	}
+
+	@Override
+	public long getFannedInCommandCount(String bridgeIp)
+	{
+		// get the bridge queue, if any
+		HueCommandQueue queue = this.commandQueues.get(bridgeIp);
+
+		return (queue != null) ? queue.getPlanner().getFannedInCommands() : 0;
+	}
+
+	@Override
+	public int getListenerQueueDepth(String bridgeIp)
+	{
+		// get the bridge dispatcher, if any
+		HueListenerDispatcher dispatcher = this.dispatchers.get(bridgeIp);
+
+		return (dispatcher != null) ? dispatcher.getDepth() : 0;
+	}
+
+	@Override
+	public long getListenerDispatchLag(String bridgeIp)
+	{
+		// get the bridge dispatcher, if any
+		HueListenerDispatcher dispatcher = this.dispatchers.get(bridgeIp);
+
+		return (dispatcher != null) ? dispatcher
+				.getDispatchLag(TimeUnit.MILLISECONDS) : 0;
+	}
+
+	@Override
+	public ScheduledFuture<?> schedule(Runnable task, long delay,
+			TimeUnit unit)
+	{
+		// run the task on the driver task scheduler
+		return this.taskScheduler.schedule(task, delay, unit);
+	}
+
+	/**
+	 * Makes the heartbeat of the bridge having the given IP address poll
+	 * faster, to follow an expected change
+	 * 
+	 * @param bridgeIp
+	 *            The bridge IP address.
+	 */
+	private void signalActivity(String bridgeIp)
+	{
+		HueHeartbeatScheduler heartbeat = this.heartbeats.get(bridgeIp);
+		if (heartbeat != null)
+			heartbeat.signalActivity();
+	}
+
+	/**
+	 * Provides the connection listeners registered for the bridge having the
+	 * given IP address
+	 * 
+	 * @param bridgeIp
+	 *            The IP address of the bridge.
+	 * @return the registered listeners, or null if none
+	 */
+	Set<HueConnectionListener> getConnectionListeners(String bridgeIp)
+	{
+		return this.hueBridgeConnectionListeners.get(bridgeIp);
+	}
+
+	/**
+	 * Provides the listener dispatcher associated to the bridge having the
+	 * given IP address, creating it if not yet available, without locking:
+	 * threads racing to create the dispatcher of the same bridge all get the
+	 * one stored first.
+	 * 
+	 * @param bridgeIp
+	 *            The IP address of the bridge.
+	 * @return The corresponding dispatcher.
+	 */
+	private HueListenerDispatcher getDispatcher(String bridgeIp)
+	{
+		// get the bridge dispatcher, if any
+		HueListenerDispatcher dispatcher = this.dispatchers.get(bridgeIp);
+
+		if (dispatcher == null)
+		{
+			// create and configure the dispatcher
+			HueListenerDispatcher created = new HueListenerDispatcher(
+					bridgeIp, this, this.dispatchExecutor, this.logger);
+			created.configure(this.listenerQueueCapacity,
+					this.listenerOverflowPolicy);
+
+			// store the dispatcher, unless another thread did meanwhile
+			dispatcher = this.dispatchers.putIfAbsent(bridgeIp, created);
+			if (dispatcher == null)
+				dispatcher = created;
+		}
+
+		return dispatcher;
+	}
+
+	/**
+	 * Provides the command queue associated to the bridge having the given IP
+	 * address, creating and starting it if not yet available, without
+	 * locking: threads racing to create the queue of the same bridge all get
+	 * the one stored first, which is the only one started.
+	 * 
+	 * @param bridgeIp
+	 *            The IP address of the bridge.
+	 * @return The corresponding command queue.
+	 */
+	private HueCommandQueue getCommandQueue(String bridgeIp)
+	{
+		// get the bridge queue, if any
+		HueCommandQueue queue = this.commandQueues.get(bridgeIp);
+
+		if (queue == null)
+		{
+			// create the queue
+			HueCommandQueue created = new HueCommandQueue(bridgeIp, this,
+					this.logger);
+
+			// configure the group fan-in
+			created.getPlanner().configure(this.fanInMinLights,
+					this.fanInWindowMillis);
+
+			// store the queue, unless another thread did meanwhile
+			queue = this.commandQueues.putIfAbsent(bridgeIp, created);
+			if (queue == null)
+			{
+				// start draining it
+				queue = created;
+				queue.start(this.scheduler, this.getCommandPeriodMillis());
+			}
+		}
+
+		return queue;
+	}
+
+	/**
+	 * Starts the adaptive heartbeat of the given bridge, replacing the
+	 * heartbeat running for the same bridge ip address, if any. Only the
+	 * heartbeat of the given bridge is locked, while restarted.
+	 * 
+	 * @param bridgeIp
+	 *            The IP address of the bridge.
+	 * @param bridge
+	 *            The connected bridge to poll.
+	 */
+	private void startHeartbeat(String bridgeIp, PHBridge bridge)
+	{
+		// get the bridge heartbeat, if any
+		HueHeartbeatScheduler heartbeat = this.heartbeats.get(bridgeIp);
+
+		if (heartbeat == null)
+		{
+			// create the heartbeat, unless another thread did meanwhile
+			HueHeartbeatScheduler created = new HueHeartbeatScheduler(
+					bridgeIp, this.scheduler, this.pollExecutor, this.logger);
+			heartbeat = this.heartbeats.putIfAbsent(bridgeIp, created);
+			if (heartbeat == null)
+				heartbeat = created;
+		}
+
+		synchronized (heartbeat)
+		{
+			// stop the heartbeat of the previous bridge object, if any
+			heartbeat.stop();
+
+			// configure and start polling
+			heartbeat.configure(this.heartbeatFastIntervalMillis,
+					this.heartbeatIdleIntervalMillis,
+					this.heartbeatFastWindowMillis, this.heartbeatDecayFactor);
+			heartbeat.start(bridge);
+		}
+	}
+
+	/**
+	 * Computes the time between two subsequent commands sent to the same
+	 * bridge, depending on the configured command rate.
+	 * 
+	 * @return the command period in milliseconds
+	 */
+	private long getCommandPeriodMillis()
+	{
+		return Math.max(1, 1000 / Math.max(1, this.maxCommandsPerSecond));
+	}
+
 	@Override
 	public void addHueBridgeDiscoveryListener(
 			HueBridgeDiscoveryListener listener)
@@ -226,10 +714,12 @@ public class HueNetworkDriver implements HueNetwork, PHSDKListener
 				Set<HueConnectionListener> listeners = this.hueBridgeConnectionListeners
 						.get(bridgeIp);
 
-				// if null create a new set for holding bridge listeners
+				// if null create a new set for holding bridge listeners, events
+				// are delivered on dispatcher threads while listeners may be
+				// added
 				if (listeners == null)
 				{
-					listeners = new HashSet<HueConnectionListener>();
+					listeners = new CopyOnWriteArraySet<HueConnectionListener>();
 					this.hueBridgeConnectionListeners.put(bridgeIp, listeners);
 				}
 
@@ -237,17 +727,88 @@ public class HueNetworkDriver implements HueNetwork, PHSDKListener
 				listeners.add(listener);
 			}
 
-			// create a temporary bridge representation object
-			PHAccessPoint accessPoint = new PHAccessPoint();
-			accessPoint.setIpAddress(bridgeIp);
-			accessPoint.setUsername(this.hueUsername);
+			// get the bridge, if already connected
+			PHBridge bridge = this.connectedBridges.get(bridgeIp);
 
-			// try connecting to the bridge, on success, the onBridgeConnected
-			// method will be called
-			this.sdk.connect(accessPoint);
+			if (bridge != null)
+			{
+				// deliver the connection to the new listener only, on the
+				// dispatcher thread, the other listeners are already
+				// connected
+				if (listener != null)
+					this.getDispatcher(bridgeIp).bridgeConnected(bridge,
+							listener);
+			}
+			else
+				// connect the bridge
+				this.connect(bridgeIp);
 		}
 	}
 
+	@Override
+	public String[] getKnownLights(String bridgeIp)
+	{
+		return (this.bridgeRegistry != null) ? this.bridgeRegistry
+				.getKnownLights(bridgeIp) : null;
+	}
+
+	@Override
+	public void addKnownLight(String bridgeIp, String localId)
+	{
+		if ((this.bridgeRegistry != null)
+				&& (this.bridgeRegistry.addKnownLight(bridgeIp, localId)))
+			this.scheduleRegistrySave();
+	}
+
+	@Override
+	public void removeKnownLight(String bridgeIp, String localId)
+	{
+		if ((this.bridgeRegistry != null)
+				&& (this.bridgeRegistry.removeKnownLight(bridgeIp, localId)))
+			this.scheduleRegistrySave();
+	}
+
+	/**
+	 * Connects to the bridge having the given IP address, using the username
+	 * stored for the bridge, if known
+	 * 
+	 * @param bridgeIp
+	 *            The bridge IP address.
+	 */
+	private void connect(String bridgeIp)
+	{
+		// get the username whitelisted on the bridge, if known
+		String username = this.bridgeRegistry.getUsername(bridgeIp);
+		if ((username == null) || (username.isEmpty()))
+			username = this.hueUsername;
+
+		// create a temporary bridge representation object
+		PHAccessPoint accessPoint = new PHAccessPoint();
+		accessPoint.setIpAddress(bridgeIp);
+		accessPoint.setUsername(username);
+
+		// try connecting to the bridge, on success, the onBridgeConnected
+		// method will be called
+		this.sdk.connect(accessPoint);
+	}
+
+	/**
+	 * Saves the known bridges after a short delay, collecting bursts of
+	 * changes, e.g., the attachment of all the lights of a bridge
+	 */
+	private void scheduleRegistrySave()
+	{
+		this.schedule(new Runnable()
+		{
+
+			@Override
+			public void run()
+			{
+				bridgeRegistry.save();
+			}
+		}, REGISTRY_SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
 	@Override
 	public void startPushLinkAuthentication(String bridgeIp)
 	{
@@ -283,16 +844,8 @@ public class HueNetworkDriver implements HueNetwork, PHSDKListener
 		this.logger.log(LogService.LOG_DEBUG, "Authentication required for: "
 				+ accessPoint);
 
-		// get the registered listeners
-		Set<HueConnectionListener> listeners = this.hueBridgeConnectionListeners
-				.get(accessPoint.getIpAddress());
-
-		// notify the registered listeners
-		for (HueConnectionListener listener : listeners)
-		{
-			// deliver the authentication-required event to registered listeners
-			listener.onAuthenticationRequired();
-		}
+		// deliver the authentication-required event to registered listeners
+		this.getDispatcher(accessPoint.getIpAddress()).authenticationRequired();
 
 	}
 
@@ -304,28 +857,27 @@ public class HueNetworkDriver implements HueNetwork, PHSDKListener
 		// switch to the just connected con bridge
 		this.sdk.setSelectedBridge(bridge);
 
-		// start the bridge heartbeat
-		this.sdk.enableHeartbeat(bridge, PHHueSDK.HB_INTERVAL);
-
 		// get the bridge ip address
 		String ipAddress = bridge.getResourceCache().getBridgeConfiguration()
 				.getIpAddress();
 
+		// start the bridge heartbeat, the polling rate adapts to the bridge
+		// activity
+		this.startHeartbeat(ipAddress, bridge);
+
 		// store the connected bridge (both internally and externally)
 		this.sdk.addBridge(bridge);
 		this.connectedBridges.put(ipAddress, bridge);
 
-		// get the set of listeners registered for the just connected bridge
-		Set<HueConnectionListener> listenersToNotify = this.hueBridgeConnectionListeners
-				.get(ipAddress);
+		// remember the bridge, to reconnect it at the next startup
+		if (this.bridgeRegistry.bridgeConnected(ipAddress, bridge
+				.getResourceCache().getBridgeConfiguration().getBridgeID(),
+				bridge.getResourceCache().getBridgeConfiguration()
+						.getUsername()))
+			this.scheduleRegistrySave();
 
-		// check not null
-		if (listenersToNotify != null)
-		{
-			// dispatch the bridge connection event
-			for (HueConnectionListener listener : listenersToNotify)
-				listener.onBridgeConnected(bridge);
-		}
+		// dispatch the bridge connection event to the registered listeners
+		this.getDispatcher(ipAddress).bridgeConnected(bridge);
 	}
 
 	@Override
@@ -337,17 +889,15 @@ public class HueNetworkDriver implements HueNetwork, PHSDKListener
 		String ipAddress = bridge.getResourceCache().getBridgeConfiguration()
 				.getIpAddress();
 
-		// get the set of listeners registered for the just connected bridge
-		Set<HueConnectionListener> listenersToNotify = this.hueBridgeConnectionListeners
-				.get(ipAddress);
+		// the SDK notifies cache updates only when something changed on the
+		// bridge: poll faster to follow the change
+		HueHeartbeatScheduler heartbeat = this.heartbeats.get(ipAddress);
+		if (heartbeat != null)
+			heartbeat.signalActivity();
 
-		// check not null
-		if (listenersToNotify != null)
-		{
-			// dispatch the bridge connection event
-			for (HueConnectionListener listener : listenersToNotify)
-				listener.onCacheUpdated(flag, bridge);
-		}
+		// dispatch the cache-updated event to the registered listeners, stale
+		// events may be collapsed if listeners lag behind
+		this.getDispatcher(ipAddress).cacheUpdated(flag, bridge);
 	}
 
 	@Override
@@ -361,16 +911,7 @@ public class HueNetworkDriver implements HueNetwork, PHSDKListener
 		this.connectedBridges.remove(ipAddress);
 
 		// notify the bridge connection listeners
-		Set<HueConnectionListener> listenersToNotify = this.hueBridgeConnectionListeners
-				.get(ipAddress);
-
-		// check not null
-		if (listenersToNotify != null)
-		{
-			// call disconnection handler for each listener
-			for (HueConnectionListener listener : listenersToNotify)
-				listener.onBridgeDisconnected();
-		}
+		this.getDispatcher(ipAddress).bridgeDisconnected();
 	}
 
 	@Override
@@ -384,17 +925,8 @@ public class HueNetworkDriver implements HueNetwork, PHSDKListener
 		this.sdk.addBridge(bridge);
 		this.connectedBridges.put(ipAddress, bridge);
 
-		// get the set of listeners registered for the just connected bridge
-		Set<HueConnectionListener> listenersToNotify = this.hueBridgeConnectionListeners
-				.get(ipAddress);
-
-		if (listenersToNotify != null)
-		{
-			// dispatch the bridge connection event
-			for (HueConnectionListener listener : listenersToNotify)
-				listener.onBridgeConnected(bridge);
-		}
-
+		// dispatch the bridge connection event to the registered listeners
+		this.getDispatcher(ipAddress).bridgeConnected(bridge);
 	}
 
 	@Override
@@ -404,4 +936,325 @@ public class HueNetworkDriver implements HueNetwork, PHSDKListener
 		this.logger.log(LogService.LOG_ERROR, "Error:" + arg1 + ":" + arg0);
 	}
 
+	@Override
+	public void updated(Dictionary<String, ?> properties)
+			throws ConfigurationException
+	{
+		if (properties != null)
+		{
+			// parse the whole configuration first, so that an invalid
+			// property leaves the current configuration untouched
+			int maxCommandsPerSecond = HueNetworkDriver.parseInt(properties,
+					HueNetworkDriver.MAX_COMMANDS_PER_SECOND,
+					this.maxCommandsPerSecond, 1);
+			long heartbeatFastIntervalMillis = HueNetworkDriver.parseLong(
+					properties, HueNetworkDriver.HEARTBEAT_FAST_INTERVAL,
+					this.heartbeatFastIntervalMillis, 1);
+			long heartbeatIdleIntervalMillis = HueNetworkDriver.parseLong(
+					properties, HueNetworkDriver.HEARTBEAT_IDLE_INTERVAL,
+					this.heartbeatIdleIntervalMillis, 1);
+			long heartbeatFastWindowMillis = HueNetworkDriver.parseLong(
+					properties, HueNetworkDriver.HEARTBEAT_FAST_WINDOW,
+					this.heartbeatFastWindowMillis, 0);
+			double heartbeatDecayFactor = HueNetworkDriver.parseDouble(
+					properties, HueNetworkDriver.HEARTBEAT_DECAY,
+					this.heartbeatDecayFactor, 1.0);
+			int listenerQueueCapacity = HueNetworkDriver.parseInt(properties,
+					HueNetworkDriver.LISTENER_QUEUE_CAPACITY,
+					this.listenerQueueCapacity, 1);
+			int fanInMinLights = HueNetworkDriver.parseInt(properties,
+					HueNetworkDriver.FAN_IN_MIN_LIGHTS, this.fanInMinLights, 0);
+			long fanInWindowMillis = HueNetworkDriver.parseLong(properties,
+					HueNetworkDriver.FAN_IN_WINDOW, this.fanInWindowMillis, 0);
+
+			HueListenerDispatcher.OverflowPolicy listenerOverflowPolicy = this.listenerOverflowPolicy;
+			String overflowPolicyAsString = HueNetworkDriver.getProperty(
+					properties, HueNetworkDriver.LISTENER_OVERFLOW_POLICY);
+			if (overflowPolicyAsString != null)
+			{
+				try
+				{
+					listenerOverflowPolicy = HueListenerDispatcher.OverflowPolicy
+							.valueOf(overflowPolicyAsString.toUpperCase());
+				}
+				catch (IllegalArgumentException e)
+				{
+					throw new ConfigurationException(
+							HueNetworkDriver.LISTENER_OVERFLOW_POLICY,
+							"Unknown overflow policy: "
+									+ overflowPolicyAsString, e);
+				}
+			}
+
+			// store the configuration
+			boolean rateChanged = (maxCommandsPerSecond != this.maxCommandsPerSecond);
+			this.maxCommandsPerSecond = maxCommandsPerSecond;
+			this.heartbeatFastIntervalMillis = heartbeatFastIntervalMillis;
+			this.heartbeatIdleIntervalMillis = heartbeatIdleIntervalMillis;
+			this.heartbeatFastWindowMillis = heartbeatFastWindowMillis;
+			this.heartbeatDecayFactor = heartbeatDecayFactor;
+			this.listenerQueueCapacity = listenerQueueCapacity;
+			this.listenerOverflowPolicy = listenerOverflowPolicy;
+			this.fanInMinLights = fanInMinLights;
+			this.fanInWindowMillis = fanInWindowMillis;
+
+			// re-schedule the running queues at the new rate, if changed, and
+			// apply the fan-in configuration to them
+			synchronized (this)
+			{
+				for (HueCommandQueue queue : this.commandQueues.values())
+				{
+					if (rateChanged)
+						queue.start(this.scheduler,
+								this.getCommandPeriodMillis());
+					queue.getPlanner().configure(this.fanInMinLights,
+							this.fanInWindowMillis);
+				}
+			}
+
+			// apply the heartbeat configuration to the running heartbeats
+			for (HueHeartbeatScheduler heartbeat : this.heartbeats.values())
+				heartbeat.configure(this.heartbeatFastIntervalMillis,
+						this.heartbeatIdleIntervalMillis,
+						this.heartbeatFastWindowMillis,
+						this.heartbeatDecayFactor);
+
+			// apply the dispatch configuration to the running dispatchers
+			for (HueListenerDispatcher dispatcher : this.dispatchers.values())
+				dispatcher.configure(this.listenerQueueCapacity,
+						this.listenerOverflowPolicy);
+
+			// debug
+			this.logger.log(LogService.LOG_DEBUG,
+					"updated:\n\tmax commands per second: "
+							+ this.maxCommandsPerSecond
+							+ "\n\theartbeat fast interval (ms): "
+							+ this.heartbeatFastIntervalMillis
+							+ "\n\theartbeat idle interval (ms): "
+							+ this.heartbeatIdleIntervalMillis
+							+ "\n\theartbeat fast window (ms): "
+							+ this.heartbeatFastWindowMillis
+							+ "\n\theartbeat decay factor: "
+							+ this.heartbeatDecayFactor
+							+ "\n\tlistener queue capacity: "
+							+ this.listenerQueueCapacity
+							+ "\n\tlistener overflow policy: "
+							+ this.listenerOverflowPolicy
+							+ "\n\tfan-in min lights: "
+							+ this.fanInMinLights
+							+ "\n\tfan-in window (ms): "
+							+ this.fanInWindowMillis);
+		}
+	}
+
+	/**
+	 * Provides the trimmed value of the given configuration property
+	 * 
+	 * @param properties
+	 *            The configuration properties.
+	 * @param key
+	 *            The property name.
+	 * @return the property value, or null if not set
+	 */
+	private static String getProperty(Dictionary<String, ?> properties,
+			String key)
+	{
+		Object value = properties.get(key);
+
+		return (value != null) ? value.toString().trim() : null;
+	}
+
+	/**
+	 * Parses the given integer configuration property
+	 * 
+	 * @param properties
+	 *            The configuration properties.
+	 * @param key
+	 *            The property name.
+	 * @param current
+	 *            The current value, returned if the property is not set.
+	 * @param min
+	 *            The minimum allowed value.
+	 * @return the property value
+	 * @throws ConfigurationException
+	 *             if the value is not an integer or is below the minimum
+	 */
+	private static int parseInt(Dictionary<String, ?> properties, String key,
+			int current, int min) throws ConfigurationException
+	{
+		String valueAsString = HueNetworkDriver.getProperty(properties, key);
+		if (valueAsString == null)
+			return current;
+
+		int value;
+		try
+		{
+			value = Integer.parseInt(valueAsString);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new ConfigurationException(key, "Not an integer: "
+					+ valueAsString, e);
+		}
+
+		if (value < min)
+			throw new ConfigurationException(key, "Must be at least " + min
+					+ ": " + valueAsString);
+
+		return value;
+	}
+
+	/**
+	 * Parses the given long integer configuration property
+	 * 
+	 * @param properties
+	 *            The configuration properties.
+	 * @param key
+	 *            The property name.
+	 * @param current
+	 *            The current value, returned if the property is not set.
+	 * @param min
+	 *            The minimum allowed value.
+	 * @return the property value
+	 * @throws ConfigurationException
+	 *             if the value is not an integer or is below the minimum
+	 */
+	private static long parseLong(Dictionary<String, ?> properties,
+			String key, long current, long min) throws ConfigurationException
+	{
+		String valueAsString = HueNetworkDriver.getProperty(properties, key);
+		if (valueAsString == null)
+			return current;
+
+		long value;
+		try
+		{
+			value = Long.parseLong(valueAsString);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new ConfigurationException(key, "Not an integer: "
+					+ valueAsString, e);
+		}
+
+		if (value < min)
+			throw new ConfigurationException(key, "Must be at least " + min
+					+ ": " + valueAsString);
+
+		return value;
+	}
+
+	/**
+	 * Parses the given decimal configuration property
+	 * 
+	 * @param properties
+	 *            The configuration properties.
+	 * @param key
+	 *            The property name.
+	 * @param current
+	 *            The current value, returned if the property is not set.
+	 * @param min
+	 *            The minimum allowed value.
+	 * @return the property value
+	 * @throws ConfigurationException
+	 *             if the value is not a number or is below the minimum
+	 */
+	private static double parseDouble(Dictionary<String, ?> properties,
+			String key, double current, double min)
+			throws ConfigurationException
+	{
+		String valueAsString = HueNetworkDriver.getProperty(properties, key);
+		if (valueAsString == null)
+			return current;
+
+		double value;
+		try
+		{
+			value = Double.parseDouble(valueAsString);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new ConfigurationException(key, "Not a number: "
+					+ valueAsString, e);
+		}
+
+		// also rejects NaN
+		if (!(value >= min))
+			throw new ConfigurationException(key, "Must be at least " + min
+					+ ": " + valueAsString);
+
+		return value;
+	}
+
+	/**
+	 * Follows a search for new lights: as soon as the bridge reports new
+	 * lights, the bridge is polled to bring them in the resource cache, where
+	 * the gateway detects them.
+	 * 
+	 * @author bonino
+	 * 
+	 */
+	private class LightSearchListener extends PHLightListener
+	{
+		// the IP address of the searching bridge
+		private String bridgeIp;
+
+		public LightSearchListener(String bridgeIp)
+		{
+			this.bridgeIp = bridgeIp;
+		}
+
+		@Override
+		public void onReceivingLights(List<PHBridgeResource> lights)
+		{
+			if ((lights != null) && (!lights.isEmpty()))
+			{
+				logger.log(LogService.LOG_INFO, "Found " + lights.size()
+						+ " new lights on bridge " + this.bridgeIp);
+
+				// fetch them
+				signalActivity(this.bridgeIp);
+			}
+		}
+
+		@Override
+		public void onSearchComplete()
+		{
+			logger.log(LogService.LOG_DEBUG, "Light search completed on bridge "
+					+ this.bridgeIp);
+
+			// fetch the final light list
+			signalActivity(this.bridgeIp);
+		}
+
+		@Override
+		public void onReceivingLightDetails(PHLight light)
+		{
+			// not used by searches
+		}
+
+		@Override
+		public void onSuccess()
+		{
+			// the search started
+		}
+
+		@Override
+		public void onError(int code, String message)
+		{
+			logger.log(LogService.LOG_WARNING,
+					"Unable to search new lights on bridge " + this.bridgeIp
+							+ ": " + message + " (" + code + ")");
+		}
+
+		@Override
+		public void onStateUpdate(Hashtable<String, String> successes,
+				List<PHHueError> errors)
+		{
+			// report the first error, if any
+			if ((errors != null) && (!errors.isEmpty()))
+				this.onError(errors.get(0).getCode(), errors.get(0)
+						.getMessage());
+		}
+	}
 }
@@ -3,17 +3,29 @@
  */
 package it.polito.elite.dog.drivers.hue.network.info;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
+ * Identifies a Hue device by the IP address of its bridge and by its local
+ * id on the bridge. Identifiers are equal if they identify the same device,
+ * and can therefore be used as keys, provided that they are not changed
+ * afterwards; {@link #intern(String, String)} provides a single, shared
+ * instance for each device.
+ * 
  * @author bonino
  *
  */
 public class HueDeviceIdentifier
 {
-	// the local identifier of the HUE device
-	private String localId;
+	// the canonical identifiers, indexed by themselves
+	private static final ConcurrentHashMap<HueDeviceIdentifier, HueDeviceIdentifier> interned = new ConcurrentHashMap<HueDeviceIdentifier, HueDeviceIdentifier>();
+
+	// the local identifier of the HUE device, immutable as identifiers are
+	// used as hash keys
+	private final String localId;
 	
 	// the bridge to which the device is attached
-	private String bridgeIp;
+	private final String bridgeIp;
 
 	/**
 	 * @param localId
@@ -27,11 +39,6 @@ public class HueDeviceIdentifier
 		//store the IP address of the bridge to which the device is connected
 		this.bridgeIp = bridgeIp;
 	}
-	
-	public HueDeviceIdentifier()
-	{
-		//intentionally left empty
-	}
 
 	/**
 	 * @return the localId
@@ -41,14 +48,6 @@ public class HueDeviceIdentifier
 		return localId;
 	}
 
-	/**
-	 * @param localId the localId to set
-	 */
-	public void setLocalId(String localId)
-	{
-		this.localId = localId;
-	}
-
 	/**
 	 * @return the bridgeIp
 	 */
@@ -58,12 +57,51 @@ public class HueDeviceIdentifier
 	}
 
 	/**
-	 * @param bridgeIp the bridgeIp to set
+	 * Provides the canonical identifier of the device having the given local
+	 * id, on the bridge having the given IP address. Canonical identifiers
+	 * are shared.
+	 * 
+	 * @param localId
+	 *            The device local id.
+	 * @param bridgeIp
+	 *            The bridge IP address.
+	 * @return the canonical identifier
 	 */
-	public void setBridgeIp(String bridgeIp)
+	public static HueDeviceIdentifier intern(String localId, String bridgeIp)
 	{
-		this.bridgeIp = bridgeIp;
+		HueDeviceIdentifier identifier = new HueDeviceIdentifier(localId,
+				bridgeIp);
+		HueDeviceIdentifier canonical = interned.putIfAbsent(identifier,
+				identifier);
+
+		return (canonical != null) ? canonical : identifier;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return (31 * ((this.bridgeIp != null) ? this.bridgeIp.hashCode() : 0))
+				+ ((this.localId != null) ? this.localId.hashCode() : 0);
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj)
+			return true;
+		if (!(obj instanceof HueDeviceIdentifier))
+			return false;
+
+		HueDeviceIdentifier other = (HueDeviceIdentifier) obj;
+		return ((this.bridgeIp == null) ? (other.bridgeIp == null)
+				: this.bridgeIp.equals(other.bridgeIp))
+				&& ((this.localId == null) ? (other.localId == null)
+						: this.localId.equals(other.localId));
+	}
+
+	@Override
+	public String toString()
+	{
+		return this.bridgeIp + "/" + this.localId;
 	}
-	
-	
 }
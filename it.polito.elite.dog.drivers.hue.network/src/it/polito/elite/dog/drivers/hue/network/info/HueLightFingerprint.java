@@ -0,0 +1,237 @@
+/*
+ * Dog 2.0 - Hue Network Driver
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.network.info;
+
+import com.philips.lighting.model.PHLightState;
+
+/**
+ * Packs the Dog-relevant attributes of a Hue light (on, brightness, hue,
+ * saturation, color temperature, xy and reachability) into a single long, so
+ * that state changes can be detected with one comparison and described by a
+ * bitmask of changed attributes.
+ * 
+ * <pre>
+ * bit  0      on
+ * bit  1      reachable
+ * bits 2-9    brightness
+ * bits 10-17  saturation
+ * bits 18-33  hue
+ * bits 34-42  color temperature
+ * bits 43-52  x (quantized on 10 bits)
+ * bits 53-62  y (quantized on 10 bits)
+ * </pre>
+ * 
+ * @author bonino
+ * 
+ */
+public final class HueLightFingerprint
+{
+	/**
+	 * The on/off attribute
+	 */
+	public static final int ON = 1;
+
+	/**
+	 * The brightness attribute
+	 */
+	public static final int BRIGHTNESS = 1 << 1;
+
+	/**
+	 * The hue attribute
+	 */
+	public static final int HUE = 1 << 2;
+
+	/**
+	 * The saturation attribute
+	 */
+	public static final int SATURATION = 1 << 3;
+
+	/**
+	 * The color temperature attribute
+	 */
+	public static final int CT = 1 << 4;
+
+	/**
+	 * The xy color attribute
+	 */
+	public static final int XY = 1 << 5;
+
+	/**
+	 * The reachability attribute
+	 */
+	public static final int REACHABLE = 1 << 6;
+
+	/**
+	 * All the attributes
+	 */
+	public static final int ALL = ON | BRIGHTNESS | HUE | SATURATION | CT | XY
+			| REACHABLE;
+
+	// the field offsets
+	private static final int ON_SHIFT = 0;
+	private static final int REACHABLE_SHIFT = 1;
+	private static final int BRIGHTNESS_SHIFT = 2;
+	private static final int SATURATION_SHIFT = 10;
+	private static final int HUE_SHIFT = 18;
+	private static final int CT_SHIFT = 34;
+	private static final int X_SHIFT = 43;
+	private static final int Y_SHIFT = 53;
+
+	// the field masks (once shifted)
+	private static final long BIT_MASK = 0x1L;
+	private static final long BYTE_MASK = 0xFFL;
+	private static final long HUE_MASK = 0xFFFFL;
+	private static final long CT_MASK = 0x1FFL;
+	private static final long XY_MASK = 0x3FFL;
+
+	private HueLightFingerprint()
+	{
+		// static utility class
+	}
+
+	/**
+	 * Computes the fingerprint of the given light state
+	 * 
+	 * @param lightState
+	 *            The light state.
+	 * @param reachable
+	 *            The light reachability.
+	 * @return the fingerprint
+	 */
+	public static long of(PHLightState lightState, boolean reachable)
+	{
+		long fingerprint = 0;
+
+		// on/off and reachability
+		if (Boolean.TRUE.equals(lightState.isOn()))
+			fingerprint |= BIT_MASK << ON_SHIFT;
+		if (reachable)
+			fingerprint |= BIT_MASK << REACHABLE_SHIFT;
+
+		// integer attributes, unset values are packed as 0
+		fingerprint |= HueLightFingerprint.pack(lightState.getBrightness(),
+				BYTE_MASK) << BRIGHTNESS_SHIFT;
+		fingerprint |= HueLightFingerprint.pack(lightState.getSaturation(),
+				BYTE_MASK) << SATURATION_SHIFT;
+		fingerprint |= HueLightFingerprint.pack(lightState.getHue(), HUE_MASK) << HUE_SHIFT;
+		fingerprint |= HueLightFingerprint.pack(lightState.getCt(), CT_MASK) << CT_SHIFT;
+
+		// xy coordinates, in the [0,1] range
+		fingerprint |= HueLightFingerprint.pack(
+				Math.round(lightState.getX() * XY_MASK), XY_MASK) << X_SHIFT;
+		fingerprint |= HueLightFingerprint.pack(
+				Math.round(lightState.getY() * XY_MASK), XY_MASK) << Y_SHIFT;
+
+		return fingerprint;
+	}
+
+	/**
+	 * Compares two fingerprints and provides the bitmask of the attributes
+	 * that differ between them
+	 * 
+	 * @param previous
+	 *            The previous fingerprint.
+	 * @param current
+	 *            The current fingerprint.
+	 * @return the bitmask of changed attributes, 0 if no attribute changed.
+	 */
+	public static int changes(long previous, long current)
+	{
+		int changes = 0;
+
+		// the differing bits
+		long diff = previous ^ current;
+
+		if (diff != 0)
+		{
+			if (((diff >>> ON_SHIFT) & BIT_MASK) != 0)
+				changes |= ON;
+			if (((diff >>> REACHABLE_SHIFT) & BIT_MASK) != 0)
+				changes |= REACHABLE;
+			if (((diff >>> BRIGHTNESS_SHIFT) & BYTE_MASK) != 0)
+				changes |= BRIGHTNESS;
+			if (((diff >>> SATURATION_SHIFT) & BYTE_MASK) != 0)
+				changes |= SATURATION;
+			if (((diff >>> HUE_SHIFT) & HUE_MASK) != 0)
+				changes |= HUE;
+			if (((diff >>> CT_SHIFT) & CT_MASK) != 0)
+				changes |= CT;
+			if ((((diff >>> X_SHIFT) & XY_MASK) != 0)
+					|| (((diff >>> Y_SHIFT) & XY_MASK) != 0))
+				changes |= XY;
+		}
+
+		return changes;
+	}
+
+	/**
+	 * Rebuilds the light state described by the given fingerprint, e.g., to
+	 * restore a state stored as fingerprint. Unset attributes are restored as
+	 * 0, xy coordinates with the fingerprint precision.
+	 * 
+	 * @param fingerprint
+	 *            The fingerprint.
+	 * @return the light state
+	 */
+	public static PHLightState toLightState(long fingerprint)
+	{
+		PHLightState lightState = new PHLightState();
+
+		lightState.setOn(((fingerprint >>> ON_SHIFT) & BIT_MASK) != 0);
+		lightState
+				.setBrightness((int) ((fingerprint >>> BRIGHTNESS_SHIFT) & BYTE_MASK));
+		lightState
+				.setSaturation((int) ((fingerprint >>> SATURATION_SHIFT) & BYTE_MASK));
+		lightState.setHue((int) ((fingerprint >>> HUE_SHIFT) & HUE_MASK));
+		lightState.setCt((int) ((fingerprint >>> CT_SHIFT) & CT_MASK));
+		lightState.setX(((fingerprint >>> X_SHIFT) & XY_MASK)
+				/ (float) XY_MASK);
+		lightState.setY(((fingerprint >>> Y_SHIFT) & XY_MASK)
+				/ (float) XY_MASK);
+
+		return lightState;
+	}
+
+	/**
+	 * Provides the reachability described by the given fingerprint
+	 * 
+	 * @param fingerprint
+	 *            The fingerprint.
+	 * @return true if the light was reachable
+	 */
+	public static boolean isReachable(long fingerprint)
+	{
+		return ((fingerprint >>> REACHABLE_SHIFT) & BIT_MASK) != 0;
+	}
+
+	/**
+	 * Clamps the given value in the range allowed by the given mask, unset
+	 * (negative) values are mapped to 0.
+	 * 
+	 * @param value
+	 *            The value to pack.
+	 * @param mask
+	 *            The field mask.
+	 * @return the packed value
+	 */
+	private static long pack(long value, long mask)
+	{
+		return (value < 0) ? 0 : Math.min(value, mask);
+	}
+}
@@ -0,0 +1,39 @@
+/*
+ * Dog 2.0 - Hue Network Driver
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.network.interfaces;
+
+import it.polito.elite.dog.drivers.hue.network.HueCommandFuture;
+
+/**
+ * @author bonino
+ * 
+ */
+public interface HueCommandListener
+{
+	/**
+	 * Called when a command submitted to the network driver completes, i.e.,
+	 * when the bridge acknowledges or rejects it, or when the command is
+	 * cancelled or discarded. Called on the thread delivering the bridge
+	 * response, therefore implementations should not block.
+	 * 
+	 * @param command
+	 *            The {@link HueCommandFuture} of the completed command.
+	 */
+	public void onCommandCompleted(HueCommandFuture command);
+}
@@ -18,7 +18,14 @@
  */
 package it.polito.elite.dog.drivers.hue.network.interfaces;
 
+import it.polito.elite.dog.drivers.hue.network.HueCommandFuture;
+import it.polito.elite.dog.drivers.hue.network.info.HueDeviceIdentifier;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
 import com.philips.lighting.model.PHBridge;
+import com.philips.lighting.model.PHLightState;
 
 /**
  * @author bonino
@@ -65,12 +72,191 @@ public interface HueNetwork
 	public void connectToBridge(String bridgeIp, HueConnectionListener listener);
 	
 	/**
-	 * Starts the bridge discovery process using UPnP, Portal, and search by Ip
+	 * Starts the bridge discovery process using UPnP, Portal, and search by
+	 * Ip, and a search for new lights on the connected bridges
 	 */
 	public void discoverNewBridges();
+
+	/**
+	 * Starts a search for new lights on the bridge having the given IP
+	 * address, e.g., after pairing new lamps. Lights found by the search show
+	 * up in the bridge resource cache shortly after.
+	 * 
+	 * @param bridgeIp
+	 *            The IP address of the bridge.
+	 * @return true if the search started, false if the bridge is not
+	 *         connected or rejected the request.
+	 */
+	public boolean searchNewLights(String bridgeIp);
 	
 	/**
 	 * Starts the push-link authentication process
 	 */
 	public void startPushLinkAuthentication(String bridgeIp);
+
+	/**
+	 * Provides the local ids of the lights attached to Dog, in this or in a
+	 * previous run, for the bridge having the given IP address.
+	 * 
+	 * @param bridgeIp
+	 *            The IP address of the bridge.
+	 * @return the light ids, or null if the bridge has never been connected.
+	 */
+	public String[] getKnownLights(String bridgeIp);
+
+	/**
+	 * Records a light attached to Dog, so that it needs no discovery at the
+	 * next startup.
+	 * 
+	 * @param bridgeIp
+	 *            The IP address of the bridge holding the light.
+	 * @param localId
+	 *            The light local id.
+	 */
+	public void addKnownLight(String bridgeIp, String localId);
+
+	/**
+	 * Forgets a light no longer attached to Dog.
+	 * 
+	 * @param bridgeIp
+	 *            The IP address of the bridge holding the light.
+	 * @param localId
+	 *            The light local id.
+	 */
+	public void removeKnownLight(String bridgeIp, String localId);
+
+	/**
+	 * Queues the given state update for the given device. Updates addressed to
+	 * the same device and not yet sent to the bridge are merged together, the
+	 * latest value of each attribute winning, and each bridge is fed at the
+	 * configured command rate.
+	 * 
+	 * @param device
+	 *            The device to update.
+	 * @param lightState
+	 *            The new (partial) light state.
+	 */
+	public void updateLightState(HueDeviceIdentifier device,
+			PHLightState lightState);
+
+	/**
+	 * Queues the given state update for the given device, as
+	 * {@link #updateLightState(HueDeviceIdentifier, PHLightState)}, without
+	 * blocking the caller. The returned future completes when the bridge
+	 * acknowledges or rejects the command that carried the update; updates of
+	 * the same device reach the bridge in submission order.
+	 * 
+	 * @param device
+	 *            The device to update.
+	 * @param lightState
+	 *            The new (partial) light state.
+	 * @return the {@link HueCommandFuture} tracking the command.
+	 */
+	public HueCommandFuture submitLightState(HueDeviceIdentifier device,
+			PHLightState lightState);
+
+	/**
+	 * Queues the given state update for all the lights of the given bridge
+	 * group, which is sent to the bridge as a single group action. The group
+	 * action is ordered with respect to the updates addressed to the single
+	 * member lights, and group actions are sent at most once per second, as
+	 * required by the bridge.
+	 * 
+	 * @param bridgeIp
+	 *            The IP address of the bridge holding the group.
+	 * @param groupId
+	 *            The bridge identifier of the group.
+	 * @param lightIds
+	 *            The local ids of the group lights.
+	 * @param lightState
+	 *            The new (partial) light state.
+	 * @return the {@link HueCommandFuture} tracking the command.
+	 */
+	public HueCommandFuture submitGroupState(String bridgeIp, String groupId,
+			String[] lightIds, PHLightState lightState);
+
+	/**
+	 * Queues the recall of the given scene, stored on the bridge, which is
+	 * sent as a single request. The recall is ordered with respect to the
+	 * updates addressed to the scene lights and shares the group command
+	 * budget.
+	 * 
+	 * @param bridgeIp
+	 *            The IP address of the bridge holding the scene.
+	 * @param sceneId
+	 *            The bridge identifier of the scene.
+	 * @param lightIds
+	 *            The local ids of the scene lights.
+	 * @return the {@link HueCommandFuture} tracking the command.
+	 */
+	public HueCommandFuture submitSceneRecall(String bridgeIp, String sceneId,
+			String[] lightIds);
+
+	/**
+	 * Provides the number of commands waiting to be sent to the bridge having
+	 * the given IP address.
+	 * 
+	 * @param bridgeIp
+	 *            The IP address of the bridge.
+	 * @return the command queue depth.
+	 */
+	public int getCommandQueueDepth(String bridgeIp);
+
+	/**
+	 * Provides the number of commands merged into already pending ones for the
+	 * bridge having the given IP address.
+	 * 
+	 * @param bridgeIp
+	 *            The IP address of the bridge.
+	 * @return the number of merged commands.
+	 */
+	public long getMergedCommandCount(String bridgeIp);
+
+	/**
+	 * Provides the number of light commands rewritten into group actions for
+	 * the bridge having the given IP address.
+	 * 
+	 * @param bridgeIp
+	 *            The IP address of the bridge.
+	 * @return the number of fanned-in commands.
+	 */
+	public long getFannedInCommandCount(String bridgeIp);
+
+	/**
+	 * Provides the number of events of the bridge having the given IP address
+	 * waiting to be dispatched to the registered connection listeners.
+	 * 
+	 * @param bridgeIp
+	 *            The IP address of the bridge.
+	 * @return the listener queue depth.
+	 */
+	public int getListenerQueueDepth(String bridgeIp);
+
+	/**
+	 * Provides the time the oldest pending event of the bridge having the
+	 * given IP address has been waiting for dispatch or, if none is pending,
+	 * the time the last dispatched event waited.
+	 * 
+	 * @param bridgeIp
+	 *            The IP address of the bridge.
+	 * @return the dispatch lag in milliseconds.
+	 */
+	public long getListenerDispatchLag(String bridgeIp);
+
+	/**
+	 * Schedules the given one-shot task on the scheduler shared by all the Hue
+	 * drivers, whose single thread does not depend on the number of bridges,
+	 * nor on their latency, as bridge commands and polls run elsewhere. Tasks
+	 * shall be short.
+	 * 
+	 * @param task
+	 *            The task to run.
+	 * @param delay
+	 *            The time after which the task shall run.
+	 * @param unit
+	 *            The unit of the delay.
+	 * @return the {@link ScheduledFuture} handle for cancelling the task.
+	 */
+	public ScheduledFuture<?> schedule(Runnable task, long delay,
+			TimeUnit unit);
 }
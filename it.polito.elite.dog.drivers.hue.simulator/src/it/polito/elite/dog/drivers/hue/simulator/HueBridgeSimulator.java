@@ -0,0 +1,1179 @@
+/*
+ * Dog 2.0 - Hue Bridge Simulator
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.simulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Emulates a Philips Hue bridge on the loopback interface, speaking the v1
+ * CLIP REST API used by the Hue SDK: full state, config and whitelist, lights
+ * (state, rename, search), groups (create, update, action, delete) and
+ * scenes, plus the push-link user creation. Response latency, jitter, error
+ * rate and the bridge command rate limits (about 10 light commands and 1
+ * group command per second) are configurable, so that the network driver can
+ * be exercised under load with no physical bridge and no network.
+ * 
+ * <p>
+ * The simulator address, as returned by {@link #getBridgeIp()}, can be used
+ * wherever a bridge IP is expected, and it is also reported as the bridge
+ * ipaddress in the configuration, as the network driver identifies bridges by
+ * that address. The "newdeveloper" user is whitelisted by default.
+ * </p>
+ * 
+ * @author bonino
+ * 
+ */
+public class HueBridgeSimulator implements HttpHandler
+{
+	/**
+	 * The default light command rate limit, in commands per second
+	 */
+	public static final int DEFAULT_LIGHT_COMMANDS_PER_SECOND = 10;
+
+	/**
+	 * The default group command rate limit, in commands per second
+	 */
+	public static final int DEFAULT_GROUP_COMMANDS_PER_SECOND = 1;
+
+	/**
+	 * The user whitelisted by default
+	 */
+	public static final String DEFAULT_USER = "newdeveloper";
+
+	// the software version, selecting the 1.1 CLIP parser in the SDK
+	private static final String SOFTWARE_VERSION = "01012917";
+
+	// the time during which the link button stays pressed
+	private static final long LINK_BUTTON_WINDOW_MILLIS = 30000;
+
+	// the number of threads serving requests
+	private static final int SERVER_THREADS = 8;
+
+	// CLIP error types
+	private static final int UNAUTHORIZED_USER = 1;
+	private static final int INVALID_JSON = 2;
+	private static final int RESOURCE_NOT_AVAILABLE = 3;
+	private static final int METHOD_NOT_AVAILABLE = 4;
+	private static final int PARAMETER_NOT_AVAILABLE = 6;
+	private static final int LINK_BUTTON_NOT_PRESSED = 101;
+	private static final int INTERNAL_ERROR = 901;
+
+	// the HTTP server
+	private HttpServer server;
+
+	// the executor serving requests
+	private ExecutorService executor;
+
+	// the emulated lights, indexed by local id
+	private LinkedHashMap<String, SimulatedLight> lights;
+
+	// the emulated groups, indexed by id
+	private LinkedHashMap<String, Group> groups;
+
+	// the emulated scenes, indexed by id
+	private LinkedHashMap<String, Scene> scenes;
+
+	// the whitelisted users and the corresponding device types
+	private LinkedHashMap<String, String> whitelist;
+
+	// the number of lights found by the next light search
+	private int lightsToDiscover;
+
+	// the lights found by the last light search
+	private List<String> newLights;
+
+	// the time of the last light search, "none" if never
+	private String lastScan;
+
+	// the time until which the link button is pressed
+	private long linkButtonPressedUntil;
+
+	// the id of the next created group
+	private int nextGroupId;
+
+	// the response latency and jitter, in milliseconds
+	private volatile long latencyMillis;
+	private volatile long jitterMillis;
+
+	// the probability of rejecting a command with an internal error
+	private volatile double errorRate;
+
+	// the light and group command rate limiters
+	private RateLimiter lightCommandLimiter;
+	private RateLimiter groupCommandLimiter;
+
+	// the random generator for jitter and errors
+	private Random random;
+
+	// the request metrics
+	private AtomicLong requests;
+	private AtomicLong lightCommands;
+	private AtomicLong groupCommands;
+	private AtomicLong throttledCommands;
+	private AtomicLong failedCommands;
+
+	/**
+	 * Creates a simulator with the given number of lights, no latency, no
+	 * errors and the real bridge rate limits
+	 * 
+	 * @param lightCount
+	 *            The number of lights.
+	 */
+	public HueBridgeSimulator(int lightCount)
+	{
+		// initialize the resources
+		this.lights = new LinkedHashMap<String, SimulatedLight>();
+		this.groups = new LinkedHashMap<String, Group>();
+		this.scenes = new LinkedHashMap<String, Scene>();
+		this.whitelist = new LinkedHashMap<String, String>();
+		this.newLights = new ArrayList<String>();
+		this.lastScan = "none";
+		this.nextGroupId = 1;
+
+		// whitelist the default user
+		this.whitelist.put(DEFAULT_USER, "test user");
+
+		// create the lights
+		for (int i = 0; i < lightCount; i++)
+			this.createLight();
+
+		// the rate limits of the real bridge
+		this.lightCommandLimiter = new RateLimiter(
+				DEFAULT_LIGHT_COMMANDS_PER_SECOND);
+		this.groupCommandLimiter = new RateLimiter(
+				DEFAULT_GROUP_COMMANDS_PER_SECOND);
+
+		// initialize the random generator
+		this.random = new Random();
+
+		// initialize the metrics
+		this.requests = new AtomicLong();
+		this.lightCommands = new AtomicLong();
+		this.groupCommands = new AtomicLong();
+		this.throttledCommands = new AtomicLong();
+		this.failedCommands = new AtomicLong();
+	}
+
+	/**
+	 * Starts the simulator on an ephemeral port of the loopback interface
+	 * 
+	 * @throws IOException
+	 *             if the server cannot be started
+	 */
+	public void start() throws IOException
+	{
+		this.start(0);
+	}
+
+	/**
+	 * Starts the simulator on the given port of the loopback interface
+	 * 
+	 * @param port
+	 *            The port, 0 for an ephemeral port.
+	 * @throws IOException
+	 *             if the server cannot be started
+	 */
+	public synchronized void start(int port) throws IOException
+	{
+		if (this.server == null)
+		{
+			// create the server
+			this.server = HttpServer.create(new InetSocketAddress(
+					InetAddress.getByName("127.0.0.1"), port), 0);
+			this.server.createContext("/", this);
+
+			// serve requests on a bounded pool
+			this.executor = Executors.newFixedThreadPool(SERVER_THREADS);
+			this.server.setExecutor(this.executor);
+
+			// start
+			this.server.start();
+		}
+	}
+
+	/**
+	 * Stops the simulator
+	 */
+	public synchronized void stop()
+	{
+		if (this.server != null)
+		{
+			this.server.stop(0);
+			this.executor.shutdownNow();
+			this.server = null;
+			this.executor = null;
+		}
+	}
+
+	/**
+	 * Provides the simulator address, to be used as bridge IP
+	 * 
+	 * @return the address, as host:port
+	 */
+	public synchronized String getBridgeIp()
+	{
+		return (this.server != null) ? "127.0.0.1:"
+				+ this.server.getAddress().getPort() : null;
+	}
+
+	/**
+	 * Sets the response latency
+	 * 
+	 * @param latencyMillis
+	 *            The mean latency, in milliseconds.
+	 * @param jitterMillis
+	 *            The maximum deviation from the mean latency, in milliseconds.
+	 */
+	public void setLatency(long latencyMillis, long jitterMillis)
+	{
+		this.latencyMillis = latencyMillis;
+		this.jitterMillis = jitterMillis;
+	}
+
+	/**
+	 * Sets the probability of rejecting a light or group command with an
+	 * internal error
+	 * 
+	 * @param errorRate
+	 *            The error probability, between 0 and 1.
+	 */
+	public void setErrorRate(double errorRate)
+	{
+		this.errorRate = errorRate;
+	}
+
+	/**
+	 * Sets the command rate limits, commands exceeding the limits are rejected
+	 * with an internal error, as done by the real bridge
+	 * 
+	 * @param lightCommandsPerSecond
+	 *            The light commands allowed per second, no limit if not
+	 *            positive.
+	 * @param groupCommandsPerSecond
+	 *            The group commands allowed per second, no limit if not
+	 *            positive.
+	 */
+	public void setRateLimits(double lightCommandsPerSecond,
+			double groupCommandsPerSecond)
+	{
+		this.lightCommandLimiter.setRate(lightCommandsPerSecond);
+		this.groupCommandLimiter.setRate(groupCommandsPerSecond);
+	}
+
+	/**
+	 * Presses the bridge link button, allowing new users to be created in the
+	 * next 30 seconds
+	 */
+	public synchronized void pressLinkButton()
+	{
+		this.linkButtonPressedUntil = System.currentTimeMillis()
+				+ LINK_BUTTON_WINDOW_MILLIS;
+	}
+
+	/**
+	 * Whitelists the given user
+	 * 
+	 * @param username
+	 *            The user name.
+	 */
+	public synchronized void addUser(String username)
+	{
+		this.whitelist.put(username, "test user");
+	}
+
+	/**
+	 * Sets the number of lights found by the next light search
+	 * 
+	 * @param lightCount
+	 *            The number of new lights.
+	 */
+	public synchronized void setLightsToDiscover(int lightCount)
+	{
+		this.lightsToDiscover = lightCount;
+	}
+
+	/**
+	 * Provides the light with the given local id, e.g., to check the effect of
+	 * commands or to simulate physical changes
+	 * 
+	 * @param localId
+	 *            The light local id.
+	 * @return the light, null if not existing
+	 */
+	public synchronized SimulatedLight getLight(String localId)
+	{
+		return this.lights.get(localId);
+	}
+
+	/**
+	 * Changes a state attribute of the given light, as done by a physical
+	 * switch or by another application
+	 * 
+	 * @param localId
+	 *            The light local id.
+	 * @param attribute
+	 *            The CLIP attribute name, e.g., bri.
+	 * @param value
+	 *            The attribute value.
+	 * @throws JSONException
+	 *             if the value has not the expected type
+	 */
+	public synchronized void setLightState(String localId, String attribute,
+			Object value) throws JSONException
+	{
+		SimulatedLight light = this.lights.get(localId);
+		if (light != null)
+			light.apply(attribute, value);
+	}
+
+	/**
+	 * @return the number of served requests
+	 */
+	public long getRequestCount()
+	{
+		return this.requests.get();
+	}
+
+	/**
+	 * @return the number of accepted light commands
+	 */
+	public long getLightCommandCount()
+	{
+		return this.lightCommands.get();
+	}
+
+	/**
+	 * @return the number of accepted group commands
+	 */
+	public long getGroupCommandCount()
+	{
+		return this.groupCommands.get();
+	}
+
+	/**
+	 * @return the number of commands rejected for exceeding the rate limits
+	 */
+	public long getThrottledCommandCount()
+	{
+		return this.throttledCommands.get();
+	}
+
+	/**
+	 * @return the number of commands rejected with an injected error
+	 */
+	public long getFailedCommandCount()
+	{
+		return this.failedCommands.get();
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException
+	{
+		// count the request
+		this.requests.incrementAndGet();
+
+		try
+		{
+			// read the request
+			String body = HueBridgeSimulator.read(exchange.getRequestBody());
+			String[] path = exchange.getRequestURI().getPath().split("/");
+
+			// build the response
+			String response;
+			try
+			{
+				synchronized (this)
+				{
+					response = this.route(exchange.getRequestMethod(), path,
+							body).toString();
+				}
+			}
+			catch (JSONException e)
+			{
+				response = HueBridgeSimulator.error(INVALID_JSON,
+						exchange.getRequestURI().getPath(),
+						"body contains invalid json").toString();
+			}
+
+			// emulate the bridge latency
+			long latency = this.latencyMillis;
+			if (this.jitterMillis > 0)
+				latency += (long) (this.jitterMillis * (2 * this.random
+						.nextDouble() - 1.0));
+			if (latency > 0)
+				Thread.sleep(latency);
+
+			// send the response, the bridge always answers 200
+			byte[] responseBytes = response.getBytes("UTF-8");
+			exchange.getResponseHeaders().set("Content-Type",
+					"application/json");
+			exchange.sendResponseHeaders(200, responseBytes.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(responseBytes);
+			out.close();
+		}
+		catch (InterruptedException e)
+		{
+			// the simulator is stopping
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Routes a request to the corresponding resource
+	 * 
+	 * @param method
+	 *            The HTTP method.
+	 * @param path
+	 *            The request path, split on slashes.
+	 * @param body
+	 *            The request body.
+	 * @return the CLIP response
+	 * @throws JSONException
+	 *             if the body is not valid
+	 */
+	private Object route(String method, String[] path, String body)
+			throws JSONException
+	{
+		// the resource address, as reported in errors
+		String address = "/" + HueBridgeSimulator.join(path, 3);
+
+		// the response
+		Object response;
+
+		if ((path.length < 2) || (!path[1].equals("api")))
+			response = HueBridgeSimulator.error(RESOURCE_NOT_AVAILABLE,
+					address, "resource, " + address + ", not available");
+		else if (path.length == 2)
+			response = method.equals("POST") ? this.createUser(body)
+					: HueBridgeSimulator.methodNotAvailable(method, address);
+		else if (!this.whitelist.containsKey(path[2]))
+			response = HueBridgeSimulator.error(UNAUTHORIZED_USER, address,
+					"unauthorized user");
+		else if (path.length == 3)
+			response = method.equals("GET") ? this.getFullState()
+					: HueBridgeSimulator.methodNotAvailable(method, address);
+		else if (path[3].equals("config"))
+			response = this.routeConfig(method, path, body, address);
+		else if (path[3].equals("lights"))
+			response = this.routeLights(method, path, body, address);
+		else if (path[3].equals("groups"))
+			response = this.routeGroups(method, path, body, address);
+		else if (path[3].equals("scenes"))
+			response = this.routeScenes(method, path, body, address);
+		else if (path[3].equals("schedules") && (path.length == 4))
+			response = new JSONObject();
+		else
+			response = HueBridgeSimulator.error(RESOURCE_NOT_AVAILABLE,
+					address, "resource, " + address + ", not available");
+
+		return response;
+	}
+
+	/**
+	 * Handles the config resource and the whitelist
+	 */
+	private Object routeConfig(String method, String[] path, String body,
+			String address) throws JSONException
+	{
+		Object response = HueBridgeSimulator.methodNotAvailable(method,
+				address);
+
+		if ((path.length == 4) && method.equals("GET"))
+			response = this.getConfig();
+		else if ((path.length == 4) && method.equals("PUT"))
+		{
+			// only the link button is modifiable
+			JSONObject config = new JSONObject(body);
+			JSONArray result = new JSONArray();
+			if (config.optBoolean("linkbutton"))
+				this.pressLinkButton();
+			if (config.has("linkbutton"))
+				result.put(HueBridgeSimulator.success("/config/linkbutton",
+						config.get("linkbutton")));
+			response = result;
+		}
+		else if ((path.length == 6) && path[4].equals("whitelist")
+				&& method.equals("DELETE"))
+		{
+			// remove the user
+			if (this.whitelist.remove(path[5]) != null)
+				response = new JSONArray().put(new JSONObject().put(
+						"success", address + " deleted"));
+			else
+				response = HueBridgeSimulator.error(RESOURCE_NOT_AVAILABLE,
+						address, "resource, " + address + ", not available");
+		}
+
+		return response;
+	}
+
+	/**
+	 * Handles the lights resource
+	 */
+	private Object routeLights(String method, String[] path, String body,
+			String address) throws JSONException
+	{
+		Object response = HueBridgeSimulator.methodNotAvailable(method,
+				address);
+
+		if (path.length == 4)
+		{
+			if (method.equals("GET"))
+			{
+				// all lights
+				JSONObject all = new JSONObject();
+				for (SimulatedLight light : this.lights.values())
+					all.put(light.getId(), light.toJSON());
+				response = all;
+			}
+			else if (method.equals("POST"))
+				response = this.searchLights();
+		}
+		else if (path[4].equals("new") && (path.length == 5)
+				&& method.equals("GET"))
+		{
+			// the lights found by the last search
+			JSONObject found = new JSONObject();
+			for (String localId : this.newLights)
+				found.put(localId, new JSONObject().put("name", this.lights
+						.get(localId).getName()));
+			found.put("lastscan", this.lastScan);
+			response = found;
+		}
+		else
+		{
+			SimulatedLight light = this.lights.get(path[4]);
+
+			if (light == null)
+				response = HueBridgeSimulator.error(RESOURCE_NOT_AVAILABLE,
+						address, "resource, " + address + ", not available");
+			else if ((path.length == 5) && method.equals("GET"))
+				response = light.toJSON();
+			else if ((path.length == 5) && method.equals("PUT"))
+			{
+				// rename the light
+				String name = new JSONObject(body).getString("name");
+				light.setName(name);
+				response = new JSONArray().put(HueBridgeSimulator.success(
+						address + "/name", name));
+			}
+			else if ((path.length == 6) && path[5].equals("state")
+					&& method.equals("PUT"))
+				response = this.command(this.lightCommandLimiter,
+						this.lightCommands, light.getId(), new JSONObject(
+								body), address, false);
+		}
+
+		return response;
+	}
+
+	/**
+	 * Handles the groups resource
+	 */
+	private Object routeGroups(String method, String[] path, String body,
+			String address) throws JSONException
+	{
+		Object response = HueBridgeSimulator.methodNotAvailable(method,
+				address);
+
+		if (path.length == 4)
+		{
+			if (method.equals("GET"))
+				response = this.getGroups();
+			else if (method.equals("POST"))
+			{
+				// create a new group
+				JSONObject definition = new JSONObject(body);
+				Group group = new Group(definition.optString("name",
+						"Group " + this.nextGroupId),
+						HueBridgeSimulator.toList(definition
+								.optJSONArray("lights")));
+				String id = String.valueOf(this.nextGroupId++);
+				this.groups.put(id, group);
+				response = new JSONArray().put(HueBridgeSimulator.success(
+						"id", id));
+			}
+		}
+		else
+		{
+			// group 0 always exists and contains all lights
+			Group group = path[4].equals("0") ? new Group("Lightset 0",
+					new ArrayList<String>(this.lights.keySet())) : this.groups
+					.get(path[4]);
+
+			if (group == null)
+				response = HueBridgeSimulator.error(RESOURCE_NOT_AVAILABLE,
+						address, "resource, " + address + ", not available");
+			else if ((path.length == 5) && method.equals("GET"))
+				response = group.toJSON();
+			else if ((path.length == 5) && method.equals("PUT"))
+			{
+				// update the group name and lights
+				JSONObject definition = new JSONObject(body);
+				JSONArray result = new JSONArray();
+				if (definition.has("name"))
+				{
+					group.name = definition.getString("name");
+					result.put(HueBridgeSimulator.success(address + "/name",
+							group.name));
+				}
+				if (definition.has("lights"))
+				{
+					group.lights = HueBridgeSimulator.toList(definition
+							.getJSONArray("lights"));
+					result.put(HueBridgeSimulator.success(address + "/lights",
+							definition.getJSONArray("lights")));
+				}
+				response = result;
+			}
+			else if ((path.length == 5) && method.equals("DELETE"))
+			{
+				this.groups.remove(path[4]);
+				response = new JSONArray().put(new JSONObject().put(
+						"success", address + " deleted"));
+			}
+			else if ((path.length == 6) && path[5].equals("action")
+					&& method.equals("PUT"))
+			{
+				JSONObject action = new JSONObject(body);
+				Scene scene = this.scenes.get(action.optString("scene"));
+
+				if (scene != null)
+				{
+					// recall the scene, a single group command
+					response = this.command(this.groupCommandLimiter,
+							this.groupCommands, null, action, address, true);
+					if (!HueBridgeSimulator.isError(response))
+						scene.recall(this.lights);
+				}
+				else
+				{
+					// apply the action to all the group lights
+					response = this.command(this.groupCommandLimiter,
+							this.groupCommands, null, action, address, true);
+					if (!HueBridgeSimulator.isError(response))
+					{
+						for (String localId : group.lights)
+						{
+							SimulatedLight light = this.lights.get(localId);
+							if (light != null)
+								HueBridgeSimulator.apply(light, action);
+						}
+						group.action = action;
+					}
+				}
+			}
+		}
+
+		return response;
+	}
+
+	/**
+	 * Handles the scenes resource
+	 */
+	private Object routeScenes(String method, String[] path, String body,
+			String address) throws JSONException
+	{
+		Object response = HueBridgeSimulator.methodNotAvailable(method,
+				address);
+
+		if ((path.length == 4) && method.equals("GET"))
+		{
+			// all scenes
+			JSONObject all = new JSONObject();
+			for (Map.Entry<String, Scene> scene : this.scenes.entrySet())
+				all.put(scene.getKey(), scene.getValue().toJSON());
+			response = all;
+		}
+		else if ((path.length == 5) && method.equals("PUT"))
+		{
+			// create or update the scene, storing the current light states
+			JSONObject definition = new JSONObject(body);
+			Scene scene = new Scene(definition.optString("name", path[4]),
+					HueBridgeSimulator.toList(definition
+							.optJSONArray("lights")), this.lights);
+			this.scenes.put(path[4], scene);
+			response = new JSONArray().put(
+					HueBridgeSimulator.success(address + "/name", scene.name))
+					.put(HueBridgeSimulator.success(address + "/lights",
+							definition.optJSONArray("lights")));
+		}
+
+		return response;
+	}
+
+	/**
+	 * Applies the rate limit and the error rate to a light or group command
+	 * and, if accepted, applies it to the given light
+	 * 
+	 * @param limiter
+	 *            The rate limiter of the command type.
+	 * @param counter
+	 *            The counter of accepted commands of the same type.
+	 * @param localId
+	 *            The light to update, null for group commands.
+	 * @param command
+	 *            The command body.
+	 * @param address
+	 *            The command address.
+	 * @param group
+	 *            true for group commands.
+	 * @return the CLIP response
+	 * @throws JSONException
+	 *             if the command is not valid
+	 */
+	private Object command(RateLimiter limiter, AtomicLong counter,
+			String localId, JSONObject command, String address, boolean group)
+			throws JSONException
+	{
+		Object response;
+
+		if (!limiter.tryAcquire())
+		{
+			// the command buffer is full
+			this.throttledCommands.incrementAndGet();
+			response = HueBridgeSimulator.error(INTERNAL_ERROR, address,
+					"Internal error, 503");
+		}
+		else if (this.random.nextDouble() < this.errorRate)
+		{
+			// inject an error
+			this.failedCommands.incrementAndGet();
+			response = HueBridgeSimulator.error(INTERNAL_ERROR, address,
+					"Internal error, 500");
+		}
+		else
+		{
+			// count the command
+			counter.incrementAndGet();
+
+			// update the light, if any, and report the applied attributes
+			JSONArray result = new JSONArray();
+			Iterator<?> keys = command.keys();
+			while (keys.hasNext())
+			{
+				String key = (String) keys.next();
+				Object value = command.get(key);
+
+				if ((!group) && (!this.lights.get(localId).apply(key, value)))
+					result.put(HueBridgeSimulator.error(
+							PARAMETER_NOT_AVAILABLE, address + "/" + key,
+							"parameter, " + key + ", not available").get(0));
+				else
+					result.put(HueBridgeSimulator.success(address + "/" + key,
+							value));
+			}
+			response = result;
+		}
+
+		return response;
+	}
+
+	/**
+	 * Creates a new user, if the link button has been pressed
+	 */
+	private Object createUser(String body) throws JSONException
+	{
+		Object response;
+
+		if (System.currentTimeMillis() <= this.linkButtonPressedUntil)
+		{
+			// get or generate the user name
+			JSONObject request = new JSONObject(body);
+			String username = request.optString("username", "");
+			if (username.isEmpty())
+				username = Long.toHexString(this.random.nextLong());
+
+			// whitelist the user
+			this.whitelist.put(username, request.optString("devicetype"));
+			response = new JSONArray().put(HueBridgeSimulator.success(
+					"username", username));
+		}
+		else
+			response = HueBridgeSimulator.error(LINK_BUTTON_NOT_PRESSED, "",
+					"link button not pressed");
+
+		return response;
+	}
+
+	/**
+	 * Starts a light search, immediately finding the configured number of new
+	 * lights
+	 */
+	private Object searchLights() throws JSONException
+	{
+		// find the new lights
+		this.newLights.clear();
+		for (int i = 0; i < this.lightsToDiscover; i++)
+			this.newLights.add(this.createLight().getId());
+		this.lightsToDiscover = 0;
+
+		// store the search time
+		this.lastScan = HueBridgeSimulator.now();
+
+		return new JSONArray().put(HueBridgeSimulator.success("/lights",
+				"Searching for new devices"));
+	}
+
+	/**
+	 * Provides the full bridge state
+	 */
+	private JSONObject getFullState() throws JSONException
+	{
+		JSONObject lights = new JSONObject();
+		for (SimulatedLight light : this.lights.values())
+			lights.put(light.getId(), light.toJSON());
+
+		JSONObject scenes = new JSONObject();
+		for (Map.Entry<String, Scene> scene : this.scenes.entrySet())
+			scenes.put(scene.getKey(), scene.getValue().toJSON());
+
+		JSONObject state = new JSONObject();
+		state.put("lights", lights);
+		state.put("groups", this.getGroups());
+		state.put("config", this.getConfig());
+		state.put("schedules", new JSONObject());
+		state.put("scenes", scenes);
+		return state;
+	}
+
+	/**
+	 * Provides all the groups
+	 */
+	private JSONObject getGroups() throws JSONException
+	{
+		JSONObject groups = new JSONObject();
+		for (Map.Entry<String, Group> group : this.groups.entrySet())
+			groups.put(group.getKey(), group.getValue().toJSON());
+		return groups;
+	}
+
+	/**
+	 * Provides the bridge configuration
+	 */
+	private JSONObject getConfig() throws JSONException
+	{
+		// the whitelist
+		JSONObject whitelist = new JSONObject();
+		for (Map.Entry<String, String> user : this.whitelist.entrySet())
+			whitelist.put(
+					user.getKey(),
+					new JSONObject().put("name", user.getValue())
+							.put("last use date", HueBridgeSimulator.now())
+							.put("create date", HueBridgeSimulator.now()));
+
+		// the software update status
+		JSONObject swupdate = new JSONObject();
+		swupdate.put("updatestate", 0);
+		swupdate.put("url", "");
+		swupdate.put("text", "");
+		swupdate.put("notify", false);
+
+		// the configuration
+		JSONObject config = new JSONObject();
+		config.put("name", "Philips hue");
+		config.put("mac", "00:17:88:00:00:00");
+		config.put("dhcp", true);
+		config.put("ipaddress", (this.server != null) ? this.getBridgeIp()
+				: "127.0.0.1");
+		config.put("netmask", "255.0.0.0");
+		config.put("gateway", "127.0.0.1");
+		config.put("proxyaddress", "none");
+		config.put("proxyport", 0);
+		config.put("UTC", HueBridgeSimulator.now());
+		config.put("whitelist", whitelist);
+		config.put("swversion", SOFTWARE_VERSION);
+		config.put("swupdate", swupdate);
+		config.put("linkbutton",
+				System.currentTimeMillis() <= this.linkButtonPressedUntil);
+		config.put("portalservices", false);
+		return config;
+	}
+
+	/**
+	 * Creates a new light, with the next free local id
+	 */
+	private SimulatedLight createLight()
+	{
+		String localId = String.valueOf(this.lights.size() + 1);
+		SimulatedLight light = new SimulatedLight(localId, "Hue Lamp "
+				+ localId);
+		this.lights.put(localId, light);
+		return light;
+	}
+
+	/**
+	 * Applies all the attributes of the given action to the given light
+	 */
+	private static void apply(SimulatedLight light, JSONObject action)
+			throws JSONException
+	{
+		Iterator<?> keys = action.keys();
+		while (keys.hasNext())
+		{
+			String key = (String) keys.next();
+			light.apply(key, action.get(key));
+		}
+	}
+
+	/**
+	 * Builds a CLIP success entry
+	 */
+	private static JSONObject success(String address, Object value)
+			throws JSONException
+	{
+		return new JSONObject().put("success",
+				new JSONObject().put(address, value));
+	}
+
+	/**
+	 * Builds a CLIP error response
+	 */
+	private static JSONArray error(int type, String address,
+			String description) throws JSONException
+	{
+		JSONObject error = new JSONObject();
+		error.put("type", type);
+		error.put("address", address);
+		error.put("description", description);
+		return new JSONArray().put(new JSONObject().put("error", error));
+	}
+
+	/**
+	 * Builds the error response for unsupported methods
+	 */
+	private static JSONArray methodNotAvailable(String method, String address)
+			throws JSONException
+	{
+		return HueBridgeSimulator.error(METHOD_NOT_AVAILABLE, address,
+				"method, " + method + ", not available for resource, "
+						+ address);
+	}
+
+	/**
+	 * Checks if the given response is a CLIP error
+	 */
+	private static boolean isError(Object response)
+	{
+		return (response instanceof JSONArray)
+				&& (((JSONArray) response).length() > 0)
+				&& (((JSONArray) response).optJSONObject(0).has("error"));
+	}
+
+	/**
+	 * Converts a JSON array of light ids in a list
+	 */
+	private static List<String> toList(JSONArray array) throws JSONException
+	{
+		List<String> list = new ArrayList<String>();
+		if (array != null)
+			for (int i = 0; i < array.length(); i++)
+				list.add(array.getString(i));
+		return list;
+	}
+
+	/**
+	 * Joins the path elements, starting from the given one
+	 */
+	private static String join(String[] path, int from)
+	{
+		StringBuilder joined = new StringBuilder();
+		for (int i = from; i < path.length; i++)
+		{
+			if (joined.length() > 0)
+				joined.append('/');
+			joined.append(path[i]);
+		}
+		return joined.toString();
+	}
+
+	/**
+	 * Provides the current time, in the bridge format
+	 */
+	private static String now()
+	{
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(new Date());
+	}
+
+	/**
+	 * Reads the whole given stream as an UTF-8 string
+	 */
+	private static String read(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		byte[] chunk = new byte[1024];
+		int read;
+		while ((read = in.read(chunk)) > 0)
+			buffer.write(chunk, 0, read);
+		in.close();
+		return buffer.toString("UTF-8");
+	}
+
+	/**
+	 * Runs a standalone simulator on localhost
+	 * 
+	 * <pre>
+	 * HueBridgeSimulator [port] [light count] [latency ms] [jitter ms] [error rate]
+	 * </pre>
+	 * 
+	 * @param args
+	 *            The simulator parameters.
+	 * @throws Exception
+	 *             if the simulator cannot be started
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		// parse the parameters
+		int port = (args.length > 0) ? Integer.parseInt(args[0]) : 8000;
+		int lightCount = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+		long latency = (args.length > 2) ? Long.parseLong(args[2]) : 0;
+		long jitter = (args.length > 3) ? Long.parseLong(args[3]) : 0;
+		double errorRate = (args.length > 4) ? Double.parseDouble(args[4]) : 0;
+
+		// start the simulator
+		HueBridgeSimulator simulator = new HueBridgeSimulator(lightCount);
+		simulator.setLatency(latency, jitter);
+		simulator.setErrorRate(errorRate);
+		simulator.start(port);
+
+		System.out.println("Hue bridge simulator listening at "
+				+ simulator.getBridgeIp() + " with " + lightCount
+				+ " lights, user: " + DEFAULT_USER);
+	}
+
+	/**
+	 * An emulated group
+	 */
+	private static class Group
+	{
+		// the group name
+		private String name;
+
+		// the group lights
+		private List<String> lights;
+
+		// the last action sent to the group
+		private JSONObject action;
+
+		public Group(String name, List<String> lights)
+		{
+			this.name = name;
+			this.lights = lights;
+			this.action = new JSONObject();
+		}
+
+		public JSONObject toJSON() throws JSONException
+		{
+			JSONObject group = new JSONObject();
+			group.put("name", this.name);
+			group.put("lights", new JSONArray(this.lights));
+			group.put("action", this.action);
+			return group;
+		}
+	}
+
+	/**
+	 * An emulated scene
+	 */
+	private static class Scene
+	{
+		// the scene name
+		private String name;
+
+		// the scene lights
+		private List<String> lights;
+
+		// the stored light states
+		private Map<String, JSONObject> states;
+
+		public Scene(String name, List<String> lights,
+				Map<String, SimulatedLight> allLights) throws JSONException
+		{
+			this.name = name;
+			this.lights = lights;
+			this.states = new HashMap<String, JSONObject>();
+
+			// store the current state of the scene lights
+			for (String localId : lights)
+			{
+				SimulatedLight light = allLights.get(localId);
+				if (light != null)
+				{
+					JSONObject state = light.getState();
+					state.remove("reachable");
+					state.remove("colormode");
+					this.states.put(localId, state);
+				}
+			}
+		}
+
+		public void recall(Map<String, SimulatedLight> allLights)
+				throws JSONException
+		{
+			for (Map.Entry<String, JSONObject> state : this.states.entrySet())
+			{
+				SimulatedLight light = allLights.get(state.getKey());
+				if (light != null)
+					HueBridgeSimulator.apply(light, state.getValue());
+			}
+		}
+
+		public JSONObject toJSON() throws JSONException
+		{
+			JSONObject scene = new JSONObject();
+			scene.put("name", this.name);
+			scene.put("lights", new JSONArray(this.lights));
+			scene.put("active", true);
+			return scene;
+		}
+	}
+}
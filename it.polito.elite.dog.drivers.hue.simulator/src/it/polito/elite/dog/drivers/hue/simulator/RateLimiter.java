@@ -0,0 +1,91 @@
+/*
+ * Dog 2.0 - Hue Bridge Simulator
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.simulator;
+
+/**
+ * A token bucket allowing a given number of commands per second, with bursts
+ * up to one second worth of commands, as done by the real bridge on its
+ * command buffer.
+ * 
+ * @author bonino
+ * 
+ */
+public class RateLimiter
+{
+	// the allowed commands per second, no limit if not positive
+	private double permitsPerSecond;
+
+	// the currently available permits
+	private double permits;
+
+	// the time of the last refill, in nanoseconds
+	private long lastRefillNanos;
+
+	/**
+	 * Creates a rate limiter allowing the given number of commands per second
+	 * 
+	 * @param permitsPerSecond
+	 *            The allowed commands per second, no limit if not positive.
+	 */
+	public RateLimiter(double permitsPerSecond)
+	{
+		this.setRate(permitsPerSecond);
+	}
+
+	/**
+	 * Sets the allowed commands per second, resetting the bucket
+	 * 
+	 * @param permitsPerSecond
+	 *            The allowed commands per second, no limit if not positive.
+	 */
+	public synchronized void setRate(double permitsPerSecond)
+	{
+		this.permitsPerSecond = permitsPerSecond;
+		this.permits = permitsPerSecond;
+		this.lastRefillNanos = System.nanoTime();
+	}
+
+	/**
+	 * Takes a permit, if available
+	 * 
+	 * @return true if the command is allowed, false if it exceeds the rate
+	 */
+	public synchronized boolean tryAcquire()
+	{
+		boolean acquired = true;
+
+		if (this.permitsPerSecond > 0)
+		{
+			// refill the bucket
+			long now = System.nanoTime();
+			this.permits = Math.min(this.permitsPerSecond, this.permits
+					+ (now - this.lastRefillNanos) * this.permitsPerSecond
+					/ 1e9);
+			this.lastRefillNanos = now;
+
+			// take a permit
+			if (this.permits >= 1.0)
+				this.permits -= 1.0;
+			else
+				acquired = false;
+		}
+
+		return acquired;
+	}
+}
@@ -0,0 +1,255 @@
+/*
+ * Dog 2.0 - Hue Bridge Simulator
+ * 
+ * 
+ * Copyright 2014 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.drivers.hue.simulator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A light emulated by the {@link HueBridgeSimulator}, modeled as an extended
+ * color light (LCT001) as seen through the v1 CLIP API.
+ * 
+ * @author bonino
+ * 
+ */
+public class SimulatedLight
+{
+	// the light local id
+	private String id;
+
+	// the light name
+	private String name;
+
+	// the light state
+	private boolean on;
+	private int brightness;
+	private int hue;
+	private int saturation;
+	private double x;
+	private double y;
+	private int ct;
+	private String alert;
+	private String effect;
+	private String colorMode;
+	private boolean reachable;
+
+	/**
+	 * Creates a new light, switched on at full brightness
+	 * 
+	 * @param id
+	 *            The light local id.
+	 * @param name
+	 *            The light name.
+	 */
+	public SimulatedLight(String id, String name)
+	{
+		this.id = id;
+		this.name = name;
+
+		// the default state
+		this.on = true;
+		this.brightness = 254;
+		this.hue = 14922;
+		this.saturation = 144;
+		this.x = 0.4595;
+		this.y = 0.4105;
+		this.ct = 369;
+		this.alert = "none";
+		this.effect = "none";
+		this.colorMode = "ct";
+		this.reachable = true;
+	}
+
+	/**
+	 * @return the light local id
+	 */
+	public String getId()
+	{
+		return this.id;
+	}
+
+	/**
+	 * @return the light name
+	 */
+	public String getName()
+	{
+		return this.name;
+	}
+
+	/**
+	 * @param name
+	 *            the light name to set
+	 */
+	public void setName(String name)
+	{
+		this.name = name;
+	}
+
+	/**
+	 * @return true if the light is on
+	 */
+	public boolean isOn()
+	{
+		return this.on;
+	}
+
+	/**
+	 * @return the light brightness
+	 */
+	public int getBrightness()
+	{
+		return this.brightness;
+	}
+
+	/**
+	 * @return the light hue
+	 */
+	public int getHue()
+	{
+		return this.hue;
+	}
+
+	/**
+	 * @return the light saturation
+	 */
+	public int getSaturation()
+	{
+		return this.saturation;
+	}
+
+	/**
+	 * @param reachable
+	 *            the reachability to set
+	 */
+	public void setReachable(boolean reachable)
+	{
+		this.reachable = reachable;
+	}
+
+	/**
+	 * Applies a single state attribute, as received in a state or group
+	 * action command
+	 * 
+	 * @param attribute
+	 *            The CLIP attribute name, e.g., bri.
+	 * @param value
+	 *            The attribute value.
+	 * @return true if the attribute is supported, false otherwise
+	 * @throws JSONException
+	 *             if the value has not the expected type
+	 */
+	public boolean apply(String attribute, Object value) throws JSONException
+	{
+		boolean supported = true;
+
+		if (attribute.equals("on"))
+			this.on = (Boolean) value;
+		else if (attribute.equals("bri"))
+			this.brightness = SimulatedLight.clamp(value, 0, 254);
+		else if (attribute.equals("hue"))
+		{
+			this.hue = SimulatedLight.clamp(value, 0, 65535);
+			this.colorMode = "hs";
+		}
+		else if (attribute.equals("sat"))
+		{
+			this.saturation = SimulatedLight.clamp(value, 0, 254);
+			this.colorMode = "hs";
+		}
+		else if (attribute.equals("xy"))
+		{
+			JSONArray xy = (JSONArray) value;
+			this.x = xy.getDouble(0);
+			this.y = xy.getDouble(1);
+			this.colorMode = "xy";
+		}
+		else if (attribute.equals("ct"))
+		{
+			this.ct = SimulatedLight.clamp(value, 153, 500);
+			this.colorMode = "ct";
+		}
+		else if (attribute.equals("alert"))
+			this.alert = value.toString();
+		else if (attribute.equals("effect"))
+			this.effect = value.toString();
+		else if (!attribute.equals("transitiontime"))
+			supported = false;
+
+		return supported;
+	}
+
+	/**
+	 * Provides the CLIP representation of the light state
+	 * 
+	 * @return the state
+	 * @throws JSONException
+	 *             if the state cannot be represented
+	 */
+	public JSONObject getState() throws JSONException
+	{
+		JSONObject state = new JSONObject();
+		state.put("on", this.on);
+		state.put("bri", this.brightness);
+		state.put("hue", this.hue);
+		state.put("sat", this.saturation);
+		state.put("xy", new JSONArray().put(this.x).put(this.y));
+		state.put("ct", this.ct);
+		state.put("alert", this.alert);
+		state.put("effect", this.effect);
+		state.put("colormode", this.colorMode);
+		state.put("reachable", this.reachable);
+		return state;
+	}
+
+	/**
+	 * Provides the CLIP representation of the light
+	 * 
+	 * @return the light
+	 * @throws JSONException
+	 *             if the light cannot be represented
+	 */
+	public JSONObject toJSON() throws JSONException
+	{
+		JSONObject light = new JSONObject();
+		light.put("state", this.getState());
+		light.put("type", "Extended color light");
+		light.put("name", this.name);
+		light.put("modelid", "LCT001");
+		light.put("swversion", "66009461");
+		light.put("pointsymbol", new JSONObject());
+		return light;
+	}
+
+	/**
+	 * Converts the given number in an integer within the given range
+	 * 
+	 * @param value
+	 *            The value, a {@link Number}.
+	 * @param min
+	 *            The range lower bound.
+	 * @param max
+	 *            The range upper bound.
+	 * @return the clamped value
+	 */
+	private static int clamp(Object value, int min, int max)
+	{
+		return Math.max(min, Math.min(max, ((Number) value).intValue()));
+	}
+}